@@ -0,0 +1,353 @@
+package custom.lib;
+
+import htsjdk.samtools.util.CloseableIterator;
+import org.apache.log4j.Logger;
+import org.broad.igv.feature.Strand;
+import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.sam.Alignment;
+import org.broad.igv.sam.AlignmentBlock;
+import org.broad.igv.sam.AlignmentTrack.BisulfiteContext;
+import org.broad.igv.sam.BisulfiteBaseInfo;
+import org.broad.igv.sam.ReadMate;
+import org.broad.igv.sam.reader.AlignmentReader;
+import org.broad.igv.sam.reader.AlignmentReaderFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Converts an indexed bisulfite BAM or CRAM file to a bgzipped mHap file with a tabix index.
+ * <p>
+ * CpG calls are made by {@link BisulfiteBaseInfo} in the CG context, the same calls the alignment track colors.
+ * The calls of the two mates of a pair are merged into one fragment, and each run of consecutive reference CpGs
+ * called in a fragment becomes a haplotype.  Identical haplotypes (start, end, pattern and strand) are collapsed into
+ * one record with their count.  The strand is the strand of the original bisulfite converted molecule.
+ * <p>
+ * Chromosomes are converted in parallel, one task per chromosome with a reader of its own, into temporary files which
+ * are then compressed and indexed in the order of the file's sequence dictionary.
+ */
+public class BamToHap {
+
+    private static Logger log = Logger.getLogger(BamToHap.class);
+
+    public static final int DEFAULT_MIN_MAPPING_QUALITY = 0;
+
+    private final Genome genome;
+    private final CpGIndex cpgIndex;
+    private final int minMappingQuality;
+
+    public BamToHap(Genome genome, int minMappingQuality) {
+        this.genome = genome;
+        this.cpgIndex = new CpGIndex(genome);
+        this.minMappingQuality = minMappingQuality;
+    }
+
+    /**
+     * @return the default name of the mHap file converted from an alignment file
+     */
+    public static String getDefaultPath(String alignmentPath) {
+        String path = alignmentPath;
+        int dot = path.lastIndexOf('.');
+        if (dot > path.lastIndexOf(File.separatorChar)) {
+            path = path.substring(0, dot);
+        }
+        return path + ".hap.gz";
+    }
+
+    public void convert(String alignmentFile, File outputFile, int nThreads) throws IOException {
+        List<String> chromosomes;
+        AlignmentReader<?> reader = AlignmentReaderFactory.getReader(alignmentFile, true);
+        try {
+            chromosomes = new ArrayList<>(reader.getSequenceNames());
+        } finally {
+            reader.close();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        List<Future<File>> futures = new ArrayList<>();
+        boolean complete = false;
+        try {
+            for (String chr : chromosomes) {
+                futures.add(executor.submit(() -> convertChromosome(alignmentFile, chr)));
+            }
+
+            // Compress and index in order as the chromosomes complete
+            try (HapTabixWriter out = new HapTabixWriter(outputFile)) {
+                for (int i = 0; i < futures.size(); i++) {
+                    File chrFile = futures.get(i).get();
+                    log.info("Writing chromosome " + chromosomes.get(i));
+                    try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(chrFile), StandardCharsets.US_ASCII))) {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            out.writeLine(line);
+                        }
+                    } finally {
+                        chrFile.delete();
+                    }
+                }
+            }
+            complete = true;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            // Remove the temporary files of chromosomes not written
+            for (Future<File> future : futures) {
+                try {
+                    if (future.isDone() && !future.isCancelled()) {
+                        future.get().delete();
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    // Already reported
+                }
+            }
+            if (!complete) {
+                outputFile.delete();
+                new File(outputFile.getPath() + ".tbi").delete();
+            }
+        }
+    }
+
+    /**
+     * Convert the alignments of one chromosome to a temporary file of sorted mHap lines.
+     */
+    private File convertChromosome(String alignmentFile, String chr) throws IOException {
+        File file = File.createTempFile("bamtomhap", ".hap");
+        file.deleteOnExit();
+
+        AlignmentReader<?> reader = AlignmentReaderFactory.getReader(alignmentFile, true);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII))) {
+            ChromosomeConverter converter = new ChromosomeConverter(out);
+            CloseableIterator<? extends Alignment> it = reader.query(chr, 0, Integer.MAX_VALUE, false);
+            try {
+                while (it.hasNext()) {
+                    converter.add(it.next());
+                }
+            } finally {
+                it.close();
+            }
+            converter.finish();
+            log.info("Converted " + converter.fragments + " fragments of " + chr);
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        } finally {
+            reader.close();
+        }
+        return file;
+    }
+
+    /**
+     * Turns the sorted alignments of one chromosome into collapsed, sorted mHap records.
+     */
+    class ChromosomeConverter {
+
+        private final Writer out;
+        private String chr;
+
+        // First mates waiting for their second, in alignment order
+        private final LinkedHashMap<String, Fragment> pendingMates = new LinkedHashMap<>();
+
+        // Collapsed haplotypes not yet written, in file order
+        private final TreeMap<Haplotype, int[]> haplotypes = new TreeMap<>();
+
+        long fragments = 0;
+
+        ChromosomeConverter(Writer out) {
+            this.out = out;
+        }
+
+        void add(Alignment alignment) throws IOException {
+            if (!alignment.isMapped() || !alignment.isPrimary() || alignment.isSupplementary() ||
+                    alignment.isDuplicate() || alignment.isVendorFailedRead() ||
+                    alignment.getMappingQuality() < minMappingQuality) {
+                return;
+            }
+
+            chr = alignment.getChr();
+            int start = alignment.getAlignmentStart();
+
+            // A mate that should have been seen by now was filtered, or is missing
+            while (!pendingMates.isEmpty()) {
+                Map.Entry<String, Fragment> head = pendingMates.entrySet().iterator().next();
+                if (head.getValue().mateStart >= start) {
+                    break;
+                }
+                pendingMates.remove(head.getKey());
+                addFragment(head.getValue());
+            }
+
+            Fragment fragment = new Fragment(alignment);
+            ReadMate mate = alignment.getMate();
+            if (alignment.isPaired() && mate != null && mate.isMapped() && alignment.getChr().equals(mate.getChr())) {
+                Fragment first = pendingMates.remove(alignment.getReadName());
+                if (first != null) {
+                    first.merge(fragment);
+                    addFragment(first);
+                } else if (mate.getStart() >= start) {
+                    pendingMates.put(alignment.getReadName(), fragment);
+                } else {
+                    addFragment(fragment);
+                }
+            } else {
+                addFragment(fragment);
+            }
+
+            // Haplotypes starting before every pending and future fragment are complete.  The C of a CpG called on
+            // the reverse strand is one base before the alignment.
+            int boundary = start;
+            if (!pendingMates.isEmpty()) {
+                boundary = Math.min(boundary, pendingMates.values().iterator().next().start);
+            }
+            flush(boundary - 1);
+        }
+
+        void finish() throws IOException {
+            for (Fragment fragment : pendingMates.values()) {
+                addFragment(fragment);
+            }
+            pendingMates.clear();
+            flush(Integer.MAX_VALUE);
+        }
+
+        private void addFragment(Fragment fragment) {
+            if (fragment.calls.isEmpty()) {
+                return;
+            }
+            fragments++;
+
+            int[] cpgs = cpgIndex.getCpGs(fragment.chr, fragment.calls.firstKey(), fragment.calls.lastKey() + 1);
+            char strand = fragment.strand == Strand.NEGATIVE ? '-' : '+';
+
+            // Split into runs of consecutive CpGs, an mHap pattern has no missing calls
+            StringBuilder pattern = new StringBuilder();
+            int runStart = -1;
+            int previous = -1;
+            for (Map.Entry<Integer, Boolean> call : fragment.calls.entrySet()) {
+                int i = Arrays.binarySearch(cpgs, call.getKey());
+                if (i < 0) {
+                    continue;   // Not a CpG of the reference
+                }
+                if (runStart >= 0 && i != previous + 1) {
+                    addHaplotype(cpgs[runStart], cpgs[previous], pattern.toString(), strand);
+                    pattern.setLength(0);
+                    runStart = -1;
+                }
+                if (runStart < 0) {
+                    runStart = i;
+                }
+                pattern.append(call.getValue() ? '1' : '0');
+                previous = i;
+            }
+            if (runStart >= 0) {
+                addHaplotype(cpgs[runStart], cpgs[previous], pattern.toString(), strand);
+            }
+        }
+
+        /**
+         * The record spans the 1-based positions of the C of the first CpG to the G of the last one, so even a single
+         * CpG record is a non empty bed interval.
+         */
+        private void addHaplotype(int firstCpG, int lastCpG, String pattern, char strand) {
+            Haplotype haplotype = new Haplotype(firstCpG + 1, lastCpG + 2, pattern, strand);
+            int[] count = haplotypes.get(haplotype);
+            if (count == null) {
+                haplotypes.put(haplotype, new int[]{1});
+            } else {
+                count[0]++;
+            }
+        }
+
+        /**
+         * Write the haplotypes whose first CpG is before the 0-based position {@code boundary}.
+         */
+        private void flush(int boundary) throws IOException {
+            while (!haplotypes.isEmpty() && haplotypes.firstKey().start <= boundary) {
+                Map.Entry<Haplotype, int[]> entry = haplotypes.pollFirstEntry();
+                Haplotype haplotype = entry.getKey();
+                out.write(chr + "\t" + haplotype.start + "\t" + haplotype.end + "\t" + haplotype.pattern +
+                        "\t" + entry.getValue()[0] + "\t" + haplotype.strand + "\n");
+            }
+        }
+
+        /**
+         * The CpG calls of a read, or of both mates of a pair, by 0-based position of the C on the forward strand.
+         */
+        private class Fragment {
+            final String chr;
+            final int start;
+            final int mateStart;
+            final Strand strand;
+            final TreeMap<Integer, Boolean> calls = new TreeMap<>();
+
+            Fragment(Alignment alignment) {
+                chr = alignment.getChr();
+                start = alignment.getAlignmentStart();
+                mateStart = alignment.getMate() == null ? start : alignment.getMate().getStart();
+
+                // Same rule as BisulfiteBaseInfo: the second end of a pair is G->A converted
+                boolean reverse = alignment.isPaired() ?
+                        alignment.isNegativeStrand() ^ alignment.isSecondOfPair() : alignment.isNegativeStrand();
+                strand = reverse ? Strand.NEGATIVE : Strand.POSITIVE;
+
+                for (AlignmentBlock block : alignment.getAlignmentBlocks()) {
+                    if (block.isSoftClipped() || !block.hasBases()) {
+                        continue;
+                    }
+                    byte[] reference = genome.getSequence(chr, block.getStart(), block.getEnd());
+                    if (reference == null) {
+                        continue;
+                    }
+                    BisulfiteBaseInfo info = new BisulfiteBaseInfo(reference, alignment, block, BisulfiteContext.CG);
+                    int length = Math.min(block.getBases().length, reference.length);
+                    for (int idx = 0; idx < length; idx++) {
+                        if (info.getDisplayStatus(idx) != BisulfiteBaseInfo.DisplayStatus.COLOR) {
+                            continue;
+                        }
+                        // A call on the reverse strand is at the G of the CpG
+                        int position = block.getStart() + idx - (reverse ? 1 : 0);
+                        calls.putIfAbsent(position, BisulfiteBaseInfo.METHYLATED_COLOR.equals(info.getDisplayColor(idx)));
+                    }
+                }
+            }
+
+            /**
+             * Add the calls of the second mate, where the mates overlap the first mate's call is kept
+             */
+            void merge(Fragment mate) {
+                for (Map.Entry<Integer, Boolean> call : mate.calls.entrySet()) {
+                    calls.putIfAbsent(call.getKey(), call.getValue());
+                }
+            }
+        }
+    }
+
+    private static class Haplotype implements Comparable<Haplotype> {
+        final int start;
+        final int end;
+        final String pattern;
+        final char strand;
+
+        Haplotype(int start, int end, String pattern, char strand) {
+            this.start = start;
+            this.end = end;
+            this.pattern = pattern;
+            this.strand = strand;
+        }
+
+        public int compareTo(Haplotype o) {
+            int c = Integer.compare(start, o.start);
+            if (c == 0) c = Integer.compare(end, o.end);
+            if (c == 0) c = pattern.compareTo(o.pattern);
+            if (c == 0) c = Character.compare(strand, o.strand);
+            return c;
+        }
+    }
+}
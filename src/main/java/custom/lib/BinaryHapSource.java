@@ -0,0 +1,196 @@
+package custom.lib;
+
+import org.broad.igv.exceptions.ParserException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Data source backed by a binary mHap container (.mhb), written by {@link BinaryHapWriter}.
+ * <p>
+ * Layout of the file:
+ * <pre>
+ * header   magic "MHB1", int version
+ * blocks   deflate compressed records of one chromosome, sorted by start
+ * index    int nChromosomes, then per chromosome: UTF name, int nBlocks, then per block:
+ *          long offset, int compressed size, int size, int nRecords, int first start, int max end
+ * trailer  long offset of the index
+ * </pre>
+ * A record is the varints: start minus the previous start, zigzag encoded end minus start, number of CpGs shifted
+ * left by 2 or'ed with the strand, read count, followed by the pattern, one bit per CpG.  The first record of a block
+ * is relative to the block's first start.  The index keeps a running maximum of the block ends, so the first block
+ * overlapping a query is found by binary search.
+ * <p>
+ * Blocks are read with positional reads of a shared channel, so the source is safe for concurrent queries.
+ */
+public class BinaryHapSource implements HapDataSource {
+
+    public static final String EXTENSION = ".mhb";
+
+    static final byte[] MAGIC = {'M', 'H', 'B', '1'};
+    static final int VERSION = 2;
+
+    private final String path;
+    private final FileChannel channel;
+    private final Map<String, ChromosomeIndex> index = new LinkedHashMap<>();
+
+    public BinaryHapSource(String path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            readIndex();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void readIndex() throws IOException {
+        ByteBuffer header = read(0, MAGIC.length + 4);
+        for (byte b : MAGIC) {
+            if (header.get() != b) {
+                throw new IOException(path + " is not a binary mHap file");
+            }
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary mHap version " + version + " in " + path);
+        }
+
+        long indexOffset = read(channel.size() - 8, 8).getLong();
+        ByteBuffer buffer = read(indexOffset, (int) (channel.size() - 8 - indexOffset));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+
+        int nChromosomes = in.readInt();
+        for (int c = 0; c < nChromosomes; c++) {
+            String chr = in.readUTF();
+            ChromosomeIndex chrIndex = new ChromosomeIndex(in.readInt());
+            for (int b = 0; b < chrIndex.offsets.length; b++) {
+                chrIndex.offsets[b] = in.readLong();
+                chrIndex.compressedSizes[b] = in.readInt();
+                chrIndex.sizes[b] = in.readInt();
+                chrIndex.recordCounts[b] = in.readInt();
+                chrIndex.firstStarts[b] = in.readInt();
+                chrIndex.maxEnds[b] = Math.max(in.readInt(), b > 0 ? chrIndex.maxEnds[b - 1] : Integer.MIN_VALUE);
+            }
+            index.put(chr, chrIndex);
+        }
+    }
+
+    public Set<String> getChromosomes() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * @return the records of {@code chr} overlapping [start, end]
+     */
+    public Iterator<HapData> query(String chr, int start, int end) throws IOException {
+        List<HapData> records = new ArrayList<>();
+        ChromosomeIndex chrIndex = index.get(chr);
+        if (chrIndex != null) {
+            for (int b = CpGIndex.lowerBound(chrIndex.maxEnds, start); b < chrIndex.offsets.length && chrIndex.firstStarts[b] <= end; b++) {
+                decodeBlock(chr, chrIndex, b, hapData -> {
+                    if (hapData.end >= start && hapData.start <= end) {
+                        records.add(hapData);
+                    }
+                });
+            }
+        }
+        return records.iterator();
+    }
+
+    private void decodeBlock(String chr, ChromosomeIndex chrIndex, int block, Consumer<HapData> consumer) throws IOException {
+        ByteBuffer compressed = read(chrIndex.offsets[block], chrIndex.compressedSizes[block]);
+        byte[] bytes = new byte[chrIndex.sizes[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            if (inflater.inflate(bytes) != bytes.length) {
+                throw new IOException("Truncated block at " + chrIndex.offsets[block] + " in " + path);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block at " + chrIndex.offsets[block] + " in " + path, e);
+        } finally {
+            inflater.end();
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        int start = chrIndex.firstStarts[block];
+        for (int r = 0; r < chrIndex.recordCounts[block]; r++) {
+            start += readVarint(in);
+            int end = start + zigzagDecode(readVarint(in));
+            int lengthAndStrand = readVarint(in);
+            int count = readVarint(in);
+
+            boolean[] states = new boolean[lengthAndStrand >>> 2];
+            int patternBytes = (states.length + 7) >>> 3;
+            int position = in.position();
+            for (int k = 0; k < states.length; k++) {
+                states[k] = (bytes[position + (k >>> 3)] & (1 << (k & 7))) != 0;
+            }
+            in.position(position + patternBytes);
+
+            consumer.accept(new HapData(chr, start, end, states, count, HapStore.toStrand((byte) (lengthAndStrand & 3))));
+        }
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + path);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static int readVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new ParserException("Malformed varint", -1);
+            }
+        }
+    }
+
+    static int zigzagDecode(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static class ChromosomeIndex {
+        final long[] offsets;
+        final int[] compressedSizes;
+        final int[] sizes;
+        final int[] recordCounts;
+        final int[] firstStarts;
+        final int[] maxEnds;        // Running maximum
+
+        ChromosomeIndex(int nBlocks) {
+            offsets = new long[nBlocks];
+            compressedSizes = new int[nBlocks];
+            sizes = new int[nBlocks];
+            recordCounts = new int[nBlocks];
+            firstStarts = new int[nBlocks];
+            maxEnds = new int[nBlocks];
+        }
+    }
+}
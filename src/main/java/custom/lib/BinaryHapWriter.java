@@ -0,0 +1,184 @@
+package custom.lib;
+
+import org.apache.log4j.Logger;
+import org.broad.igv.exceptions.ParserException;
+import org.broad.igv.util.ParsingUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a binary mHap container, see {@link BinaryHapSource} for the layout.  Records must be added grouped by
+ * chromosome and sorted by start.
+ */
+public class BinaryHapWriter implements Closeable {
+
+    private static Logger log = Logger.getLogger(BinaryHapWriter.class);
+
+    static final int MAX_BLOCK_RECORDS = 4096;
+    static final int MAX_BLOCK_BYTES = 64 * 1024;
+
+    private final DataOutputStream out;
+    private long position;
+
+    // Index entries of the blocks written so far, by chromosome in file order
+    private final Map<String, List<long[]>> blocks = new LinkedHashMap<>();
+
+    // Current block
+    private String chr;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(MAX_BLOCK_BYTES + 1024);
+    private int blockRecords;
+    private int blockFirstStart;
+    private int blockMaxEnd;
+    private int previousStart;
+
+    public BinaryHapWriter(File file) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.write(BinaryHapSource.MAGIC);
+        out.writeInt(BinaryHapSource.VERSION);
+        position = BinaryHapSource.MAGIC.length + 4;
+    }
+
+    /**
+     * @return the default name of the binary copy of an mHap file
+     */
+    public static String getDefaultPath(String hapPath) {
+        String path = hapPath;
+        if (path.endsWith(".gz")) {
+            path = path.substring(0, path.length() - 3);
+        }
+        if (path.endsWith(".hap")) {
+            path = path.substring(0, path.length() - 4);
+        }
+        return path + BinaryHapSource.EXTENSION;
+    }
+
+    public static void convert(String hapFile, File outputFile) throws IOException {
+        long lineNumber = 0;
+        boolean complete = false;
+        try (BufferedReader reader = ParsingUtils.openBufferedReader(hapFile);
+             BinaryHapWriter writer = new BinaryHapWriter(outputFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    writer.add(HapLineParser.parseHapData(line));
+                } catch (ParserException e) {
+                    throw new ParserException(e.getMessage(), lineNumber, line);
+                }
+                if (lineNumber % 1000000 == 0) {
+                    log.info("Processed " + lineNumber + " lines");
+                }
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                outputFile.delete();
+            }
+        }
+    }
+
+    public void add(HapData hapData) throws IOException {
+        if (!hapData.chr.equals(chr)) {
+            if (blocks.containsKey(hapData.chr)) {
+                throw new ParserException("Records are not grouped by chromosome, " + hapData.chr + " appears twice", -1);
+            }
+            flushBlock();
+            chr = hapData.chr;
+            blocks.put(chr, new ArrayList<>());
+        } else if (hapData.start < previousStart) {
+            throw new ParserException("Records are not sorted by start", -1);
+        }
+
+        if (blockRecords == MAX_BLOCK_RECORDS || block.size() >= MAX_BLOCK_BYTES) {
+            flushBlock();
+        }
+        if (blockRecords == 0) {
+            blockFirstStart = previousStart = hapData.start;
+            blockMaxEnd = Integer.MIN_VALUE;
+        }
+
+        int n = hapData.states.length;
+        writeVarint(hapData.start - previousStart);
+        writeVarint(zigzagEncode(hapData.end - hapData.start));
+        writeVarint((n << 2) | HapStore.toByte(hapData.strand));
+        writeVarint(hapData.readCount);
+        for (int from = 0; from < n; from += 8) {
+            int b = 0;
+            for (int k = from; k < Math.min(n, from + 8); k++) {
+                if (hapData.states[k]) {
+                    b |= 1 << (k - from);
+                }
+            }
+            block.write(b);
+        }
+
+        previousStart = hapData.start;
+        blockMaxEnd = Math.max(blockMaxEnd, hapData.end);
+        blockRecords++;
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockRecords == 0) {
+            return;
+        }
+        byte[] bytes = block.toByteArray();
+
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                compressed.write(buffer, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        blocks.get(chr).add(new long[]{position, compressed.size(), bytes.length, blockRecords,
+                blockFirstStart, blockMaxEnd});
+        compressed.writeTo(out);
+        position += compressed.size();
+
+        block.reset();
+        blockRecords = 0;
+    }
+
+    public void close() throws IOException {
+        flushBlock();
+
+        long indexOffset = position;
+        out.writeInt(blocks.size());
+        for (Map.Entry<String, List<long[]>> entry : blocks.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (long[] b : entry.getValue()) {
+                out.writeLong(b[0]);
+                for (int i = 1; i < b.length; i++) {
+                    out.writeInt((int) b[i]);
+                }
+            }
+        }
+        out.writeLong(indexOffset);
+        out.close();
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            block.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        block.write(value);
+    }
+
+    static int zigzagEncode(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+}
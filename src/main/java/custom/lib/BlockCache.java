@@ -0,0 +1,42 @@
+package custom.lib;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixed size pages of a file's bytes, least recently used evicted first.  One cache is shared by all the streams of
+ * a {@link TabixReaderPool}, so a BGZF block read by one reader is served from memory to the others.
+ */
+public class BlockCache {
+
+    private final int pageSize;
+    // Read by all the streams of the pool at once, so the map is created up front rather than lazily as LRUCache does
+    private final Map<Long, byte[]> pages;
+
+    public BlockCache(int pageSize, long maxBytes) {
+        this.pageSize = pageSize;
+        int maxPages = (int) Math.max(1, maxBytes / pageSize);
+        this.pages = Collections.synchronizedMap(new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxPages;
+            }
+        });
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the page, or null if it isn't cached
+     */
+    public byte[] get(long page) {
+        return pages.get(page);
+    }
+
+    public void put(long page, byte[] bytes) {
+        pages.put(page, bytes);
+    }
+}
@@ -0,0 +1,112 @@
+package custom.lib;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.IOException;
+
+/**
+ * A stream that reads through the pages of a {@link BlockCache}.  Pages missing from the cache are read from this
+ * stream's own underlying stream, so several streams sharing a cache read concurrently.
+ */
+public class CachedSeekableStream extends SeekableStream {
+
+    private final SeekableStream wrappedStream;
+    private final BlockCache cache;
+    private final int pageSize;
+    private long position = 0;
+
+    public CachedSeekableStream(SeekableStream wrappedStream, BlockCache cache) {
+        this.wrappedStream = wrappedStream;
+        this.cache = cache;
+        this.pageSize = cache.getPageSize();
+    }
+
+    @Override
+    public long length() {
+        return wrappedStream.length();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void seek(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] page = getPage(position / pageSize);
+        int offset = (int) (position % pageSize);
+        if (offset >= page.length) {
+            return -1;
+        }
+        position++;
+        return page[offset] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int total = 0;
+        while (total < len) {
+            byte[] page = getPage(position / pageSize);
+            int offset = (int) (position % pageSize);
+            int n = Math.min(len - total, page.length - offset);
+            if (n <= 0) {
+                break; // End of file
+            }
+            System.arraycopy(page, offset, b, off + total, n);
+            position += n;
+            total += n;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    private byte[] getPage(long pageNumber) throws IOException {
+        byte[] page = cache.get(pageNumber);
+        if (page == null) {
+            long pageStart = pageNumber * pageSize;
+            long length = wrappedStream.length();
+            int size = length >= 0 ? (int) Math.max(0, Math.min(pageSize, length - pageStart)) : pageSize;
+
+            page = new byte[size];
+            wrappedStream.seek(pageStart);
+            int n = 0;
+            while (n < size) {
+                int count = wrappedStream.read(page, n, size - n);
+                if (count < 0) {
+                    break;
+                }
+                n += count;
+            }
+            if (n < size) {
+                byte[] partial = new byte[n];
+                System.arraycopy(page, 0, partial, 0, n);
+                page = partial;
+            }
+            cache.put(pageNumber, page);
+        }
+        return page;
+    }
+
+    @Override
+    public void close() throws IOException {
+        wrappedStream.close();
+    }
+
+    @Override
+    public boolean eof() {
+        long length = wrappedStream.length();
+        return length >= 0 && position >= length;
+    }
+
+    @Override
+    public String getSource() {
+        return wrappedStream.getSource();
+    }
+}
@@ -0,0 +1,251 @@
+package custom.lib;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A {@link HapDataSource} that caches the records of another source in fixed size genomic bins.  Bins are keyed by
+ * chromosome and bin number, only the bins missing from the cache are fetched, and the least recently used bins are
+ * evicted once the estimated size of the cache exceeds its memory budget.
+ * <p>
+ * Records are assigned to the bin containing their start, so a query also reads the bins up to the longest record
+ * seen before its start, as {@link IndexedHapSource} does.  The source returns the records overlapping the bins it's
+ * asked for, including those starting before them, so a query that meets a longer record than those seen so far
+ * reads further back.
+ * <p>
+ * The source is safe for concurrent queries.  Each missing bin is read once, by the query that first needs it.
+ *
+ * @see org.broad.igv.methyl.CachingMethylSource
+ */
+public class CachingHapSource implements HapDataSource {
+
+    private static Logger log = Logger.getLogger(CachingHapSource.class);
+
+    // Rough heap cost of a HapData record, excluding its states array
+    private static final int RECORD_OVERHEAD_BYTES = 80;
+
+    private HapDataSource reader;
+    private final int binSize;
+    private long maxBytes;
+    private long cachedBytes = 0;
+
+    // Longest record returned by the source
+    private int maxLength = 0;
+
+    private final LinkedHashMap<String, Bin> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    public CachingHapSource(HapDataSource reader, int binSize, long maxBytes) {
+        this.reader = reader;
+        this.binSize = binSize;
+        this.maxBytes = maxBytes;
+    }
+
+    public Iterator<HapData> query(String chr, int start, int end) throws IOException {
+
+        List<Bin> bins;
+        int lookBack;
+        do {
+            List<Bin> binsToLoad = new ArrayList<>();
+            synchronized (this) {
+                lookBack = maxLength;
+                int startBin = Math.max(0, start - lookBack) / binSize;
+                int endBin = end / binSize;    // <= inclusive
+                bins = getBins(chr, startBin, endBin, binsToLoad);
+            }
+
+            // Missing bins are read outside the lock, so queries of other loci proceed concurrently.  Queries
+            // needing a bin being read by another query wait for it.
+            if (binsToLoad.size() > 0) {
+                loadBins(chr, binsToLoad);
+            }
+            for (Bin b : bins) {
+                b.await();
+            }
+        } while (lookBack < getMaxLength());
+
+        List<HapData> records = new ArrayList<>();
+        for (Bin b : bins) {
+            for (HapData hapData : b.containedRecords) {
+                if (hapData.end >= start && hapData.start <= end) {
+                    records.add(hapData);
+                }
+            }
+        }
+
+        synchronized (this) {
+            evict();
+        }
+
+        return records.iterator();
+    }
+
+    /**
+     * Close the cached source and drop the cache.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            cache.clear();
+            cachedBytes = 0;
+        }
+        reader.close();
+    }
+
+    /**
+     * Set the memory budget of the cache, evicting bins if needed.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    private synchronized int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Return the bins spanning the query interval.  Missing bins are added to the cache, not yet loaded, and to
+     * {@code binsToLoad}.
+     */
+    private List<Bin> getBins(String chr, int startBin, int endBin, List<Bin> binsToLoad) {
+
+        List<Bin> bins = new ArrayList<>(endBin - startBin + 1);
+
+        for (int b = startBin; b <= endBin; b++) {
+            String key = chr + "_" + b;
+            Bin bin = cache.get(key);
+
+            if (bin == null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Bin cache miss: " + key);
+                }
+                bin = new Bin(key, b * binSize, (b + 1) * binSize);
+                cache.put(key, bin);
+                binsToLoad.add(bin);
+            }
+            bins.add(bin);
+        }
+
+        return bins;
+    }
+
+    /**
+     * Load the bins, reading each run of adjacent bins with a single query.
+     */
+    private void loadBins(String chr, List<Bin> bins) throws IOException {
+        int from = 0;
+        try {
+            while (from < bins.size()) {
+                int to = from + 1;
+                while (to < bins.size() && bins.get(to).start == bins.get(to - 1).end) to++;
+                loadRun(chr, bins.subList(from, to));
+                from = to;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Forget the bins not loaded, waiting queries fail and later ones retry
+            synchronized (this) {
+                for (Bin bin : bins.subList(from, bins.size())) {
+                    cache.remove(bin.key, bin);
+                }
+            }
+            for (Bin bin : bins.subList(from, bins.size())) {
+                bin.fail(e);
+            }
+            throw e;
+        }
+    }
+
+    private void loadRun(String chr, List<Bin> bins) throws IOException {
+
+        int start = bins.get(0).start;
+        int end = bins.get(bins.size() - 1).end;
+
+        Iterator<HapData> iter = reader.query(chr, start, end);
+        int runMaxLength = 0;
+        while (iter.hasNext()) {
+            HapData hapData = iter.next();
+            runMaxLength = Math.max(runMaxLength, hapData.end - hapData.start + 1);
+            int idx = (hapData.start - start) / binSize;
+            if (hapData.start >= start && idx < bins.size()) {
+                Bin bin = bins.get(idx);
+                bin.containedRecords.add(hapData);
+                bin.bytes += RECORD_OVERHEAD_BYTES + hapData.states.length;
+            }
+        }
+
+        // Bins are complete only once the whole run has been read
+        synchronized (this) {
+            maxLength = Math.max(maxLength, runMaxLength);
+            for (Bin bin : bins) {
+                if (cache.get(bin.key) == bin) {
+                    cachedBytes += bin.bytes;
+                }
+            }
+        }
+        for (Bin bin : bins) {
+            bin.complete();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Bin>> iter = cache.entrySet().iterator();
+        while (cachedBytes > maxBytes && cache.size() > 1 && iter.hasNext()) {
+            Bin bin = iter.next().getValue();
+            if (bin.isLoaded()) {
+                iter.remove();
+                cachedBytes -= bin.bytes;
+            }
+        }
+    }
+
+    static class Bin {
+
+        private final String key;
+        private final int start;
+        private final int end;
+        private long bytes = 0;
+        private final List<HapData> containedRecords = new ArrayList<>();
+
+        private boolean loaded = false;
+        private Exception error;
+
+        Bin(String key, int start, int end) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+        }
+
+        synchronized boolean isLoaded() {
+            return loaded;
+        }
+
+        synchronized void complete() {
+            loaded = true;
+            notifyAll();
+        }
+
+        synchronized void fail(Exception e) {
+            error = e;
+            notifyAll();
+        }
+
+        /**
+         * Wait until the query loading this bin is done.
+         */
+        synchronized void await() throws IOException {
+            while (!loaded) {
+                if (error != null) {
+                    throw new IOException("Failed to load " + key, error);
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while loading " + key, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package custom.lib;
+
+import org.broad.igv.ui.FontManager;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.List;
+
+/**
+ * The triangle of CpG pair diamonds of one frame, rasterized into an image.  Each diamond is filled span by span
+ * straight into the pixel array, with colors from a lookup table, and the image is drawn on every repaint until the
+ * data, the scale or the height change.
+ * <p>
+ * The image covers the whole loaded interval when it isn't too large, so panning within the interval only moves it.
+ */
+class CorrelationHeatmap {
+
+    // Past this the image only covers the visible part of the frame
+    private static final int MAX_PIXELS = 16 * 1024 * 1024;
+
+    // Labels are drawn only when they are legible
+    static final int MIN_LABEL_FONT_SIZE = 6;
+
+    private static final int[] COLORS = new int[256];
+    private static final String[] LABELS = new String[101];
+
+    static {
+        // Same colors as new Color(cor, 0, 0)
+        for (int i = 0; i < COLORS.length; i++) {
+            COLORS[i] = 0xFF000000 | (i << 16);
+        }
+        for (int i = 0; i < LABELS.length; i++) {
+            LABELS[i] = String.valueOf(i);
+        }
+    }
+
+    private final List<CorrelationData> data;
+    private final double scale;
+    private final int height;
+    private final int start;
+    private final int end;
+    private final BufferedImage image;
+
+    /**
+     * Rasterize {@code data} for bases [start, end) at {@code scale} bases per pixel.
+     */
+    CorrelationHeatmap(List<CorrelationData> data, int start, int end, double scale, int height) {
+        this.data = data;
+        this.scale = scale;
+        this.height = height;
+        this.start = start;
+        this.end = end;
+
+        int width = Math.max(1, (int) Math.ceil((end - start) / scale));
+        image = new BufferedImage(width, Math.max(1, height), BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        int dX = (int) (1.0 / scale);
+        int h = (int) (Math.sqrt(2) * dX);
+        int fontSize = (int) (dX * 0.8);
+        boolean labels = fontSize >= MIN_LABEL_FONT_SIZE;
+
+        Graphics2D g = null;
+        if (labels) {
+            g = image.createGraphics();
+            g.setFont(FontManager.getFont(Font.BOLD, fontSize));
+            g.setColor(Color.white);
+        }
+
+        for (CorrelationData cor : data) {
+            int startIdx = cor.start - start;
+            int endIdx = cor.end - start;
+            float w = endIdx - startIdx - 1;
+
+            int pX1 = (int) ((startIdx + w / 2.0) / scale);
+            int pY1 = (int) (Math.sqrt(2) * (w / 2.0) / scale);
+            if (pX1 + dX < 0 || pX1 - dX >= width) {
+                continue;
+            }
+
+            float value = Math.max(0, Math.min(1, cor.cor));
+            fillDiamond(pixels, width, height, pX1, height - pY1, dX, h, COLORS[Math.round(value * 255)]);
+
+            if (labels) {
+                String label = LABELS[Math.round(value * 100)];
+                float labelY = w == 2 ? h * 1.35f : h * 1.8f;
+                g.drawString(label, (int) (pX1 - dX * 1.2 + fontSize), (int) (height - pY1 + labelY - fontSize));
+            }
+        }
+
+        if (g != null) {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Fill the diamond with vertices (x, top), (x + dX, top + h), (x, top + 2h) and (x - dX, top + h).
+     */
+    private static void fillDiamond(int[] pixels, int width, int height, int x, int top, int dX, int h, int color) {
+        if (h <= 0) {
+            return;
+        }
+        int fromRow = Math.max(0, top);
+        int toRow = Math.min(height - 1, top + 2 * h);
+        for (int y = fromRow; y <= toRow; y++) {
+            int t = y - top;
+            int half = dX * (t <= h ? t : 2 * h - t) / h;
+            int from = Math.max(0, x - half);
+            int to = Math.min(width - 1, x + half);
+            int offset = y * width;
+            for (int px = from; px <= to; px++) {
+                pixels[offset + px] = color;
+            }
+        }
+    }
+
+    /**
+     * @return true if this image shows {@code data} for bases [start, end) at the given scale and height
+     */
+    boolean isValid(List<CorrelationData> data, int start, int end, double scale, int height) {
+        return this.data == data && this.scale == scale && this.height == height &&
+                this.start <= start && this.end >= end;
+    }
+
+    /**
+     * @return the bases [start, end) to rasterize, the loaded interval if its image isn't too large, otherwise the
+     * visible part of the frame
+     */
+    static int[] getExtent(int intervalStart, int intervalEnd, int origin, int visibleEnd, double scale, int height) {
+        long pixels = (long) Math.ceil((intervalEnd - intervalStart) / scale) * Math.max(1, height);
+        return pixels <= MAX_PIXELS ? new int[]{intervalStart, intervalEnd} : new int[]{origin, visibleEnd};
+    }
+
+    BufferedImage getImage() {
+        return image;
+    }
+
+    void draw(Graphics2D g, int origin, Rectangle rect) {
+        int x = rect.x + (int) Math.round((start - origin) / scale);
+        g.drawImage(image, x, rect.y, null);
+    }
+}
@@ -0,0 +1,15 @@
+package custom.lib;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Source of CpG pair correlations for a {@link CorrelationTrack}
+ */
+public interface CorrelationSource {
+
+    /**
+     * @return the pairs with both CpGs in [start, end]
+     */
+    List<CorrelationData> query(String chr, int start, int end) throws IOException;
+}
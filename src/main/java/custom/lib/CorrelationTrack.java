@@ -1,34 +1,54 @@
 package custom.lib;
 
 import com.jidesoft.utils.CachedArrayList;
-import htsjdk.tribble.readers.TabixReader;
 import org.apache.log4j.Logger;
 import org.broad.igv.event.IGVEventBus;
 import org.broad.igv.event.IGVEventObserver;
 import org.broad.igv.feature.Chromosome;
+import org.broad.igv.feature.Locus;
 import org.broad.igv.feature.genome.Genome;
 import org.broad.igv.feature.genome.GenomeManager;
 import org.broad.igv.track.AbstractTrack;
+import org.broad.igv.track.LoadedDataInterval;
 import org.broad.igv.track.RenderContext;
-import org.broad.igv.ui.FontManager;
+import org.broad.igv.track.TrackClickEvent;
+import org.broad.igv.ui.IGV;
+import org.broad.igv.ui.UIConstants;
 import org.broad.igv.ui.panel.FrameManager;
+import org.broad.igv.ui.panel.IGVPopupMenu;
 import org.broad.igv.ui.panel.ReferenceFrame;
+import org.broad.igv.ui.util.MessageUtils;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.*;
+import java.util.List;
+import java.util.stream.Collectors;
 
 public class CorrelationTrack extends AbstractTrack implements IGVEventObserver {
     public static ArrayList<CorrelationTrack> Instances = new ArrayList<>();
 
-    public TabixReader tabixReader;
+    // Precomputed correlations of a file, or computed from the haplotypes of a HapTrack
+    public CorrelationSource dataSource;
 
     private static Logger log = Logger.getLogger(HapTrack.class);
 
-    private ArrayList<CorrelationData> correlationDataArrayList = new ArrayList<>();
+    // Linkage is computed from the reads, which are only loaded up to this view width
+    private static final int MAX_LINKAGE_VIEW = 3000;
+
+    // Loaded pairs, by frame name
+    private volatile Map<String, LoadedDataInterval<List<CorrelationData>>> loadedIntervalCache =
+            Collections.synchronizedMap(new HashMap<>());
+
+    // Rasterized pairs, by frame name.  Only used on the event thread.
+    private final Map<String, CorrelationHeatmap> heatmapCache = new HashMap<>();
+
+    // Widest pair, in bases, of all loaded frames, which sets the track height
+    private volatile int maxPairSpan;
+
+    private final LoadTracker loadTracker = new LoadTracker();
+    private final LoadScheduler loadScheduler = new LoadScheduler(loadTracker);
 
     private int dX;
 
@@ -40,16 +60,36 @@ public class CorrelationTrack extends AbstractTrack implements IGVEventObserver
 
     @Override
     public void receiveEvent(Object event) {
-
+        if (event instanceof FrameManager.ChangeEvent) {
+            // Forget frames that no longer exist, the repaint that follows loads the new ones off the event thread.
+            Collection<ReferenceFrame> frames = ((FrameManager.ChangeEvent) event).getFrames();
+            Map<String, LoadedDataInterval<List<CorrelationData>>> newCache = Collections.synchronizedMap(new HashMap<>());
+            for (ReferenceFrame f : frames) {
+                LoadedDataInterval<List<CorrelationData>> interval = loadedIntervalCache.get(f.getName());
+                if (interval != null) {
+                    newCache.put(f.getName(), interval);
+                }
+            }
+            synchronized (this) {
+                loadedIntervalCache = newCache;
+                updateMaxPairSpan();
+            }
+            heatmapCache.keySet().retainAll(newCache.keySet());
+            loadScheduler.retainFrames(frames.stream().map(ReferenceFrame::getName).collect(Collectors.toList()));
+        } else {
+            log.info("Unknown event type: " + event.getClass());
+        }
     }
 
     @Override
     public boolean isReadyToPaint(ReferenceFrame frame) {
-        return true;
+        LoadedDataInterval<List<CorrelationData>> interval = loadedIntervalCache.get(frame.getName());
+        return interval != null && interval.contains(frame);
     }
 
     @Override
     public void load(ReferenceFrame referenceFrame) {
+        final String frameName = referenceFrame.getName();
         String chr = referenceFrame.getChrName();
 
         int start = (int) referenceFrame.getOrigin();
@@ -57,32 +97,128 @@ public class CorrelationTrack extends AbstractTrack implements IGVEventObserver
 
         int w = end - start;
 
-        if (w > 3000) {
+        if (w > MAX_LINKAGE_VIEW) {
             log.info("View range is too large");
         }
 
-        int matchStart = start - w / 2;
-        int matchEnd = end + w / 2;
+        // Loads run on IGV's loader threads.  A newer load for the same frame supersedes this one.
+        final long ticket = loadTracker.begin(frameName, chr, start, end);
+        if (ticket < 0) {
+            // A load in flight already covers the frame, returning now would leave the frame unready and have
+            // the repaint request another load straight away
+            loadTracker.awaitInFlight(frameName);
+            return;
+        }
 
-        log.info("Stream request correlation data... Starting from:" + matchStart + " to " + matchEnd + " in " + chr);
+        try {
+            // Expand for panning, further in the direction of the pan
+            int[] range = loadScheduler.getLoadRange(frameName, chr, start, end);
+            int matchStart = range[0];
+            int matchEnd = range[1];
+            loadTracker.setRange(frameName, ticket, chr, matchStart, matchEnd);
 
-        TabixReader.Iterator it = tabixReader.query(chr, matchStart, matchEnd);
-        correlationDataArrayList.clear();
+            // Let a drag settle, the loads it supersedes never query the source
+            if (!loadScheduler.awaitSettled(frameName, ticket)) {
+                return;
+            }
+
+            if (isLinkageZoomedOut(w)) {
+                // Rendered as the grey "zoom in" fill, don't read the haplotypes of the window
+                publish(frameName, ticket, new LoadedDataInterval<>(chr, matchStart, matchEnd, new ArrayList<>()));
+                return;
+            }
+
+            log.info("Stream request correlation data... Starting from:" + matchStart + " to " + matchEnd + " in " + chr);
+
+            ArrayList<CorrelationData> loadedList = new ArrayList<>();
 
-        while (true) {
             try {
-                String str = it.next();
+                loadedList.addAll(dataSource.query(chr, matchStart, matchEnd));
+            } catch (IOException exception) {
+                MessageUtils.showErrorMessage("Failed to load correlation data of " + chr + ":" + matchStart + "-" + matchEnd, exception);
+            }
+
+            if (!loadTracker.isCurrent(frameName, ticket)) {
+                log.debug("Superseded load of " + chr + ":" + matchStart + "-" + matchEnd);
+                return;
+            }
+
+            if (!publish(frameName, ticket, new LoadedDataInterval<>(chr, matchStart, matchEnd, loadedList))) {
+                return;
+            }
+
+            // Warm the source with the pairs of the next window while the user pans
+            int chromosomeLength = GenomeManager.getInstance().getCurrentGenome().getChromosome(chr).getLength();
+            loadScheduler.prefetch(frameName, chr, Math.max(0, matchStart), matchEnd, chromosomeLength,
+                    (c, s, e) -> dataSource.query(c, s, e));
+        } finally {
+            loadTracker.finish(frameName, ticket);
+        }
+    }
+
+    @Override
+    public IGVPopupMenu getPopupMenu(final TrackClickEvent te) {
+        IGVPopupMenu menu = new IGVPopupMenu();
+
+        if (dataSource instanceof LinkageCorrelationSource) {
+            final LinkageCorrelationSource linkage = (LinkageCorrelationSource) dataSource;
+            ButtonGroup group = new ButtonGroup();
+            for (LinkageEngine.Measure measure : LinkageEngine.Measure.values()) {
+                JRadioButtonMenuItem measureItem = new JRadioButtonMenuItem(measure.getLabel(), linkage.getMeasure() == measure);
+                measureItem.addActionListener(e -> {
+                    linkage.setMeasure(measure);
+                    reload();
+                });
+                group.add(measureItem);
+                menu.add(measureItem);
+            }
+        }
+
+        return menu;
+    }
+
+    /**
+     * Make the result of a load visible to {@link #render}, unless the load has been superseded in the meantime.
+     */
+    private synchronized boolean publish(String frameName, long ticket, LoadedDataInterval<List<CorrelationData>> interval) {
+        if (!loadTracker.isCurrent(frameName, ticket)) {
+            return false;
+        }
+        loadedIntervalCache.put(frameName, interval);
+        updateMaxPairSpan();
+        return true;
+    }
 
-                if (str == null) {
-                    break;
+    /**
+     * @return true if the view is too wide to compute the linkage of its CpGs
+     */
+    private boolean isLinkageZoomedOut(double viewWidth) {
+        return dataSource instanceof LinkageCorrelationSource && viewWidth > MAX_LINKAGE_VIEW;
+    }
+
+    /**
+     * Drop the loaded data so the next repaint reloads it.
+     */
+    private void reload() {
+        loadTracker.cancelAll();
+        synchronized (this) {
+            loadedIntervalCache.clear();
+            maxPairSpan = 0;
+        }
+        heatmapCache.clear();
+        IGV.getInstance().repaint();
+    }
+
+    private synchronized void updateMaxPairSpan() {
+        int span = 0;
+        synchronized (loadedIntervalCache) {
+            for (LoadedDataInterval<List<CorrelationData>> interval : loadedIntervalCache.values()) {
+                for (CorrelationData cor : interval.getFeatures()) {
+                    span = Math.max(span, cor.end - cor.start);
                 }
-                CorrelationData correlationData = CustomUtility.CreateCorrelationFromString(str.split("[\\s\t]+"));
-                correlationDataArrayList.add(correlationData);
-            } catch (IOException exception) {
-                exception.printStackTrace();
-                JOptionPane.showConfirmDialog(null, "Failed to load .tbi file! You should put .tbi file in the same folder.", "Exception", JOptionPane.ERROR_MESSAGE);
             }
         }
+        maxPairSpan = span;
     }
 
     @Override
@@ -94,54 +230,31 @@ public class CorrelationTrack extends AbstractTrack implements IGVEventObserver
 
         dX = (int) (1.0 / locScale);
 
-        Graphics2D g = context.getGraphics2D("SEQUENCE");
-
-        int fontSize = (int) (dX * 0.8);
-        Font f = FontManager.getFont(Font.BOLD, fontSize);
-        g.setFont(f);
-
+        String frameName = context.getReferenceFrame().getName();
+        LoadedDataInterval<List<CorrelationData>> interval = loadedIntervalCache.get(frameName);
+        if (interval == null) {
+            return;
+        }
+        if (isLinkageZoomedOut(context.getReferenceFrame().getEnd() - context.getOrigin())) {
+            context.getGraphic2DForColor(UIConstants.LIGHT_GREY).fill(rect);
+            return;
+        }
+        List<CorrelationData> data = interval.getFeatures();
         int height = getHeight();
 
-        for (CorrelationData cor : correlationDataArrayList) {
-            int startIdx = cor.start - start;
-            int endIdx = cor.end - start;
-
-
-            float w = endIdx - startIdx - 1;
-
-            int pX1 = (int) ((startIdx + w / 2.0) / locScale);
-            int pY1 = (int) (Math.sqrt(2) * (w / 2.0) / locScale);
-            int h = (int) (Math.sqrt(2) * dX);
-
-            g.setColor(new Color(cor.cor, 0, 0));
-
-            Polygon polygon = new Polygon();
-            polygon.addPoint(pX1, height - pY1);
-            polygon.addPoint(pX1 + dX, height - pY1 + h);
-            polygon.addPoint(pX1, height - pY1 + 2 * h);
-            polygon.addPoint(pX1 - dX, height - pY1 + h);
-            polygon.addPoint(pX1, height - pY1);
-            g.fillPolygon(polygon);
-
-            var chars = String.valueOf(Math.round(100 * cor.cor)).toCharArray();
-
-            g.setColor(Color.white);
-
-            if (w == 2) {
-                g.drawChars(chars, 0, chars.length, (int) (pX1 - dX * 1.2 + fontSize), (int) (height - pY1 + h * 1.35 - fontSize));
-            } else {
-                g.drawChars(chars, 0, chars.length, (int) (pX1 - dX * 1.2 + fontSize), (int) (height - pY1 + h * 1.8 - fontSize));
-            }
+        CorrelationHeatmap heatmap = heatmapCache.get(frameName);
+        if (heatmap == null || !heatmap.isValid(data, start, end, locScale, height)) {
+            Locus range = interval.range;
+            int[] extent = CorrelationHeatmap.getExtent(range.getStart(), range.getEnd(), start, end, locScale, height);
+            heatmap = new CorrelationHeatmap(data, extent[0], extent[1], locScale, height);
+            heatmapCache.put(frameName, heatmap);
         }
+
+        heatmap.draw(context.getGraphics2D("SEQUENCE"), start, rect);
     }
 
     @Override
     public int getHeight() {
-        if (correlationDataArrayList.size() > 0) {
-            CorrelationData target = correlationDataArrayList.stream().max((a, b) -> Integer.compare(a.end - a.start, b.end - b.start)).get();
-            return (int) (150 + Math.sqrt(2) * dX * (target.end - target.start) / 2);
-        } else {
-            return 150;
-        }
+        return (int) (150 + Math.sqrt(2) * dX * maxPairSpan / 2);
     }
 }
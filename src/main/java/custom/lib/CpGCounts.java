@@ -0,0 +1,103 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+
+import java.util.List;
+
+/**
+ * Methylated and total read counts of each CpG of a loaded interval, weighted by the read count of the records, for
+ * the mean bars of {@link HapTrack}.  The counts are accumulated once per load into arrays indexed by the ordinal of
+ * the CpG in the interval, so drawing the bars is a linear pass.
+ * <p>
+ * Unless the strands are combined, reverse strand reads are counted apart: their CpGs are drawn on the G.
+ */
+public class CpGCounts {
+
+    public static final int FORWARD = 0;
+    public static final int REVERSE = 1;
+
+    private final int[] cpgs;
+    private final int[][] methylated;
+    private final int[][] total;
+
+    private CpGCounts(int[] cpgs) {
+        this.cpgs = cpgs;
+        this.methylated = new int[2][cpgs.length];
+        this.total = new int[2][cpgs.length];
+    }
+
+    public static CpGCounts empty() {
+        return new CpGCounts(new int[0]);
+    }
+
+    /**
+     * @param cpgs           0-based positions of the C of the CpGs counted, sorted, as returned by
+     *                       {@link CpGIndex#getCpGs}
+     * @param combineStrands count the reverse strand reads with the forward ones
+     */
+    public static CpGCounts count(List<HapData> haps, int[] cpgs, CpGIndex cpgIndex, boolean combineStrands) {
+        CpGCounts counts = new CpGCounts(cpgs);
+        if (cpgs.length == 0) {
+            return counts;
+        }
+
+        for (HapData hapData : haps) {
+            // The first state belongs to the CpG at start - 1, the last CpG is before end + 1
+            int first = hapData.start - 1;
+            if (hapData.end + 1 <= cpgs[0] || first > cpgs[cpgs.length - 1]) {
+                continue;
+            }
+
+            int k = 0;
+            int o;
+            if (first >= cpgs[0]) {
+                o = CpGIndex.lowerBound(cpgs, first);
+            } else {
+                // Skip the states of the CpGs before the interval
+                k = cpgIndex.getCpGs(hapData.chr, first, cpgs[0]).length;
+                o = 0;
+            }
+
+            int strand = hapData.strand == Strand.NEGATIVE && !combineStrands ? REVERSE : FORWARD;
+            int[] m = counts.methylated[strand];
+            int[] t = counts.total[strand];
+            for (; k < hapData.states.length && o < cpgs.length && cpgs[o] <= hapData.end; k++, o++) {
+                t[o] += hapData.readCount;
+                if (hapData.states[k]) {
+                    m[o] += hapData.readCount;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return the number of CpGs
+     */
+    public int size() {
+        return cpgs.length;
+    }
+
+    /**
+     * @return the 0-based position of the C of CpG {@code i}
+     */
+    public int getPosition(int i) {
+        return cpgs[i];
+    }
+
+    public int getMethylated(int strand, int i) {
+        return methylated[strand][i];
+    }
+
+    public int getTotal(int strand, int i) {
+        return total[strand][i];
+    }
+
+    /**
+     * @return the methylation level of CpG {@code i}, NaN if no read covers it
+     */
+    public double getMean(int strand, int i) {
+        int n = total[strand][i];
+        return n == 0 ? Double.NaN : (double) methylated[strand][i] / n;
+    }
+}
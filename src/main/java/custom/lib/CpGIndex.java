@@ -0,0 +1,134 @@
+package custom.lib;
+
+import org.broad.igv.feature.genome.Genome;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sorted CpG positions of the genome, used to map the pattern bits of a read to coordinates.
+ * <p>
+ * Positions are found once per tile of the reference, aligned with the sequence tiles the genome caches, and kept
+ * in an LRU cache.  Looking up the CpGs of a read is then a binary search plus an array slice, instead of a scan of
+ * the reference bases on every repaint.
+ */
+public class CpGIndex {
+
+    static final int TILE_SIZE = 1000000;
+    private static final int MAX_TILES = 50;
+    private static final int[] EMPTY = new int[0];
+
+    private static CpGIndex instance;
+
+    private final Genome genome;
+    // Tiles by chromosome and index, least recently used first.  Shared by the loader, prefetch and sample query
+    // threads, so the map is created up front rather than lazily as LRUCache does.
+    private final Map<String, int[]> tiles = Collections.synchronizedMap(new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > MAX_TILES;
+        }
+    });
+
+    /**
+     * @return the index of {@code genome}.  Only the index of the current genome is kept.
+     */
+    public static synchronized CpGIndex getInstance(Genome genome) {
+        if (instance == null || instance.genome != genome) {
+            instance = new CpGIndex(genome);
+        }
+        return instance;
+    }
+
+    CpGIndex(Genome genome) {
+        this.genome = genome;
+    }
+
+    /**
+     * @return the 0-based positions of the C of each CpG in [start, end), sorted
+     */
+    public int[] getCpGs(String chr, int start, int end) {
+        start = Math.max(0, start);
+        if (end <= start) {
+            return EMPTY;
+        }
+
+        int firstTile = start / TILE_SIZE;
+        int lastTile = (end - 1) / TILE_SIZE;
+        if (firstTile == lastTile) {
+            return slice(getTile(chr, firstTile), start, end);
+        }
+
+        int[][] slices = new int[lastTile - firstTile + 1][];
+        int n = 0;
+        for (int t = firstTile; t <= lastTile; t++) {
+            slices[t - firstTile] = slice(getTile(chr, t), start, end);
+            n += slices[t - firstTile].length;
+        }
+        int[] result = new int[n];
+        int offset = 0;
+        for (int[] slice : slices) {
+            System.arraycopy(slice, 0, result, offset, slice.length);
+            offset += slice.length;
+        }
+        return result;
+    }
+
+    private static int[] slice(int[] positions, int start, int end) {
+        int from = lowerBound(positions, start);
+        int to = lowerBound(positions, end);
+        return from == to ? EMPTY : Arrays.copyOfRange(positions, from, to);
+    }
+
+    /**
+     * @return index of the first position >= {@code value}
+     */
+    static int lowerBound(int[] positions, int value) {
+        int lo = 0;
+        int hi = positions.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (positions[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int[] getTile(String chr, int tile) {
+        String key = chr + "_" + tile;
+        int[] positions = tiles.get(key);
+        if (positions == null) {
+            positions = loadTile(chr, tile);
+            tiles.put(key, positions);
+        }
+        return positions;
+    }
+
+    private int[] loadTile(String chr, int tile) {
+        int tileStart = tile * TILE_SIZE;
+
+        // One extra base for a CpG spanning the tile boundary
+        byte[] seq = genome.getSequence(chr, tileStart, tileStart + TILE_SIZE + 1);
+        if (seq == null) {
+            return EMPTY;
+        }
+
+        int[] positions = new int[1024];
+        int n = 0;
+        int limit = Math.min(seq.length - 1, TILE_SIZE);
+        for (int i = 0; i < limit; i++) {
+            if ((seq[i] == 'C' || seq[i] == 'c') && (seq[i + 1] == 'G' || seq[i + 1] == 'g')) {
+                if (n == positions.length) {
+                    positions = Arrays.copyOf(positions, 2 * n);
+                }
+                positions[n++] = tileStart + i;
+            }
+        }
+        return Arrays.copyOf(positions, n);
+    }
+}
@@ -0,0 +1,238 @@
+package custom.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges haplotypes with the same chromosome, start, end, methylation pattern and strand, summing their read
+ * counts.
+ * <p>
+ * Records are added one at a time, so the aggregation can run while a query is being streamed, by the track as well
+ * as by exporters.  Patterns are packed 64 CpGs per long and hashed together with the coordinates into an
+ * open-addressing table of primitive arrays; no key objects are built per record.  Results keep the order in which
+ * each distinct haplotype was first seen.
+ */
+public class HapAggregator {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final boolean combineStrand;
+
+    // Distinct haplotypes, by entry index.  The first record seen is kept as template for chr and states.
+    private HapData[] templates = new HapData[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private byte[] strands = new byte[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int[] wordOffsets = new int[INITIAL_CAPACITY + 1];
+    private long[] words = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // Open-addressing table of entry index + 1, 0 marks an empty slot.  Capacity is a power of 2.
+    private int[] table = new int[2 * INITIAL_CAPACITY];
+
+    // Packed pattern and key of the record being added
+    private long[] scratch = new long[4];
+    private int pendingStart, pendingEnd, pendingLength, pendingHash;
+    private byte pendingStrand;
+
+    /**
+     * @param combineStrand if true, haplotypes on different strands are merged as well
+     */
+    public HapAggregator(boolean combineStrand) {
+        this.combineStrand = combineStrand;
+    }
+
+    /**
+     * Add a record, merging it with an identical haplotype added before.
+     */
+    public void add(HapData hapData) {
+        int nWords = (hapData.states.length + 63) >>> 6;
+        if (scratch.length < nWords) {
+            scratch = new long[nWords];
+        }
+        Arrays.fill(scratch, 0, nWords, 0L);
+        for (int k = 0; k < hapData.states.length; k++) {
+            if (hapData.states[k]) {
+                scratch[k >>> 6] |= 1L << (k & 63);
+            }
+        }
+        int index = find(hapData.chr, hapData.start, hapData.end, hapData.states.length,
+                HapStore.toByte(hapData.strand), nWords);
+        if (index >= 0) {
+            counts[index] += hapData.readCount;
+        } else {
+            insert(hapData, nWords, hapData.readCount);
+        }
+    }
+
+    /**
+     * Add record {@code record} of a store, reading its packed pattern directly.  The {@code HapData} view is only
+     * created for haplotypes not seen before.
+     */
+    public void add(HapStore store, int record) {
+        int length = store.getPatternLength(record);
+        int nWords = (length + 63) >>> 6;
+        if (scratch.length < nWords) {
+            scratch = new long[nWords];
+        }
+        for (int w = 0; w < nWords; w++) {
+            scratch[w] = store.getPatternWord(record, w);
+        }
+        int index = find(store.getChromosome(record), store.getStart(record), store.getEnd(record), length,
+                store.getStrandByte(record), nWords);
+        if (index >= 0) {
+            counts[index] += store.getCount(record);
+        } else {
+            insert(store.get(record), nWords, store.getCount(record));
+        }
+    }
+
+    /**
+     * Look up the haplotype whose pattern is in {@code scratch}.  The key of a new haplotype is left in the pending
+     * fields for {@link #insert}.
+     *
+     * @return the entry index, or -1 if the haplotype is new
+     */
+    private int find(String chr, int start, int end, int length, byte strand, int nWords) {
+        if (combineStrand) {
+            strand = HapStore.STRAND_NONE;
+        }
+        int hash = hash(chr, start, end, length, strand, nWords);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int i = table[slot] - 1;
+            if (hashes[i] == hash && starts[i] == start && ends[i] == end && lengths[i] == length &&
+                    strands[i] == strand && samePattern(i, nWords) && templates[i].chr.equals(chr)) {
+                return i;
+            }
+        }
+        pendingStart = start;
+        pendingEnd = end;
+        pendingLength = length;
+        pendingStrand = strand;
+        pendingHash = hash;
+        return -1;
+    }
+
+    private void insert(HapData template, int nWords, int count) {
+        if (size == starts.length) {
+            grow();
+        }
+        int wordOffset = wordOffsets[size];
+        if (wordOffset + nWords > words.length) {
+            words = Arrays.copyOf(words, Math.max(2 * words.length, wordOffset + nWords));
+        }
+        System.arraycopy(scratch, 0, words, wordOffset, nWords);
+
+        templates[size] = template;
+        starts[size] = pendingStart;
+        ends[size] = pendingEnd;
+        lengths[size] = pendingLength;
+        strands[size] = pendingStrand;
+        counts[size] = count;
+        hashes[size] = pendingHash;
+        wordOffsets[size + 1] = wordOffset + nWords;
+        size++;
+
+        if (2 * size > table.length) {
+            rehash(2 * table.length);
+        } else {
+            place(size - 1);
+        }
+    }
+
+    private boolean samePattern(int i, int nWords) {
+        int offset = wordOffsets[i];
+        if (wordOffsets[i + 1] - offset != nWords) {
+            return false;
+        }
+        for (int w = 0; w < nWords; w++) {
+            if (words[offset + w] != scratch[w]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(String chr, int start, int end, int length, byte strand, int nWords) {
+        long h = chr.hashCode();
+        h = h * 31 + start;
+        h = h * 31 + end;
+        h = h * 31 + length;
+        h = h * 31 + strand;
+        for (int w = 0; w < nWords; w++) {
+            h = h * 31 + scratch[w];
+        }
+        // Spread the bits, the table index uses the low ones
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void place(int i) {
+        int mask = table.length - 1;
+        int slot = hashes[i] & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = i + 1;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            place(i);
+        }
+    }
+
+    private void grow() {
+        int capacity = 2 * starts.length;
+        templates = Arrays.copyOf(templates, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        strands = Arrays.copyOf(strands, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        wordOffsets = Arrays.copyOf(wordOffsets, capacity + 1);
+    }
+
+    /**
+     * @return the number of distinct haplotypes
+     */
+    public int size() {
+        return size;
+    }
+
+    public HapData getTemplate(int i) {
+        return templates[i];
+    }
+
+    /**
+     * @return the summed read count of distinct haplotype {@code i}
+     */
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    /**
+     * @return one record per distinct haplotype, carrying the summed read count
+     */
+    public List<HapData> getResults() {
+        List<HapData> results = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            HapData t = templates[i];
+            results.add(new HapData(t.chr, t.start, t.end, t.states, counts[i], t.strand));
+        }
+        return results;
+    }
+
+    public void clear() {
+        Arrays.fill(templates, 0, size, null);
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+}
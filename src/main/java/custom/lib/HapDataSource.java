@@ -0,0 +1,23 @@
+package custom.lib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A source of haplotype (mHap) records.
+ */
+public interface HapDataSource extends Closeable {
+
+    /**
+     * Return the records on {@code chr} overlapping {@code start}-{@code end}.
+     */
+    Iterator<HapData> query(String chr, int start, int end) throws IOException;
+
+    /**
+     * Release the files held by the source.  Sources held in memory have nothing to release.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,102 @@
+package custom.lib;
+
+import org.broad.igv.sam.DownsampledInterval;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Bounds the number of reads drawn in "Show Full Reads" mode, like the sampling windows of
+ * {@link org.broad.igv.sam.AlignmentTileLoader}: at most {@code samplingDepth} reads starting in each window of
+ * {@code samplingWindowSize} bases are kept, chosen by reservoir sampling.  A window starts at the first read after
+ * the previous window.
+ * <p>
+ * Records are sampled read by read, a record of count c standing for c reads, without expanding them first: only the
+ * kept reads are allocated, and the copies of one record share a single object.  Windows that lost reads are
+ * reported as {@link DownsampledInterval}s.
+ */
+public class HapDownsampler {
+
+    private final int samplingWindowSize;
+    private final int samplingDepth;
+    private final Random random;
+
+    private final List<HapData> kept = new ArrayList<>();
+    private final List<DownsampledInterval> downsampledIntervals = new ArrayList<>();
+
+    public HapDownsampler(int samplingWindowSize, int samplingDepth) {
+        this(samplingWindowSize, samplingDepth, new Random());
+    }
+
+    HapDownsampler(int samplingWindowSize, int samplingDepth, Random random) {
+        this.samplingWindowSize = Math.max(1, samplingWindowSize);
+        this.samplingDepth = Math.max(1, samplingDepth);
+        this.random = random;
+    }
+
+    /**
+     * Sample the reads of {@code records}, in any order.
+     */
+    public void sample(List<HapData> records) {
+        List<HapData> sorted = new ArrayList<>(records);
+        sorted.sort(Comparator.comparingInt(h -> h.start));
+
+        HapData[] reservoir = new HapData[samplingDepth];
+        // The single read copy of each record, shared by its kept reads
+        HapData[] units = new HapData[sorted.size()];
+
+        int windowStart = Integer.MIN_VALUE;
+        long seen = 0;
+        int filled = 0;
+        for (int r = 0; r < sorted.size(); r++) {
+            HapData record = sorted.get(r);
+            if (windowStart == Integer.MIN_VALUE || record.start >= windowStart + samplingWindowSize) {
+                flushWindow(reservoir, filled, windowStart, seen);
+                windowStart = record.start;
+                seen = 0;
+                filled = 0;
+            }
+
+            for (int c = 0; c < record.readCount; c++) {
+                seen++;
+                int slot;
+                if (filled < samplingDepth) {
+                    slot = filled++;
+                } else {
+                    long j = (long) (random.nextDouble() * seen);
+                    if (j >= samplingDepth) {
+                        continue;
+                    }
+                    slot = (int) j;
+                }
+                if (units[r] == null) {
+                    units[r] = new HapData(record.chr, record.start, record.end, record.states, 1, record.strand);
+                }
+                reservoir[slot] = units[r];
+            }
+        }
+        flushWindow(reservoir, filled, windowStart, seen);
+    }
+
+    private void flushWindow(HapData[] reservoir, int filled, int windowStart, long seen) {
+        for (int i = 0; i < filled; i++) {
+            kept.add(reservoir[i]);
+        }
+        if (seen > filled) {
+            downsampledIntervals.add(new DownsampledInterval(windowStart, windowStart + samplingWindowSize, (int) (seen - filled)));
+        }
+    }
+
+    /**
+     * @return the kept reads, each of count 1
+     */
+    public List<HapData> getReads() {
+        return kept;
+    }
+
+    public List<DownsampledInterval> getDownsampledIntervals() {
+        return downsampledIntervals;
+    }
+}
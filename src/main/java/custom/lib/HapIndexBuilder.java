@@ -0,0 +1,300 @@
+package custom.lib;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import org.apache.log4j.Logger;
+import org.broad.igv.DirectoryManager;
+import org.broad.igv.event.IGVEventBus;
+import org.broad.igv.event.IGVEventObserver;
+import org.broad.igv.event.StopEvent;
+import org.broad.igv.tools.sort.HapSorter;
+import org.broad.igv.ui.IGV;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Streamed fallback for .hap files too large to be loaded into the heap: the file is sorted, bgzipped and tabix
+ * indexed into {@code <name>.sorted.hap.gz} with "igvtools sort", and the copy is streamed instead.  A copy newer
+ * than the file is reused.
+ * <p>
+ * The copy goes next to the file, or into the IGV directory or the temporary directory when the file's directory
+ * isn't writable.  Its first line names the file it was made from, and a file without that line is never
+ * replaced, so a file of the user's that happens to have the copy's name is left alone.  The copy is written under
+ * a temporary name and renamed once complete, so an interrupted build is never taken for a copy.  Records the sort
+ * can't hold in memory are spilled to the temporary directory.  Progress is reported on the IGV status bar, and
+ * the status bar's stop button cancels the build.
+ */
+public class HapIndexBuilder implements IGVEventObserver {
+
+    private static Logger log = Logger.getLogger(HapIndexBuilder.class);
+
+    // Rough peak heap cost of a record loaded by ParallelHapLoader: the columns of the chunk stores and of the
+    // merged store, and the pattern pool
+    static final int BYTES_PER_RECORD = 64;
+
+    // Bytes sampled at the start of the file to estimate the line length
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    static final String COPY_SUFFIX = ".sorted.hap.gz";
+
+    // First line of a copy, followed by the absolute path of the file it was made from
+    private static final String COPY_HEADER = "#sorted copy of ";
+
+    private final File[] fallbackDirectories;
+
+    private volatile boolean cancelled = false;
+
+    public HapIndexBuilder() {
+        this(new File(DirectoryManager.getIgvDirectory(), "hap"),
+                new File(System.getProperty("java.io.tmpdir"), System.getProperty("user.name")));
+    }
+
+    /**
+     * @param fallbackDirectories directories of the copy, in order of preference, when the file's directory isn't
+     *                            writable
+     */
+    HapIndexBuilder(File... fallbackDirectories) {
+        this.fallbackDirectories = fallbackDirectories;
+    }
+
+    /**
+     * @return the sorted, bgzipped and indexed copy of {@code hapFile} if there is one newer than the file, null
+     * otherwise
+     */
+    public File findIndexedCopy(File hapFile) {
+        for (File copy : getCopyLocations(hapFile)) {
+            File index = new File(copy.getPath() + ".tbi");
+            if (copy.isFile() && index.isFile() && copy.lastModified() >= hapFile.lastModified() &&
+                    isCopyOf(copy, hapFile)) {
+                return copy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the places the copy of {@code hapFile} may go, in order of preference
+     */
+    List<File> getCopyLocations(File hapFile) {
+        File file = hapFile.getAbsoluteFile();
+        String name = file.getName();
+        String base = name.endsWith(".hap") ? name.substring(0, name.length() - 4) : name;
+        List<File> locations = new ArrayList<>();
+        locations.add(new File(file.getParentFile(), base + COPY_SUFFIX));
+        // Copies of files of the same name in different directories share the fallback directories
+        String unique = base + "-" + Integer.toHexString(file.getPath().hashCode()) + COPY_SUFFIX;
+        for (File directory : fallbackDirectories) {
+            locations.add(new File(directory, unique));
+        }
+        return locations;
+    }
+
+    /**
+     * @return true if {@code copy} starts with the header naming {@code hapFile}, i.e. it was written by this class
+     */
+    static boolean isCopyOf(File copy, File hapFile) {
+        if (!copy.isFile()) {
+            return false;
+        }
+        try (BlockCompressedInputStream in = new BlockCompressedInputStream(copy)) {
+            return getCopyHeader(hapFile).equals(in.readLine());
+        } catch (IOException | RuntimeException e) {
+            // Not bgzipped, not ours
+            return false;
+        }
+    }
+
+    private static String getCopyHeader(File hapFile) {
+        return COPY_HEADER + hapFile.getAbsolutePath();
+    }
+
+    /**
+     * @return true if loading {@code hapFile} into memory would likely leave less than half the heap available
+     */
+    public static boolean fitsInHeap(File hapFile) throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return fitsInHeap(estimateRecordCount(hapFile), available);
+    }
+
+    static boolean fitsInHeap(long records, long availableBytes) {
+        return records * BYTES_PER_RECORD < availableBytes / 2;
+    }
+
+    /**
+     * Estimate the number of records from the file length and the length of the lines at the start of the file.
+     * Unlike {@link org.broad.igv.util.ParsingUtils#estimateLineCount} the estimate doesn't overflow for files of
+     * tens of gigabytes.
+     */
+    static long estimateRecordCount(File hapFile) throws IOException {
+        long length = hapFile.length();
+        byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, length)];
+        int n = 0;
+        try (InputStream in = new FileInputStream(hapFile)) {
+            int read;
+            while (n < sample.length && (read = in.read(sample, n, sample.length - n)) > 0) {
+                n += read;
+            }
+        }
+        int lines = 0;
+        int lastNewline = -1;
+        for (int i = 0; i < n; i++) {
+            if (sample[i] == '\n') {
+                lines++;
+                lastNewline = i;
+            }
+        }
+        if (lines == 0) {
+            return n == 0 ? 0 : 1;
+        }
+        double bytesPerLine = (lastNewline + 1) / (double) lines;
+        return (long) Math.ceil(length / bytesPerLine);
+    }
+
+    /**
+     * Build the indexed copy of {@code hapFile}.
+     *
+     * @return the copy
+     * @throws CancellationException if the build is cancelled with the stop button
+     */
+    public File build(File hapFile) throws IOException {
+        File copy = null;
+        File partial = null;
+        for (File location : getCopyLocations(hapFile)) {
+            File index = new File(location.getPath() + ".tbi");
+            if ((location.exists() || index.exists()) && !isCopyOf(location, hapFile)) {
+                log.info("Not replacing " + location.getAbsolutePath() + ", it isn't a copy of " + hapFile.getName());
+                continue;
+            }
+            File directory = location.getParentFile();
+            try {
+                if (!directory.isDirectory()) {
+                    Files.createDirectories(directory.toPath());
+                }
+                // Next to the copy, so the rename doesn't cross file systems
+                partial = File.createTempFile(location.getName() + ".", ".part.gz", directory);
+                copy = location;
+                break;
+            } catch (IOException e) {
+                log.info("Can't write the indexed copy of " + hapFile.getName() + " to " + directory + ": " + e.getMessage());
+            }
+        }
+        if (copy == null) {
+            throw new IOException("No writable directory for the indexed copy of " + hapFile.getName());
+        }
+        File partialIndex = new File(partial.getPath() + ".tbi");
+
+        long t0 = System.currentTimeMillis();
+        IGVEventBus.getInstance().subscribe(StopEvent.class, this);
+        if (IGV.hasInstance()) {
+            IGV.getInstance().enableStopButton(true);
+        }
+
+        boolean complete = false;
+        try {
+            long totalBytes = Math.max(1, hapFile.length());
+            HapSorter sorter = new HapSorter(hapFile, partial) {
+                @Override
+                protected InputStream openInputStream(File inputFile) throws IOException {
+                    return new ProgressInputStream(super.openInputStream(inputFile), totalBytes, hapFile.getName());
+                }
+
+                @Override
+                protected Writer openWriter(File outputFile) throws IOException {
+                    Writer writer = super.openWriter(outputFile);
+                    writer.write(getCopyHeader(hapFile) + "\n");
+                    return writer;
+                }
+            };
+            sorter.run();
+
+            if (cancelled) {
+                throw new CancellationException("Indexing " + hapFile.getName() + " cancelled");
+            }
+            if (!partialIndex.isFile()) {
+                throw new IOException("Failed to index " + hapFile.getName());
+            }
+
+            // The data first: a copy without its index isn't taken for complete.  Only an earlier copy is replaced.
+            Files.move(partial.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(partialIndex.toPath(), new File(copy.getPath() + ".tbi").toPath(), StandardCopyOption.REPLACE_EXISTING);
+            complete = true;
+
+            log.info("Indexed " + hapFile.getName() + " into " + copy.getAbsolutePath() + " in " + (System.currentTimeMillis() - t0) + " ms");
+            return copy;
+        } finally {
+            IGVEventBus.getInstance().unsubscribe(this);
+            if (IGV.hasInstance()) {
+                IGV.getInstance().enableStopButton(false);
+                IGV.getInstance().resetStatusMessage();
+            }
+            if (!complete) {
+                partial.delete();
+                partialIndex.delete();
+            }
+        }
+    }
+
+    @Override
+    public void receiveEvent(Object event) {
+        if (event instanceof StopEvent) {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Reports the sort's progress through the file, and stops it once cancelled.  The sort's parser treats read
+     * errors as the end of the file, so cancelling throws an unchecked exception.
+     */
+    private class ProgressInputStream extends FilterInputStream {
+
+        private final long totalBytes;
+        private final String fileName;
+        private long bytesRead;
+        private int reportedPercent = -1;
+
+        ProgressInputStream(InputStream in, long totalBytes, String fileName) {
+            super(in);
+            this.totalBytes = totalBytes;
+            this.fileName = fileName;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                advance(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                advance(n);
+            }
+            return n;
+        }
+
+        private void advance(int n) {
+            if (cancelled) {
+                throw new CancellationException("Indexing " + fileName + " cancelled");
+            }
+            bytesRead += n;
+            int percent = (int) (100 * bytesRead / totalBytes);
+            if (percent > reportedPercent) {
+                reportedPercent = percent;
+                if (IGV.hasInstance()) {
+                    IGV.getInstance().setStatusBarMessage(percent < 100 ?
+                            "Sorting " + fileName + " for streaming: " + percent + "%" :
+                            "Writing the indexed copy of " + fileName);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package custom.lib;
+
+import org.broad.igv.exceptions.ParserException;
+import org.broad.igv.feature.Strand;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Parser for mHap lines (chr, start, end, pattern, count, strand) and correlation lines (chr, start, end, cor).
+ * <p>
+ * Files are read through a reusable byte buffer and each line is tokenized in place, straight into the primitive
+ * columns of a {@link HapStore.Builder}.  Apart from a new chromosome name nothing is allocated per line, in
+ * contrast to the Scanner / regex split path of {@link TSVReader} and {@link CustomUtility}.  Lines returned by
+ * tabix are parsed the same way from the {@code String}, without splitting it.
+ */
+public class HapLineParser implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private long lineNumber = 0;
+
+    // Bytes of the chromosome name of the previous line, and its id in the builder.  Files are sorted, so this
+    // almost always saves the lookup.
+    private byte[] lastChr = new byte[64];
+    private int lastChrLength = -1;
+    private int lastChrId = -1;
+    private HapStore.Builder lastBuilder;
+
+    // Token boundaries of the current line, reused for every line
+    private final int[] tokenStarts = new int[6];
+    private final int[] tokenEnds = new int[6];
+
+    public HapLineParser(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public HapLineParser(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Parse the next mHap record of the stream into {@code builder}.  Blank lines and lines starting with '#' are
+     * skipped.
+     *
+     * @return false at the end of the stream
+     */
+    public boolean next(HapStore.Builder builder) throws IOException {
+        int lineEnd;
+        while ((lineEnd = nextLineEnd()) >= 0) {
+            int lineStart = pos;
+            pos = lineEnd + 1;
+            lineNumber++;
+            if (parseLine(buffer, lineStart, lineEnd, builder)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse every remaining record of the stream into {@code builder}.
+     *
+     * @return the number of records parsed
+     */
+    public int parseAll(HapStore.Builder builder) throws IOException {
+        int count = 0;
+        while (next(builder)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Make sure the buffer holds a complete line starting at {@code pos}.
+     *
+     * @return the index of the line terminator (or the end of the data for a last, unterminated line), or -1 at the
+     * end of the stream
+     */
+    private int nextLineEnd() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    return i;
+                }
+            }
+            if (eof) {
+                return pos < limit ? limit : -1;
+            }
+
+            // Compact the partial line to the front of the buffer, growing it for very long lines
+            int partial = limit - pos;
+            if (partial == buffer.length) {
+                buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+            } else if (pos > 0) {
+                System.arraycopy(buffer, pos, buffer, 0, partial);
+            }
+            pos = 0;
+            limit = partial;
+            scan = partial;
+
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n < 0) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+    }
+
+    /**
+     * Parse the line {@code bytes[from, to)} into {@code builder}.
+     *
+     * @return false if the line is blank or a comment
+     */
+    boolean parseLine(byte[] bytes, int from, int to, HapStore.Builder builder) {
+        int nTokens = 0;
+        int i = from;
+        while (nTokens < 6) {
+            while (i < to && isWhitespace(bytes[i])) i++;
+            if (i == to) break;
+            tokenStarts[nTokens] = i;
+            while (i < to && !isWhitespace(bytes[i])) i++;
+            tokenEnds[nTokens++] = i;
+        }
+
+        if (nTokens == 0 || bytes[tokenStarts[0]] == '#') {
+            return false;
+        }
+        if (nTokens < 5) {
+            throw new ParserException("Expected at least 5 columns, found " + nTokens, lineNumber,
+                    new String(bytes, from, to - from));
+        }
+
+        int chrId = chromosomeId(bytes, tokenStarts[0], tokenEnds[0], builder);
+        int start = parseInt(bytes, tokenStarts[1], tokenEnds[1]);
+        int end = parseInt(bytes, tokenStarts[2], tokenEnds[2]);
+        int count = parseInt(bytes, tokenStarts[4], tokenEnds[4]);
+
+        byte strand = HapStore.STRAND_NONE;
+        if (nTokens > 5) {
+            for (int k = tokenStarts[5]; k < tokenEnds[5]; k++) {
+                if (bytes[k] == '*') {
+                    strand = HapStore.STRAND_NONE;
+                    break;
+                } else if (bytes[k] == '+') {
+                    strand = HapStore.STRAND_POSITIVE;
+                    break;
+                } else if (bytes[k] == '-') {
+                    strand = HapStore.STRAND_NEGATIVE;
+                    break;
+                }
+            }
+        }
+
+        builder.beginRecord(chrId, start, end, count, strand);
+        for (int k = tokenStarts[3]; k < tokenEnds[3]; k++) {
+            builder.appendState(bytes[k] == '1');
+        }
+        return true;
+    }
+
+    private int chromosomeId(byte[] bytes, int from, int to, HapStore.Builder builder) {
+        int len = to - from;
+        if (builder == lastBuilder && len == lastChrLength) {
+            boolean same = true;
+            for (int k = 0; k < len && same; k++) {
+                same = lastChr[k] == bytes[from + k];
+            }
+            if (same) {
+                return lastChrId;
+            }
+        }
+        if (len > lastChr.length) {
+            lastChr = new byte[len];
+        }
+        System.arraycopy(bytes, from, lastChr, 0, len);
+        lastChrLength = len;
+        lastChrId = builder.internChromosome(new String(bytes, from, len));
+        lastBuilder = builder;
+        return lastChrId;
+    }
+
+    private int parseInt(byte[] bytes, int from, int to) {
+        int value = 0;
+        boolean negative = from < to && bytes[from] == '-';
+        for (int k = negative ? from + 1 : from; k < to; k++) {
+            int d = bytes[k] - '0';
+            if (d < 0 || d > 9) {
+                throw new ParserException("Invalid number: " + new String(bytes, from, to - from), lineNumber);
+            }
+            value = 10 * value + d;
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == '\t' || b == ' ' || b == '\r';
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+
+    /**
+     * Parse a single mHap line, e.g. as returned by tabix, without splitting it.
+     */
+    public static HapData parseHapData(String line) {
+        int[] bounds = tokenize(line, 6);
+        if (bounds[8] < 0) {
+            throw new ParserException("Expected at least 5 columns", -1, line);
+        }
+
+        String chr = line.substring(bounds[0], bounds[1]);
+        int start = parseInt(line, bounds[2], bounds[3]);
+        int end = parseInt(line, bounds[4], bounds[5]);
+        int count = parseInt(line, bounds[8], bounds[9]);
+
+        boolean[] states = new boolean[bounds[7] - bounds[6]];
+        for (int k = 0; k < states.length; k++) {
+            states[k] = line.charAt(bounds[6] + k) == '1';
+        }
+
+        Strand strand = Strand.NONE;
+        if (bounds[10] >= 0) {
+            for (int k = bounds[10]; k < bounds[11]; k++) {
+                char c = line.charAt(k);
+                if (c == '*') {
+                    break;
+                } else if (c == '+') {
+                    strand = Strand.POSITIVE;
+                    break;
+                } else if (c == '-') {
+                    strand = Strand.NEGATIVE;
+                    break;
+                }
+            }
+        }
+
+        return new HapData(chr, start, end, states, count, strand);
+    }
+
+    /**
+     * Parse a single correlation line (chr, start, end, cor) without splitting it.
+     */
+    public static CorrelationData parseCorrelationData(String line) {
+        int[] bounds = tokenize(line, 4);
+        if (bounds[6] < 0) {
+            throw new ParserException("Expected 4 columns", -1, line);
+        }
+        return new CorrelationData(
+                line.substring(bounds[0], bounds[1]),
+                parseInt(line, bounds[2], bounds[3]),
+                parseInt(line, bounds[4], bounds[5]),
+                parseFloat(line, bounds[6], bounds[7]));
+    }
+
+    /**
+     * @return start and end of the first {@code n} whitespace separated tokens, -1 for missing tokens
+     */
+    static int[] tokenize(String line, int n) {
+        int[] bounds = new int[2 * n];
+        Arrays.fill(bounds, -1);
+        int len = line.length();
+        int i = 0;
+        for (int t = 0; t < n; t++) {
+            while (i < len && Character.isWhitespace(line.charAt(i))) i++;
+            if (i == len) break;
+            bounds[2 * t] = i;
+            while (i < len && !Character.isWhitespace(line.charAt(i))) i++;
+            bounds[2 * t + 1] = i;
+        }
+        return bounds;
+    }
+
+    private static int parseInt(String line, int from, int to) {
+        int value = 0;
+        boolean negative = from < to && line.charAt(from) == '-';
+        for (int k = negative ? from + 1 : from; k < to; k++) {
+            int d = line.charAt(k) - '0';
+            if (d < 0 || d > 9) {
+                throw new ParserException("Invalid number: " + line.substring(from, to), -1, line);
+            }
+            value = 10 * value + d;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a plain decimal number, falling back to {@link Float#parseFloat} for exponents and special values.
+     */
+    private static float parseFloat(String line, int from, int to) {
+        boolean negative = from < to && line.charAt(from) == '-';
+        long mantissa = 0;
+        int scale = -1;
+        for (int k = negative ? from + 1 : from; k < to; k++) {
+            char c = line.charAt(k);
+            if (c == '.' && scale < 0) {
+                scale = 0;
+            } else if (c >= '0' && c <= '9' && mantissa < Long.MAX_VALUE / 10) {
+                mantissa = 10 * mantissa + (c - '0');
+                if (scale >= 0) scale++;
+            } else {
+                return Float.parseFloat(line.substring(from, to));
+            }
+        }
+        double value = scale > 0 ? mantissa / Math.pow(10, scale) : mantissa;
+        return (float) (negative ? -value : value);
+    }
+}
@@ -0,0 +1,233 @@
+package custom.lib;
+
+import java.util.*;
+
+/**
+ * Haplotype-level methylation metrics of fixed size windows, computed from a stream of mHap records of one
+ * chromosome sorted by start.  Only the CpGs of a read that fall in a window count for that window.
+ * <ul>
+ * <li>MHL - methylated haplotype load, the fraction of fully methylated stretches of l consecutive CpGs, averaged
+ * over all stretch lengths l with weight l</li>
+ * <li>PDR - proportion of discordant reads, reads with both methylated and unmethylated CpGs, among the reads with
+ * at least {@link #MIN_PDR_CPGS} CpGs</li>
+ * <li>CHALM - fraction of reads with at least one methylated CpG</li>
+ * <li>MCR - methylation concurrence ratio, the fraction of CpGs that are methylated CpGs of discordant reads</li>
+ * <li>ENTROPY - methylation entropy of the patterns of {@link #ENTROPY_CPGS} consecutive CpGs, normalized to [0, 1]</li>
+ * </ul>
+ * A metric is NaN in windows without the reads it needs.
+ */
+public class HapStats {
+
+    public enum Metric {MHL, PDR, CHALM, MCR, ENTROPY}
+
+    static final int MIN_PDR_CPGS = 4;
+    static final int ENTROPY_CPGS = 4;
+
+    /**
+     * Receives the metrics of each window with data, in order.
+     */
+    public interface WindowConsumer {
+        void addWindow(String chr, int start, int end, float[] values);
+    }
+
+    private final String chr;
+    private final int windowSize;
+    private final Metric[] metrics;
+    private final CpGIndex cpgIndex;
+    private final WindowConsumer consumer;
+
+    // Windows that can still receive reads, by window number
+    private final TreeMap<Integer, Window> windows = new TreeMap<>();
+
+    public HapStats(String chr, int windowSize, Metric[] metrics, CpGIndex cpgIndex, WindowConsumer consumer) {
+        this.chr = chr;
+        this.windowSize = windowSize;
+        this.metrics = metrics;
+        this.cpgIndex = cpgIndex;
+        this.consumer = consumer;
+    }
+
+    public String getChr() {
+        return chr;
+    }
+
+    public void add(HapData hapData) {
+        // Records are sorted by start, no later read has CpGs in windows ending before this one's first CpG
+        flush(hapData.start - 1);
+
+        int[] cpgs = cpgIndex.getCpGs(chr, hapData.start - 1, hapData.end + 1);
+        int n = Math.min(cpgs.length, hapData.states.length);
+
+        boolean discordant = false;
+        for (int k = 1; k < n && !discordant; k++) {
+            discordant = hapData.states[k] != hapData.states[0];
+        }
+
+        // Split the read's CpGs into the windows they fall in
+        int from = 0;
+        while (from < n) {
+            int windowNumber = cpgs[from] / windowSize;
+            int windowEnd = (windowNumber + 1) * windowSize;
+            int to = from;
+            while (to < n && cpgs[to] < windowEnd) to++;
+
+            windows.computeIfAbsent(windowNumber, w -> new Window())
+                    .add(hapData.states, from, to, hapData.readCount, discordant);
+            from = to;
+        }
+    }
+
+    /**
+     * Emit the remaining windows.
+     */
+    public void finish() {
+        flush(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Emit the windows ending at or before {@code position}.
+     */
+    private void flush(int position) {
+        Iterator<Map.Entry<Integer, Window>> it = windows.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Window> entry = it.next();
+            long windowEnd = (entry.getKey() + 1L) * windowSize;
+            if (windowEnd > position) {
+                break;
+            }
+            Window window = entry.getValue();
+            float[] values = new float[metrics.length];
+            for (int i = 0; i < metrics.length; i++) {
+                values[i] = (float) window.get(metrics[i]);
+            }
+            consumer.addWindow(chr, entry.getKey() * windowSize, (int) windowEnd, values);
+            it.remove();
+        }
+    }
+
+    /**
+     * Counts of one window.  Read counts weight everything.
+     */
+    static class Window {
+
+        // MHL: stretches of l CpGs, and fully methylated ones, by l
+        double[] stretches = new double[16];
+        double[] methylatedStretches = new double[16];
+
+        // PDR
+        double pdrReads;
+        double discordantReads;
+
+        // CHALM
+        double reads;
+        double methylatedReads;
+
+        // MCR
+        double cpgs;
+        double concurrentCpGs;
+
+        // Entropy: patterns of ENTROPY_CPGS consecutive CpGs
+        double[] patterns = new double[1 << ENTROPY_CPGS];
+
+        /**
+         * Add CpGs {@code from} to {@code to} (exclusive) of a read.
+         *
+         * @param discordant if the whole read, not just these CpGs, is discordant
+         */
+        void add(boolean[] states, int from, int to, int count, boolean discordant) {
+            int n = to - from;
+            if (n <= 0) {
+                return;
+            }
+
+            if (n >= stretches.length) {
+                int length = Math.max(2 * stretches.length, n + 1);
+                stretches = Arrays.copyOf(stretches, length);
+                methylatedStretches = Arrays.copyOf(methylatedStretches, length);
+            }
+
+            // A run of r methylated CpGs holds r - l + 1 methylated stretches of length l
+            int methylated = 0;
+            int run = 0;
+            for (int k = from; k <= to; k++) {
+                if (k < to && states[k]) {
+                    run++;
+                    methylated++;
+                } else {
+                    for (int l = 1; l <= run; l++) {
+                        methylatedStretches[l] += (double) count * (run - l + 1);
+                    }
+                    run = 0;
+                }
+            }
+            for (int l = 1; l <= n; l++) {
+                stretches[l] += (double) count * (n - l + 1);
+            }
+
+            boolean segmentDiscordant = methylated > 0 && methylated < n;
+            if (n >= MIN_PDR_CPGS) {
+                pdrReads += count;
+                if (segmentDiscordant) {
+                    discordantReads += count;
+                }
+            }
+
+            reads += count;
+            if (methylated > 0) {
+                methylatedReads += count;
+            }
+
+            cpgs += (double) count * n;
+            if (discordant) {
+                concurrentCpGs += (double) count * methylated;
+            }
+
+            for (int k = from; k + ENTROPY_CPGS <= to; k++) {
+                int pattern = 0;
+                for (int j = 0; j < ENTROPY_CPGS; j++) {
+                    pattern = (pattern << 1) | (states[k + j] ? 1 : 0);
+                }
+                patterns[pattern] += count;
+            }
+        }
+
+        double get(Metric metric) {
+            switch (metric) {
+                case MHL:
+                    double weighted = 0;
+                    double weights = 0;
+                    for (int l = 1; l < stretches.length; l++) {
+                        if (stretches[l] > 0) {
+                            weighted += l * methylatedStretches[l] / stretches[l];
+                            weights += l;
+                        }
+                    }
+                    return weights > 0 ? weighted / weights : Double.NaN;
+                case PDR:
+                    return pdrReads > 0 ? discordantReads / pdrReads : Double.NaN;
+                case CHALM:
+                    return reads > 0 ? methylatedReads / reads : Double.NaN;
+                case MCR:
+                    return cpgs > 0 ? concurrentCpGs / cpgs : Double.NaN;
+                case ENTROPY:
+                    double total = 0;
+                    for (double c : patterns) {
+                        total += c;
+                    }
+                    if (total == 0) {
+                        return Double.NaN;
+                    }
+                    double entropy = 0;
+                    for (double c : patterns) {
+                        if (c > 0) {
+                            double p = c / total;
+                            entropy -= p * Math.log(p) / Math.log(2);
+                        }
+                    }
+                    return entropy / ENTROPY_CPGS;
+                default:
+                    return Double.NaN;
+            }
+        }
+    }
+}
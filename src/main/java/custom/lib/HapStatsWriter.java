@@ -0,0 +1,238 @@
+package custom.lib;
+
+import htsjdk.tribble.readers.TabixReader;
+import org.apache.log4j.Logger;
+import org.broad.igv.exceptions.ParserException;
+import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.tools.Preprocessor;
+import org.broad.igv.track.TrackType;
+import org.broad.igv.track.WindowFunction;
+import org.broad.igv.util.ParsingUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Computes {@link HapStats} metrics of an mHap file and writes them as a TDF file, through the {@link Preprocessor},
+ * or as one bedGraph file per metric.
+ * <p>
+ * A bgzipped file with a tabix index is processed one chromosome per task, in parallel; the results are written in
+ * the order of the genome's chromosomes.  Other files are streamed sequentially, and must be grouped by chromosome
+ * and sorted by start.
+ */
+public class HapStatsWriter {
+
+    private static Logger log = Logger.getLogger(HapStatsWriter.class);
+
+    private final Genome genome;
+    private final CpGIndex cpgIndex;
+    private final int windowSize;
+    private final HapStats.Metric[] metrics;
+
+    public HapStatsWriter(Genome genome, int windowSize, HapStats.Metric[] metrics) {
+        this.genome = genome;
+        this.cpgIndex = new CpGIndex(genome);
+        this.windowSize = windowSize;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param outputFile a .tdf file, or a .bedgraph file which is written as {@code <name>.<metric>.bedgraph}
+     */
+    public void write(String hapFile, File outputFile, int maxZoom, int nThreads) throws IOException {
+        try (Output output = outputFile.getName().toLowerCase().endsWith(".tdf") ?
+                new TDFOutput(outputFile, maxZoom) : new BedGraphOutput(outputFile)) {
+
+            if (hapFile.endsWith(".gz") && new File(hapFile + ".tbi").exists()) {
+                writeParallel(hapFile, output, nThreads);
+            } else {
+                writeSequential(hapFile, output);
+            }
+        }
+    }
+
+    private void writeSequential(String hapFile, Output output) throws IOException {
+        HapStats stats = null;
+        Set<String> finishedChromosomes = new HashSet<>();
+        int previousStart = 0;
+        int lineNumber = 0;
+        try (BufferedReader reader = ParsingUtils.openBufferedReader(hapFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                HapData hapData = HapLineParser.parseHapData(line);
+                if (stats == null || !stats.getChr().equals(hapData.chr)) {
+                    // A chromosome seen again would restart its windows and write them twice
+                    if (finishedChromosomes.contains(hapData.chr)) {
+                        throw new ParserException("Records are not grouped by chromosome, " + hapData.chr +
+                                " appears twice. Sort the file with \"igvtools sort\"", lineNumber, line);
+                    }
+                    if (stats != null) {
+                        stats.finish();
+                        finishedChromosomes.add(stats.getChr());
+                    }
+                    log.info("Processing chromosome " + hapData.chr);
+                    stats = new HapStats(hapData.chr, windowSize, metrics, cpgIndex, output);
+                } else if (hapData.start < previousStart) {
+                    throw new ParserException("Records are not sorted by start. Sort the file with \"igvtools sort\"",
+                            lineNumber, line);
+                }
+                previousStart = hapData.start;
+                stats.add(hapData);
+            }
+        }
+        if (stats != null) {
+            stats.finish();
+        }
+    }
+
+    private void writeParallel(String hapFile, Output output, int nThreads) throws IOException {
+        Set<String> fileChromosomes;
+        TabixReader indexReader = new TabixReader(hapFile);
+        try {
+            fileChromosomes = indexReader.getChromosomes();
+        } finally {
+            indexReader.close();
+        }
+
+        // The file's names of the genome's chromosomes, e.g. "1" for "chr1"
+        Map<String, String> fileNames = new HashMap<>();
+        for (String fileChr : fileChromosomes) {
+            String chr = genome.getCanonicalChrName(fileChr);
+            if (genome.getChromosome(chr) == null) {
+                log.info("Skipping chromosome " + fileChr + ", it is not in the genome");
+            } else {
+                fileNames.put(chr, fileChr);
+            }
+        }
+
+        // In genome order
+        List<String> chromosomes = new ArrayList<>();
+        for (String chr : genome.getAllChromosomeNames()) {
+            if (fileNames.containsKey(chr)) {
+                chromosomes.add(chr);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        try {
+            List<Future<List<Row>>> futures = new ArrayList<>();
+            for (String chr : chromosomes) {
+                futures.add(executor.submit(() -> computeChromosome(hapFile, fileNames.get(chr), chr)));
+            }
+
+            // Write in order as the chromosomes complete
+            for (int i = 0; i < futures.size(); i++) {
+                log.info("Processing chromosome " + chromosomes.get(i));
+                for (Row row : futures.get(i).get()) {
+                    output.addWindow(chromosomes.get(i), row.start, row.end, row.values);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param fileChr the name of chromosome {@code chr} in the file
+     */
+    private List<Row> computeChromosome(String hapFile, String fileChr, String chr) throws IOException {
+        List<Row> rows = new ArrayList<>();
+        HapStats stats = new HapStats(chr, windowSize, metrics, cpgIndex,
+                (c, start, end, values) -> rows.add(new Row(start, end, values)));
+
+        // TabixReader is not thread safe, each task opens its own
+        TabixReader reader = new TabixReader(hapFile);
+        try {
+            TabixReader.Iterator it = reader.query(fileChr);
+            String line;
+            while ((line = it.next()) != null) {
+                stats.add(HapLineParser.parseHapData(line));
+            }
+        } finally {
+            reader.close();
+        }
+        stats.finish();
+        return rows;
+    }
+
+    private static class Row {
+        final int start;
+        final int end;
+        final float[] values;
+
+        Row(int start, int end, float[] values) {
+            this.start = start;
+            this.end = end;
+            this.values = values;
+        }
+    }
+
+    private interface Output extends HapStats.WindowConsumer, Closeable {
+    }
+
+    private class TDFOutput implements Output {
+
+        private final Preprocessor preprocessor;
+
+        TDFOutput(File tdfFile, int maxZoom) {
+            preprocessor = new Preprocessor(tdfFile, genome, Arrays.asList(WindowFunction.mean), -1, null);
+            preprocessor.setNZoom(maxZoom);
+            String[] trackNames = new String[metrics.length];
+            for (int i = 0; i < metrics.length; i++) {
+                trackNames[i] = metrics[i].name();
+            }
+            preprocessor.setTrackParameters(TrackType.OTHER, null, trackNames);
+        }
+
+        public void addWindow(String chr, int start, int end, float[] values) {
+            preprocessor.addData(chr, start, end, values, null);
+        }
+
+        public void close() {
+            preprocessor.finish();
+        }
+    }
+
+    private class BedGraphOutput implements Output {
+
+        private final PrintWriter[] writers;
+
+        BedGraphOutput(File bedGraphFile) throws IOException {
+            String path = bedGraphFile.getAbsolutePath();
+            int dot = path.lastIndexOf('.');
+            String base = dot > 0 ? path.substring(0, dot) : path;
+
+            writers = new PrintWriter[metrics.length];
+            for (int i = 0; i < metrics.length; i++) {
+                writers[i] = new PrintWriter(new BufferedWriter(new FileWriter(base + "." + metrics[i].name() + ".bedgraph")));
+                writers[i].println("track type=bedGraph name=\"" + bedGraphFile.getName() + " " + metrics[i].name() + "\"");
+            }
+        }
+
+        public void addWindow(String chr, int start, int end, float[] values) {
+            for (int i = 0; i < writers.length; i++) {
+                if (!Float.isNaN(values[i])) {
+                    writers[i].println(chr + "\t" + start + "\t" + end + "\t" + values[i]);
+                }
+            }
+        }
+
+        public void close() {
+            for (PrintWriter writer : writers) {
+                writer.close();
+            }
+        }
+    }
+}
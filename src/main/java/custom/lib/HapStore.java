@@ -0,0 +1,460 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+
+import java.util.*;
+
+/**
+ * Columnar storage for mHap records.  Instead of one {@link HapData} object per line the store keeps primitive
+ * columns -- starts, ends, read counts and strands -- and packs the methylation patterns, one bit per CpG, into a
+ * single shared {@code long[]} pool.  Chromosome names are interned into a small table and records are sorted by
+ * chromosome and start, so the records of a chromosome are a contiguous range of the store.
+ * <p>
+ * Records are read in place with the per-column accessors, e.g. by {@link HapAggregator#add(HapStore, int)}.  Callers
+ * that need a {@code HapData} get a copy of a single record with {@link #get(int)}.
+ */
+public class HapStore {
+
+    static final byte STRAND_NONE = 0;
+    static final byte STRAND_POSITIVE = 1;
+    static final byte STRAND_NEGATIVE = 2;
+
+    private final String[] chromosomes;
+    private final Map<String, Integer> chromosomeIds;
+
+    // Records of chromosome i are chrFrom[i] (inclusive) to chrTo[i] (exclusive)
+    private final int[] chrFrom;
+    private final int[] chrTo;
+    private final int[] chrMaxLength;
+
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] counts;
+    private final byte[] strands;
+
+    // Bit offset of each pattern in the pool, followed by the total bit count
+    private final long[] patternOffsets;
+    private final long[] patternPool;
+
+    private HapStore(String[] chromosomes, int[] chrFrom, int[] chrTo, int[] chrMaxLength,
+                     int[] starts, int[] ends, int[] counts, byte[] strands,
+                     long[] patternOffsets, long[] patternPool) {
+        this.chromosomes = chromosomes;
+        this.chrFrom = chrFrom;
+        this.chrTo = chrTo;
+        this.chrMaxLength = chrMaxLength;
+        this.starts = starts;
+        this.ends = ends;
+        this.counts = counts;
+        this.strands = strands;
+        this.patternOffsets = patternOffsets;
+        this.patternPool = patternPool;
+
+        chromosomeIds = new HashMap<>();
+        for (int i = 0; i < chromosomes.length; i++) {
+            chromosomeIds.put(chromosomes[i], i);
+        }
+    }
+
+    public int size() {
+        return starts.length;
+    }
+
+    public List<String> getChromosomeNames() {
+        return Arrays.asList(chromosomes);
+    }
+
+    /**
+     * @return the id of the chromosome, or -1 if the store has no records on it
+     */
+    public int getChromosomeId(String chr) {
+        Integer id = chromosomeIds.get(chr);
+        return id == null ? -1 : id;
+    }
+
+    public String getChromosomeName(int chrId) {
+        return chromosomes[chrId];
+    }
+
+    public int getFirstRecord(int chrId) {
+        return chrFrom[chrId];
+    }
+
+    public int getRecordLimit(int chrId) {
+        return chrTo[chrId];
+    }
+
+    /**
+     * @return the length (end - start) of the longest record on the chromosome
+     */
+    public int getMaxLength(int chrId) {
+        return chrMaxLength[chrId];
+    }
+
+    /**
+     * @return the chromosome of the record
+     */
+    public String getChromosome(int record) {
+        return chromosomes[chrId(record)];
+    }
+
+    public int getStart(int record) {
+        return starts[record];
+    }
+
+    public int getEnd(int record) {
+        return ends[record];
+    }
+
+    public int getCount(int record) {
+        return counts[record];
+    }
+
+    public Strand getStrand(int record) {
+        return toStrand(strands[record]);
+    }
+
+    /**
+     * @return the strand of the record as one of the {@code STRAND_} constants
+     */
+    public byte getStrandByte(int record) {
+        return strands[record];
+    }
+
+    public int getPatternLength(int record) {
+        return (int) (patternOffsets[record + 1] - patternOffsets[record]);
+    }
+
+    /**
+     * @return true if CpG {@code k} of the record is methylated
+     */
+    public boolean getState(int record, int k) {
+        long bit = patternOffsets[record] + k;
+        return (patternPool[(int) (bit >>> 6)] & (1L << (bit & 63))) != 0;
+    }
+
+    /**
+     * Return up to 64 bits of the record's pattern, starting at CpG {@code 64 * w}.  CpG {@code 64 * w + j} is bit
+     * {@code j} of the result; bits past the end of the pattern are zero.
+     */
+    public long getPatternWord(int record, int w) {
+        long bitPos = patternOffsets[record] + 64L * w;
+        long len = Math.min(64, patternOffsets[record + 1] - bitPos);
+        return len <= 0 ? 0 : readBits(patternPool, bitPos, (int) len);
+    }
+
+    /**
+     * {@code HapData} has public, mutable fields and its callers keep the records they get, in read lists and packed
+     * rows, so a shared view would be overwritten by the next record.  This is a copy; read the columns for records
+     * that aren't kept.
+     *
+     * @return a {@code HapData} copy of the record
+     */
+    public HapData get(int record) {
+        int n = getPatternLength(record);
+        boolean[] states = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            states[k] = getState(record, k);
+        }
+        return new HapData(chromosomes[chrId(record)], starts[record], ends[record], states, counts[record],
+                toStrand(strands[record]));
+    }
+
+    /**
+     * Rough heap footprint of the store in bytes
+     */
+    public long getSizeInBytes() {
+        return 13L * starts.length + 8L * patternOffsets.length + 8L * patternPool.length;
+    }
+
+    /**
+     * Merge stores, e.g. built in parallel from chunks of one file, into a single store sorted by chromosome and
+     * start.  The records of each chromosome are combined with a k-way merge, chromosomes keep the order in which
+     * they first appear.
+     */
+    public static HapStore merge(List<HapStore> stores) {
+        if (stores.size() == 1) {
+            return stores.get(0);
+        }
+
+        List<String> names = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int size = 0;
+        long bitCount = 0;
+        for (HapStore store : stores) {
+            for (String chr : store.chromosomes) {
+                if (seen.add(chr)) {
+                    names.add(chr);
+                }
+            }
+            size += store.size();
+            bitCount += store.patternOffsets[store.size()];
+        }
+
+        int nChr = names.size();
+        int[] chrFrom = new int[nChr];
+        int[] chrTo = new int[nChr];
+        int[] chrMaxLength = new int[nChr];
+        int[] starts = new int[size];
+        int[] ends = new int[size];
+        int[] counts = new int[size];
+        byte[] strands = new byte[size];
+        long[] patternOffsets = new long[size + 1];
+        long[] patternPool = new long[(int) ((bitCount + 63) >>> 6)];
+
+        int out = 0;
+        long bit = 0;
+        for (int c = 0; c < nChr; c++) {
+            chrFrom[c] = out;
+
+            // Cursor (store, record) over each store's records of this chromosome, ordered by start
+            PriorityQueue<int[]> heap = new PriorityQueue<>(stores.size(),
+                    Comparator.comparingInt((int[] cursor) -> stores.get(cursor[0]).starts[cursor[1]]));
+            for (int s = 0; s < stores.size(); s++) {
+                HapStore store = stores.get(s);
+                int id = store.getChromosomeId(names.get(c));
+                if (id >= 0) {
+                    heap.add(new int[]{s, store.chrFrom[id], store.chrTo[id]});
+                    chrMaxLength[c] = Math.max(chrMaxLength[c], store.chrMaxLength[id]);
+                }
+            }
+
+            while (!heap.isEmpty()) {
+                int[] cursor = heap.poll();
+                HapStore store = stores.get(cursor[0]);
+                int record = cursor[1];
+
+                starts[out] = store.starts[record];
+                ends[out] = store.ends[record];
+                counts[out] = store.counts[record];
+                strands[out] = store.strands[record];
+                patternOffsets[out] = bit;
+                for (long b = store.patternOffsets[record]; b < store.patternOffsets[record + 1]; b += 64) {
+                    int len = (int) Math.min(64, store.patternOffsets[record + 1] - b);
+                    writeBits(patternPool, bit, readBits(store.patternPool, b, len), len);
+                    bit += len;
+                }
+                out++;
+
+                if (++cursor[1] < cursor[2]) {
+                    heap.add(cursor);
+                }
+            }
+            chrTo[c] = out;
+        }
+        patternOffsets[size] = bit;
+
+        return new HapStore(names.toArray(new String[0]), chrFrom, chrTo, chrMaxLength,
+                starts, ends, counts, strands, patternOffsets, patternPool);
+    }
+
+    private int chrId(int record) {
+        int lo = 0;
+        int hi = chrTo.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (chrTo[mid] <= record) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Read {@code len} (1 - 64) bits of the pool starting at {@code bitPos}
+     */
+    static long readBits(long[] pool, long bitPos, int len) {
+        int word = (int) (bitPos >>> 6);
+        int shift = (int) (bitPos & 63);
+        long bits = pool[word] >>> shift;
+        if (shift != 0 && shift + len > 64) {
+            bits |= pool[word + 1] << (64 - shift);
+        }
+        return len == 64 ? bits : bits & ((1L << len) - 1);
+    }
+
+    /**
+     * Or the low {@code len} (1 - 64) bits of {@code bits} into the pool starting at {@code bitPos}
+     */
+    static void writeBits(long[] pool, long bitPos, long bits, int len) {
+        int word = (int) (bitPos >>> 6);
+        int shift = (int) (bitPos & 63);
+        pool[word] |= bits << shift;
+        if (shift != 0 && shift + len > 64) {
+            pool[word + 1] |= bits >>> (64 - shift);
+        }
+    }
+
+    static byte toByte(Strand strand) {
+        switch (strand) {
+            case POSITIVE:
+                return STRAND_POSITIVE;
+            case NEGATIVE:
+                return STRAND_NEGATIVE;
+            default:
+                return STRAND_NONE;
+        }
+    }
+
+    static Strand toStrand(byte b) {
+        switch (b) {
+            case STRAND_POSITIVE:
+                return Strand.POSITIVE;
+            case STRAND_NEGATIVE:
+                return Strand.NEGATIVE;
+            default:
+                return Strand.NONE;
+        }
+    }
+
+
+    /**
+     * Accumulates records in any order and sorts them by chromosome and start in {@link #build()}.
+     */
+    public static class Builder {
+
+        private final List<String> chromosomes = new ArrayList<>();
+        private final Map<String, Integer> chromosomeIds = new HashMap<>();
+
+        private int size = 0;
+        private int[] chrIds = new int[1024];
+        private int[] starts = new int[1024];
+        private int[] ends = new int[1024];
+        private int[] counts = new int[1024];
+        private byte[] strands = new byte[1024];
+        private long[] patternOffsets = new long[1025];
+        private long[] patternPool = new long[256];
+        private long bitCount = 0;
+
+        public int size() {
+            return size;
+        }
+
+        public Builder add(HapData hapData) {
+            return add(hapData.chr, hapData.start, hapData.end, hapData.states, hapData.readCount, hapData.strand);
+        }
+
+        public Builder add(String chr, int start, int end, boolean[] states, int count, Strand strand) {
+            beginRecord(internChromosome(chr), start, end, count, toByte(strand));
+            for (boolean state : states) {
+                appendState(state);
+            }
+            return this;
+        }
+
+        /**
+         * @return the id of the chromosome, registering it if needed
+         */
+        int internChromosome(String chr) {
+            Integer id = chromosomeIds.get(chr);
+            if (id == null) {
+                id = chromosomes.size();
+                chromosomes.add(chr);
+                chromosomeIds.put(chr, id);
+            }
+            return id;
+        }
+
+        /**
+         * Start a new record.  Its pattern is appended one CpG at a time with {@link #appendState(boolean)}.
+         */
+        void beginRecord(int chrId, int start, int end, int count, byte strand) {
+            if (size == starts.length) {
+                int capacity = size + (size >> 1);
+                chrIds = Arrays.copyOf(chrIds, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                strands = Arrays.copyOf(strands, capacity);
+                patternOffsets = Arrays.copyOf(patternOffsets, capacity + 1);
+            }
+            chrIds[size] = chrId;
+            starts[size] = start;
+            ends[size] = end;
+            counts[size] = count;
+            strands[size] = strand;
+            patternOffsets[size] = bitCount;
+            size++;
+            patternOffsets[size] = bitCount;
+        }
+
+        void appendState(boolean state) {
+            int word = (int) (bitCount >>> 6);
+            if (word == patternPool.length) {
+                patternPool = Arrays.copyOf(patternPool, word + (word >> 1));
+            }
+            if (state) {
+                patternPool[word] |= 1L << (bitCount & 63);
+            }
+            bitCount++;
+            patternOffsets[size] = bitCount;
+        }
+
+        public HapStore build() {
+            int nChr = chromosomes.size();
+
+            // Bucket records by chromosome, then sort each bucket by start.  The sort key packs the start with the
+            // record's index in the bucket so a primitive sort suffices.
+            int[] chrSizes = new int[nChr];
+            for (int i = 0; i < size; i++) {
+                chrSizes[chrIds[i]]++;
+            }
+            int[] chrFrom = new int[nChr];
+            int[] chrTo = new int[nChr];
+            for (int c = 1; c < nChr; c++) {
+                chrFrom[c] = chrFrom[c - 1] + chrSizes[c - 1];
+            }
+            int[] buckets = new int[size];
+            int[] fill = chrFrom.clone();
+            for (int i = 0; i < size; i++) {
+                buckets[fill[chrIds[i]]++] = i;
+            }
+
+            int[] order = new int[size];
+            int[] chrMaxLength = new int[nChr];
+            for (int c = 0; c < nChr; c++) {
+                int from = chrFrom[c];
+                int n = chrSizes[c];
+                chrTo[c] = from + n;
+                long[] keys = new long[n];
+                for (int j = 0; j < n; j++) {
+                    keys[j] = ((long) starts[buckets[from + j]] << 32) | j;
+                }
+                Arrays.sort(keys);
+                for (int j = 0; j < n; j++) {
+                    int record = buckets[from + (int) keys[j]];
+                    order[from + j] = record;
+                    chrMaxLength[c] = Math.max(chrMaxLength[c], ends[record] - starts[record]);
+                }
+            }
+
+            int[] sStarts = new int[size];
+            int[] sEnds = new int[size];
+            int[] sCounts = new int[size];
+            byte[] sStrands = new byte[size];
+            long[] sOffsets = new long[size + 1];
+            long[] sPool = new long[(int) ((bitCount + 63) >>> 6)];
+
+            long bit = 0;
+            for (int i = 0; i < size; i++) {
+                int record = order[i];
+                sStarts[i] = starts[record];
+                sEnds[i] = ends[record];
+                sCounts[i] = counts[record];
+                sStrands[i] = strands[record];
+                sOffsets[i] = bit;
+                for (long b = patternOffsets[record]; b < patternOffsets[record + 1]; b += 64) {
+                    int len = (int) Math.min(64, patternOffsets[record + 1] - b);
+                    writeBits(sPool, bit, readBits(patternPool, b, len), len);
+                    bit += len;
+                }
+            }
+            sOffsets[size] = bit;
+
+            return new HapStore(chromosomes.toArray(new String[0]), chrFrom, chrTo, chrMaxLength,
+                    sStarts, sEnds, sCounts, sStrands, sOffsets, sPool);
+        }
+    }
+}
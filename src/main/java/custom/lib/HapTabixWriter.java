@@ -0,0 +1,187 @@
+package custom.lib;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes mHap lines bgzipped and builds their tabix index as they are written, the index going next to the file as
+ * {@code <file>.tbi} when the writer is closed.  The file is indexed with the bed preset, as mHap files are by tabix,
+ * so the feature of a line is its bed interval.  Comment and empty lines are written but not indexed,
+ * and the columns of space separated lines are written tab separated, as tabix readers expect.
+ * <p>
+ * Lines must be grouped by chromosome and sorted by start within a chromosome, as tabix requires, otherwise an
+ * IOException is thrown.
+ */
+public class HapTabixWriter extends Writer {
+
+    private final File outputFile;
+    private BlockCompressedOutputStream out;
+    private final TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.BED);
+    private final OrderCheck orderCheck = new OrderCheck();
+
+    private final StringBuilder line = new StringBuilder();
+
+    public HapTabixWriter(File outputFile) {
+        this.outputFile = outputFile;
+        this.out = new BlockCompressedOutputStream(outputFile);
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        // A rejected line is reported once the rest of the buffer is written
+        IOException error = null;
+        for (int i = offset; i < offset + length; i++) {
+            char c = buffer[i];
+            if (c == '\n') {
+                try {
+                    writeLine(line.toString());
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+                line.setLength(0);
+            } else if (c != '\r') {
+                line.append(c);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Write one line, without its line terminator.
+     */
+    public void writeLine(String text) throws IOException {
+        if (isRecord(text)) {
+            if (text.indexOf(' ') >= 0) {
+                // Tabix readers split the columns on tabs only
+                text = String.join("\t", text.trim().split("\\s+"));
+            }
+            SimpleFeature feature = toFeature(text);
+            orderCheck.check(feature);
+            indexCreator.addFeature(feature, out.getFilePointer());
+        }
+        out.write(text.getBytes(StandardCharsets.US_ASCII));
+        out.write('\n');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Blocks are written when full, the last one when closed
+    }
+
+    /**
+     * Finish the file and write its index.
+     */
+    @Override
+    public void close() throws IOException {
+        if (out == null) {
+            return;
+        }
+        try {
+            if (line.length() > 0) {
+                try {
+                    writeLine(line.toString());
+                } finally {
+                    line.setLength(0);
+                }
+            }
+            out.flush();
+            Index index = indexCreator.finalizeIndex(out.getFilePointer());
+            out.close();
+            out = null;
+            index.writeBasedOnFeatureFile(outputFile);
+        } finally {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * Index a bgzipped mHap file, writing {@code <file>.tbi}.
+     */
+    public static void index(File bgzippedFile) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(bgzippedFile))) {
+            if (!BlockCompressedInputStream.isValidFile(in)) {
+                throw new IOException(bgzippedFile.getName() + " is not bgzipped, sort it into a .gz file with \"igvtools sort\"");
+            }
+        }
+
+        TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.BED);
+        OrderCheck orderCheck = new OrderCheck();
+        long filePointer;
+        try (BlockCompressedInputStream in = new BlockCompressedInputStream(bgzippedFile)) {
+            filePointer = in.getFilePointer();
+            String text;
+            while ((text = in.readLine()) != null) {
+                if (isRecord(text)) {
+                    SimpleFeature feature = toFeature(text);
+                    orderCheck.check(feature);
+                    indexCreator.addFeature(feature, filePointer);
+                }
+                filePointer = in.getFilePointer();
+            }
+        }
+        indexCreator.finalizeIndex(filePointer).writeBasedOnFeatureFile(bgzippedFile);
+    }
+
+    private static boolean isRecord(String text) {
+        return text.length() > 0 && !text.startsWith("#");
+    }
+
+    /**
+     * The columns are split on whitespace, as by {@link HapLineParser}.
+     */
+    private static SimpleFeature toFeature(String text) throws IOException {
+        int[] bounds = HapLineParser.tokenize(text, 4);
+        if (bounds[6] < 0) {
+            throw new IOException("Not an mHap line: " + text);
+        }
+        try {
+            return new SimpleFeature(text.substring(bounds[0], bounds[1]),
+                    Integer.parseInt(text.substring(bounds[2], bounds[3])) + 1,
+                    Integer.parseInt(text.substring(bounds[4], bounds[5])));
+        } catch (NumberFormatException e) {
+            throw new IOException("Not an mHap line: " + text, e);
+        }
+    }
+
+    /**
+     * Tabix needs the records of a chromosome together, sorted by start.
+     */
+    private static class OrderCheck {
+        private String chr;
+        private int start;
+        private final Set<String> finishedChromosomes = new HashSet<>();
+
+        void check(SimpleFeature feature) throws IOException {
+            if (!feature.getContig().equals(chr)) {
+                if (chr != null) {
+                    finishedChromosomes.add(chr);
+                }
+                if (finishedChromosomes.contains(feature.getContig())) {
+                    throw new IOException("The file is not sorted, " + feature.getContig() +
+                            " appears twice. Sort it with \"igvtools sort\"");
+                }
+                chr = feature.getContig();
+            } else if (feature.getStart() < start) {
+                throw new IOException("The file is not sorted at " + chr + ":" + (feature.getStart() - 1) +
+                        ". Sort it with \"igvtools sort\"");
+            }
+            start = feature.getStart();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package custom.lib;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The haplotype panel of one frame, rendered into images of {@link #TILE_WIDTH} by {@link #TILE_HEIGHT} pixels.  A
+ * repaint only draws the tiles under the visible part of the panel, rendering those that are missing, so vertical
+ * scrolls, tooltips and pans within the rendered tiles don't redraw the reads.
+ * <p>
+ * Tiles are aligned on multiples of {@link #TILE_WIDTH} pixels from base 0, so tiles rendered before a pan line up
+ * with the new ones.  They are valid for one load of the frame, one scale, one height and one version of the
+ * display options.  The tiles of all panels share one budget of {@link #MAX_PIXELS}, the least recently drawn are
+ * dropped past it; a view needing more tiles than the budget holds is painted directly.
+ */
+class HapTiles {
+
+    static final int TILE_WIDTH = 512;
+
+    static final int TILE_HEIGHT = 256;
+
+    static final int MAX_PIXELS = 16 * 1024 * 1024;
+
+    interface Painter {
+        /**
+         * Draw the panel as if the view started at base {@code origin}, into {@code rect}.
+         */
+        void paint(Graphics2D g, double origin, Rectangle rect);
+    }
+
+    // Rendered tiles of all panels, least recently drawn first
+    private static final LinkedHashMap<TileKey, BufferedImage> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private static long pixels;
+
+    private final Object data;
+    private final double scale;
+    private final int height;
+    private final long optionsVersion;
+
+    /**
+     * @param data           the loaded data the tiles show, compared by identity
+     * @param optionsVersion version of the display options the tiles are rendered with
+     */
+    HapTiles(Object data, double scale, int height, long optionsVersion) {
+        this.data = data;
+        this.scale = scale;
+        this.height = Math.max(1, height);
+        this.optionsVersion = optionsVersion;
+    }
+
+    /**
+     * @return true if these tiles show {@code data} at the given scale, height and display options
+     */
+    boolean isValid(Object data, double scale, int height, long optionsVersion) {
+        return this.data == data && this.scale == scale && this.height == Math.max(1, height) &&
+                this.optionsVersion == optionsVersion;
+    }
+
+    /**
+     * Draw the tiles under the part of {@code rect} inside {@code visibleRect}, of a view starting at base
+     * {@code origin}, rendering the missing ones with {@code painter}.
+     *
+     * @param visibleRect the visible part of the panel, null if all of {@code rect} is visible
+     */
+    void draw(Graphics2D g, double origin, Rectangle rect, Rectangle visibleRect, Painter painter) {
+        Rectangle visible = visibleRect == null ? rect : rect.intersection(visibleRect);
+        if (visible.isEmpty()) {
+            return;
+        }
+
+        long originPx = (long) Math.floor(origin / scale);
+        long firstColumn = Math.floorDiv(originPx + visible.x - rect.x, TILE_WIDTH);
+        long lastColumn = Math.floorDiv(originPx + visible.x - rect.x + visible.width - 1, TILE_WIDTH);
+        int firstRow = (visible.y - rect.y) / TILE_HEIGHT;
+        int lastRow = Math.min(height - 1, visible.y - rect.y + visible.height - 1) / TILE_HEIGHT;
+
+        if ((lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) * TILE_WIDTH * TILE_HEIGHT > MAX_PIXELS) {
+            Graphics2D clipped = (Graphics2D) g.create();
+            try {
+                clipped.clip(visible);
+                painter.paint(clipped, origin, rect);
+            } finally {
+                clipped.dispose();
+            }
+            return;
+        }
+
+        for (long column = firstColumn; column <= lastColumn; column++) {
+            for (int row = firstRow; row <= lastRow; row++) {
+                TileKey key = new TileKey(this, column, row);
+                BufferedImage tile;
+                synchronized (tiles) {
+                    tile = tiles.get(key);
+                }
+                if (tile == null) {
+                    tile = render(g, column, row, painter);
+                    synchronized (tiles) {
+                        tiles.put(key, tile);
+                        pixels += (long) tile.getWidth() * tile.getHeight();
+                        // The tiles of this view were drawn last and fit in the budget, the oldest go first
+                        Iterator<BufferedImage> it = tiles.values().iterator();
+                        while (pixels > MAX_PIXELS && it.hasNext()) {
+                            BufferedImage evicted = it.next();
+                            it.remove();
+                            pixels -= (long) evicted.getWidth() * evicted.getHeight();
+                        }
+                    }
+                }
+                g.drawImage(tile, rect.x + (int) (column * TILE_WIDTH - originPx), rect.y + row * TILE_HEIGHT, null);
+            }
+        }
+    }
+
+    private BufferedImage render(Graphics2D g, long column, int row, Painter painter) {
+        int tileHeight = Math.min(TILE_HEIGHT, height - row * TILE_HEIGHT);
+        BufferedImage tile = new BufferedImage(TILE_WIDTH, tileHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D tileGraphics = tile.createGraphics();
+        try {
+            tileGraphics.setRenderingHints(g.getRenderingHints());
+            // The whole panel's height, shifted so the tile's rows land in the image
+            tileGraphics.translate(0, -row * TILE_HEIGHT);
+            painter.paint(tileGraphics, column * TILE_WIDTH * scale, new Rectangle(0, 0, TILE_WIDTH, height));
+        } finally {
+            tileGraphics.dispose();
+        }
+        return tile;
+    }
+
+    /**
+     * Drop the rendered tiles of this panel, once it's replaced or its frame is gone.
+     */
+    void dispose() {
+        synchronized (tiles) {
+            Iterator<Map.Entry<TileKey, BufferedImage>> it = tiles.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<TileKey, BufferedImage> entry = it.next();
+                if (entry.getKey().owner == this) {
+                    it.remove();
+                    pixels -= (long) entry.getValue().getWidth() * entry.getValue().getHeight();
+                }
+            }
+        }
+    }
+
+    int getTileCount() {
+        synchronized (tiles) {
+            int count = 0;
+            for (TileKey key : tiles.keySet()) {
+                if (key.owner == this) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    static long getPixelCount() {
+        synchronized (tiles) {
+            return pixels;
+        }
+    }
+
+    private static class TileKey {
+        final HapTiles owner;
+        final long column;
+        final int row;
+
+        TileKey(HapTiles owner, long column, int row) {
+            this.owner = owner;
+            this.column = column;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return owner == other.owner && column == other.column && row == other.row;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(owner), column, row);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package custom.lib;
+
+import org.apache.log4j.Logger;
+import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.tools.Preprocessor;
+import org.broad.igv.track.TrackType;
+import org.broad.igv.track.WindowFunction;
+import org.broad.igv.util.ParsingUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Converts a sorted mHap file (.hap or .hap.gz) to a TDF file with multi-resolution summaries, displayed by
+ * {@link HapTrack} when zoomed out too far to draw reads.
+ * <p>
+ * The file has one value per CpG site for each of the tracks
+ * <ul>
+ * <li>methylation - fraction of methylated CpGs among the reads covering the site</li>
+ * <li>coverage - number of reads covering the site</li>
+ * <li>discordance - fraction of discordant reads, reads with both methylated and unmethylated CpGs, among the
+ * reads with at least {@link #MIN_DISCORDANCE_CPGS} CpGs covering the site</li>
+ * </ul>
+ * Zoom levels are the usual TDF mean summaries computed by the {@link Preprocessor}.
+ */
+public class HapToTDF {
+
+    private static Logger log = Logger.getLogger(HapToTDF.class);
+
+    public static final String[] TRACK_NAMES = {"methylation", "coverage", "discordance"};
+
+    public static final int METHYLATION = 0;
+    public static final int COVERAGE = 1;
+    public static final int DISCORDANCE = 2;
+
+    static final int MIN_DISCORDANCE_CPGS = 4;
+
+    // Per site counts: methylated CpGs, covering reads, discordant reads, reads eligible for discordance
+    private final TreeMap<Integer, int[]> sites = new TreeMap<>();
+
+    private final Preprocessor preprocessor;
+    private final CpGIndex cpgIndex;
+    private String currentChr;
+
+    private HapToTDF(Preprocessor preprocessor, Genome genome) {
+        this.preprocessor = preprocessor;
+        this.cpgIndex = new CpGIndex(genome);
+    }
+
+    /**
+     * @return the default name of the summary file of an mHap file, which {@link HapTrack} looks for
+     */
+    public static String getSummaryPath(String hapPath) {
+        return hapPath + ".tdf";
+    }
+
+    public static void convert(String hapFile, File tdfFile, Genome genome, int maxZoom) throws IOException {
+
+        Preprocessor preprocessor = new Preprocessor(tdfFile, genome, Arrays.asList(WindowFunction.mean), -1, null);
+        preprocessor.setNZoom(maxZoom);
+        preprocessor.setTrackParameters(TrackType.OTHER, null, TRACK_NAMES);
+
+        HapToTDF converter = new HapToTDF(preprocessor, genome);
+
+        long lineNumber = 0;
+        try (BufferedReader reader = ParsingUtils.openBufferedReader(hapFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                converter.add(HapLineParser.parseHapData(line));
+                if (lineNumber % 1000000 == 0) {
+                    log.info("Processed " + lineNumber + " lines");
+                }
+            }
+        }
+        converter.flush(Integer.MAX_VALUE);
+
+        preprocessor.finish();
+    }
+
+    private void add(HapData hapData) {
+        if (!hapData.chr.equals(currentChr)) {
+            flush(Integer.MAX_VALUE);
+            currentChr = hapData.chr;
+        }
+
+        // Records are sorted by start, no later read covers a CpG before this one's first
+        flush(hapData.start - 1);
+
+        boolean discordant = false;
+        boolean eligible = hapData.states.length >= MIN_DISCORDANCE_CPGS;
+        for (int k = 1; k < hapData.states.length && !discordant; k++) {
+            discordant = hapData.states[k] != hapData.states[0];
+        }
+
+        int[] cpgs = cpgIndex.getCpGs(hapData.chr, hapData.start - 1, hapData.end + 1);
+        int n = Math.min(cpgs.length, hapData.states.length);
+        for (int k = 0; k < n; k++) {
+            int[] counts = sites.computeIfAbsent(cpgs[k], position -> new int[4]);
+            if (hapData.states[k]) {
+                counts[0] += hapData.readCount;
+            }
+            counts[1] += hapData.readCount;
+            if (eligible) {
+                counts[3] += hapData.readCount;
+                if (discordant) {
+                    counts[2] += hapData.readCount;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the sites before {@code position}.
+     */
+    private void flush(int position) {
+        Iterator<Map.Entry<Integer, int[]>> it = sites.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, int[]> entry = it.next();
+            int site = entry.getKey();
+            if (site >= position) {
+                break;
+            }
+            int[] counts = entry.getValue();
+            float[] data = new float[TRACK_NAMES.length];
+            data[METHYLATION] = (float) counts[0] / counts[1];
+            data[COVERAGE] = counts[1];
+            data[DISCORDANCE] = counts[3] > 0 ? (float) counts[2] / counts[3] : Float.NaN;
+            preprocessor.addData(currentChr, site, site + 2, data, null);
+            it.remove();
+        }
+    }
+}
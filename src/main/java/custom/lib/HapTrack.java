@@ -1,6 +1,5 @@
 package custom.lib;
 
-import htsjdk.tribble.readers.TabixReader;
 import org.apache.log4j.Logger;
 import org.broad.igv.Globals;
 import org.broad.igv.event.IGVEventBus;
@@ -9,7 +8,13 @@ import org.broad.igv.feature.Chromosome;
 import org.broad.igv.feature.Strand;
 import org.broad.igv.feature.genome.Genome;
 import org.broad.igv.feature.genome.GenomeManager;
+import org.broad.igv.prefs.Constants;
+import org.broad.igv.prefs.IGVPreferences;
 import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.renderer.DataRange;
+import org.broad.igv.sam.DownsampledInterval;
+import org.broad.igv.tdf.TDFDataSource;
+import org.broad.igv.tdf.TDFReader;
 import org.broad.igv.track.*;
 import org.broad.igv.ui.FontManager;
 import org.broad.igv.ui.IGV;
@@ -17,8 +22,10 @@ import org.broad.igv.ui.UIConstants;
 import org.broad.igv.ui.panel.FrameManager;
 import org.broad.igv.ui.panel.IGVPopupMenu;
 import org.broad.igv.ui.panel.ReferenceFrame;
+import org.broad.igv.ui.panel.TrackPanelScrollPane;
 import org.broad.igv.ui.util.MessageUtils;
 import org.broad.igv.ui.util.UIUtilities;
+import org.broad.igv.util.ResourceLocator;
 
 import javax.swing.*;
 import java.awt.*;
@@ -27,6 +34,7 @@ import java.awt.event.ActionListener;
 import java.io.*;
 import java.util.*;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.broad.igv.prefs.Constants.MAX_SEQUENCE_RESOLUTION;
 
@@ -40,18 +48,36 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
     // Cached TCGA
     private Map<String, LoadedDataInterval<SequenceTrack.SeqCache>> loadedIntervalCache = new HashMap(200);
 
-    // For small dataset,we can just cache all the hap files.
-    public boolean isHapDataCached = false;
+    // Either all the hap data indexed in memory (small dataset) or a cached tabix stream
+    public HapDataSource dataSource;
 
-    // All loaded hap data in cache
-    public ArrayList<HapData> cachedHapData;
+    private final LoadTracker loadTracker = new LoadTracker();
+    private final LoadScheduler loadScheduler = new LoadScheduler(loadTracker);
 
-    // Stream loading
-    public TabixReader tabixReader;
+    // The haps in each frame's view range with a little expansion, allocated to rows, by frame name
+    private volatile Map<String, PackedHaps> packedHapsCache = Collections.synchronizedMap(new HashMap<>());
 
-    // All the haps that is in the view range with a little expansion..
-    private ArrayList<HapData> matchHapList = new ArrayList<>();
-    private List<HapData> displayableHapList = new ArrayList<>();
+    // Most rows of any frame, which sets the track height
+    private volatile int maxRowCount;
+
+    // Gap in bases between reads in a row, leaving room for the read count label
+    private static final int READ_SPACING = 4;
+
+    // Widest view, in bases, in which reads are drawn
+    private static final int MAX_READ_VIEW = 3000;
+
+    // Rendered panel of each frame, by frame name.  Only accessed on the event dispatch thread.
+    private final Map<String, HapTiles> tileCache = new HashMap<>();
+
+    // Incremented when a display option changes, invalidating the rendered tiles
+    private long displayVersion;
+
+    // Pixels drawn past the end of a read for its read count label
+    private static final int TILE_MARGIN = 100;
+
+    // Zoomed out summaries computed by "igvtools hapToTDF", one track per summary, null if there are none
+    private List<DataSourceTrack> summaryTracks;
+    private int summaryIndex = HapToTDF.METHYLATION;
 
     // Draw bar based on this information
     private Boolean isShowBar = true;
@@ -81,8 +107,6 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
 
     private boolean isShowFullReads = false;
 
-    private ReferenceFrame mainReferenceFrame;
-
     public HapTrack(String name) {
         super(null, name, name);
         setSortable(false);
@@ -92,57 +116,85 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
     }
 
 
-    // A Utility for calculating mean
-    public class MeanUtility {
-        public int counter = 0;
-        public int sum = 0;
-
-        public void AddValue(int val) {
-            counter += 1;
-            sum += val;
-        }
-
-        public double GetMean() {
-            return (1.0 * sum) / (1.0 * counter);
-        }
-    }
-
-    public class AlignInfo {
-        public AlignInfo(int start, int end) {
-            this.start = start;
-            this.end = end;
-        }
-
-        public int start;
-        public int end;
-    }
-
-    private String BooleanToString(boolean[] booleans) {
-        String str = "";
-
-        for (int i = 0; i < booleans.length; i++) {
-            str += String.valueOf(booleans[i] ? 1 : 0);
-        }
-
-        return str;
-    }
-
     public void receiveEvent(Object event) {
         if (event instanceof FrameManager.ChangeEvent) {
             log.info("Reload the data due the event!");
 
+            // Forget frames that no longer exist, the repaint that follows loads the new ones off the event thread.
             Collection<ReferenceFrame> frames = ((FrameManager.ChangeEvent) event).getFrames();
-
+            Map<String, LoadedDataInterval<SequenceTrack.SeqCache>> newCache = Collections.synchronizedMap(new HashMap<>());
+            Map<String, PackedHaps> newHaps = Collections.synchronizedMap(new HashMap<>());
             for (ReferenceFrame f : frames) {
-                load(f);
+                LoadedDataInterval<SequenceTrack.SeqCache> interval = loadedIntervalCache.get(f.getName());
+                PackedHaps packed = packedHapsCache.get(f.getName());
+                if (interval != null && packed != null) {
+                    newCache.put(f.getName(), interval);
+                    newHaps.put(f.getName(), packed);
+                }
             }
+            synchronized (this) {
+                packedHapsCache = newHaps;
+                loadedIntervalCache = newCache;
+                updateMaxRowCount();
+            }
+            Iterator<Map.Entry<String, HapTiles>> tiles = tileCache.entrySet().iterator();
+            while (tiles.hasNext()) {
+                Map.Entry<String, HapTiles> entry = tiles.next();
+                if (!newHaps.containsKey(entry.getKey())) {
+                    entry.getValue().dispose();
+                    tiles.remove();
+                }
+            }
+            loadScheduler.retainFrames(frames.stream().map(ReferenceFrame::getName).collect(Collectors.toList()));
         } else {
             log.info("Unknown event type: " + event.getClass());
         }
     }
 
+    /**
+     * Use the summaries in the TDF file written by "igvtools hapToTDF" when zoomed out too far to draw reads.
+     */
+    public void setSummary(String tdfPath) {
+        TDFReader reader = TDFReader.getReader(tdfPath);
+        Genome genome = GenomeManager.getInstance().getCurrentGenome();
+        ResourceLocator locator = new ResourceLocator(tdfPath);
+
+        List<DataSourceTrack> tracks = new ArrayList<>();
+        String[] trackNames = reader.getTrackNames();
+        for (int i = 0; i < trackNames.length; i++) {
+            DataSourceTrack track = new DataSourceTrack(locator, tdfPath + "_" + trackNames[i], getName() + " " + trackNames[i],
+                    new TDFDataSource(reader, i, trackNames[i], genome));
+            if (i != HapToTDF.COVERAGE) {
+                // Fractions
+                track.setAutoScale(false);
+                track.setDataRange(new DataRange(0, 0, 1));
+            }
+            tracks.add(track);
+        }
+        summaryTracks = tracks;
+    }
+
+    /**
+     * @return the summary track to draw in place of the reads, or null if the reads are drawn
+     */
+    private DataSourceTrack getSummaryTrack(ReferenceFrame frame) {
+        List<DataSourceTrack> tracks = summaryTracks;
+        if (tracks == null || summaryIndex >= tracks.size()) {
+            return null;
+        }
+        int resolutionThreshold = PreferencesManager.getPreferences().getAsInt(MAX_SEQUENCE_RESOLUTION);
+        boolean zoomedOut = frame.getEnd() - frame.getOrigin() > MAX_READ_VIEW ||
+                frame.getScale() >= resolutionThreshold || frame.getChrName().equals(Globals.CHR_ALL);
+        return zoomedOut ? tracks.get(summaryIndex) : null;
+    }
+
     @Override
     public boolean isReadyToPaint(ReferenceFrame frame) {
+        DataSourceTrack summaryTrack = getSummaryTrack(frame);
+        if (summaryTrack != null) {
+            return summaryTrack.isReadyToPaint(frame);
+        }
+
         int resolutionThreshold = PreferencesManager.getPreferences().getAsInt(MAX_SEQUENCE_RESOLUTION);
         boolean visible = frame.getScale() < resolutionThreshold && !frame.getChrName().equals(Globals.CHR_ALL);
 
@@ -162,7 +214,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
         refreshItem.setSelected(false);
         refreshItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                repaint();
+                displayChanged();
             }
         });
         menu.add(refreshItem);
@@ -172,7 +224,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
         toggleAverageSizeItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 isCombineStrand = !isCombineStrand;
-                repaint();
+                reload();
             }
         });
         menu.add(toggleAverageSizeItem);
@@ -182,8 +234,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
         toggleShowFullReads.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 isShowFullReads = !isShowFullReads;
-                load(mainReferenceFrame);
-                repaint();
+                reload();
             }
         });
         menu.add(toggleShowFullReads);
@@ -193,7 +244,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
         toggleBarItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 isShowBar = !isShowBar;
-                repaint();
+                displayChanged();
             }
         });
         menu.add(toggleBarItem);
@@ -206,7 +257,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
                     int value = Integer.parseInt(t);
                     circleRadius = value;
                     circleMargin = Math.max(circleMargin, circleRadius);
-                    repaint();
+                    displayChanged();
                 } catch (NumberFormatException e1) {
                     MessageUtils.showErrorMessage("Circle size must be an integer", e1);
                 }
@@ -221,7 +272,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
                 try {
                     int value = Integer.parseInt(t);
                     circleMargin = Math.max(circleRadius, value);
-                    repaint();
+                    displayChanged();
                 } catch (NumberFormatException e1) {
                     MessageUtils.showErrorMessage("Circle margin must be an integer", e1);
                 }
@@ -236,7 +287,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
                 try {
                     int value = Integer.parseInt(t);
                     barHeight = value;
-                    repaint();
+                    displayChanged();
                 } catch (NumberFormatException e1) {
                     MessageUtils.showErrorMessage("Bar height must be an integer", e1);
                 }
@@ -251,7 +302,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
                 try {
                     int value = Integer.parseInt(t);
                     barWidth = value;
-                    repaint();
+                    displayChanged();
                 } catch (NumberFormatException e1) {
                     MessageUtils.showErrorMessage("Bar width must be an integer", e1);
                 }
@@ -266,7 +317,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
             PositiveStrandColor = UIUtilities.showColorChooserDialog(
                     "Change Positive Strand Color",
                     PositiveStrandColor);
-            repaint();
+            displayChanged();
         });
         setColorMenu.add(posStrandColorItem);
 
@@ -275,7 +326,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
             NegativeStrandColor = UIUtilities.showColorChooserDialog(
                     "Change Negative Strand Color",
                     NegativeStrandColor);
-            repaint();
+            displayChanged();
         });
         setColorMenu.add(negStrandColorItem);
 
@@ -284,11 +335,42 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
             UnknownStrandColor = UIUtilities.showColorChooserDialog(
                     "Change Unknown Strand Color",
                     UnknownStrandColor);
-            repaint();
+            displayChanged();
         });
         setColorMenu.add(unknownStrandColorItem);
         menu.add(setColorMenu);
 
+        final JMenuItem linkageItem = new JMenuItem("Show CpG Linkage");
+        linkageItem.addActionListener(e -> {
+            TrackPanelScrollPane linkageScrollPane = IGV.getInstance().addDataPanel("CpG Linkage");
+            linkageScrollPane.setName("CpG linkage of " + getName());
+
+            CorrelationTrack linkageTrack = new CorrelationTrack("CpG Linkage of " + getName());
+            linkageTrack.dataSource = new LinkageCorrelationSource(dataSource,
+                    CpGIndex.getInstance(GenomeManager.getInstance().getCurrentGenome()));
+            CorrelationTrack.Instances.add(linkageTrack);
+            linkageScrollPane.getTrackPanel().addTrack(linkageTrack);
+
+            repaint();
+        });
+        menu.add(linkageItem);
+
+        if (summaryTracks != null) {
+            JMenu summaryMenu = new JMenu("Zoomed Out Summary");
+            ButtonGroup group = new ButtonGroup();
+            for (int i = 0; i < HapToTDF.TRACK_NAMES.length && i < summaryTracks.size(); i++) {
+                final int index = i;
+                JRadioButtonMenuItem summaryItem = new JRadioButtonMenuItem(HapToTDF.TRACK_NAMES[i], summaryIndex == i);
+                summaryItem.addActionListener(e -> {
+                    summaryIndex = index;
+                    IGV.getInstance().repaint();
+                });
+                group.add(summaryItem);
+                summaryMenu.add(summaryItem);
+            }
+            menu.add(summaryMenu);
+        }
+
 
         return menu;
     }
@@ -297,10 +379,23 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
         IGV.getMainFrame().repaint();
     }
 
+    /**
+     * Redraw the reads after a change of the display options.
+     */
+    private void displayChanged() {
+        displayVersion++;
+        repaint();
+    }
+
     @Override
     public void load(ReferenceFrame referenceFrame) {
-        mainReferenceFrame = referenceFrame;
+        DataSourceTrack summaryTrack = getSummaryTrack(referenceFrame);
+        if (summaryTrack != null) {
+            summaryTrack.load(referenceFrame);
+            return;
+        }
 
+        final String frameName = referenceFrame.getName();
         String chr = referenceFrame.getChrName();
         final Genome currentGenome = GenomeManager.getInstance().getCurrentGenome();
 
@@ -311,120 +406,193 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
         int end = (int) referenceFrame.getEnd();
         int w = end - start;
 
-        // Expand a bit for panning and AA caluclation
-        start = Math.max(0, start - w / 2 + 2);
-        end = Math.min(end + w / 2 + 2, chromosomeLength);
+        // Loads run on IGV's loader threads.  A newer load for the same frame supersedes this one.
+        final long ticket = loadTracker.begin(frameName, chr, start, end);
+        if (ticket < 0) {
+            // A load in flight already covers the frame, returning now would leave the frame unready and have
+            // the repaint request another load straight away
+            loadTracker.awaitInFlight(frameName);
+            return;
+        }
 
+        try {
+            // Expand for panning, further in the direction of the pan, and a bit for AA caluclation
+            int[] range = loadScheduler.getLoadRange(frameName, chr, start, end);
+            start = Math.max(0, range[0] + 2);
+            end = Math.min(range[1] + 2, chromosomeLength);
+            loadTracker.setRange(frameName, ticket, chr, start, end);
 
-        Genome genome = currentGenome;
-        String sequence = new String(genome.getSequence(chr, start, end));
+            // Let a drag settle, the loads it supersedes never query the source
+            if (!loadScheduler.awaitSettled(frameName, ticket)) {
+                return;
+            }
 
+            IGVPreferences prefs = PreferencesManager.getPreferences();
+            Genome genome = currentGenome;
+            String sequence = new String(genome.getSequence(chr, start, end));
 
-        int mod = start % 3;
-        int n1 = normalize3(3 - mod);
-        int n2 = normalize3(n1 + 1);
-        int n3 = normalize3(n2 + 1);
 
-        // Now trim sequence to prevent dangling AAs
-        int deltaStart = start == 0 ? 0 : 2;
-        int deltaEnd = end == chromosomeLength ? 0 : 02;
-        start += deltaStart;
-        end -= deltaEnd;
-        final int len = sequence.length();
-        byte[] seq = sequence.substring(deltaStart, len - deltaEnd).getBytes();
+            int mod = start % 3;
+            int n1 = normalize3(3 - mod);
+            int n2 = normalize3(n1 + 1);
+            int n3 = normalize3(n2 + 1);
 
-        SequenceTrack.SeqCache cache = new SequenceTrack.SeqCache(start, seq);
-        cache.refreshAminoAcids();
-        loadedIntervalCache.put(referenceFrame.getName(), new LoadedDataInterval<>(chr, start, end, cache));
+            // Now trim sequence to prevent dangling AAs
+            int deltaStart = start == 0 ? 0 : 2;
+            int deltaEnd = end == chromosomeLength ? 0 : 02;
+            start += deltaStart;
+            end -= deltaEnd;
+            final int len = sequence.length();
+            byte[] seq = sequence.substring(deltaStart, len - deltaEnd).getBytes();
 
-        if (w > 3000) {
-            log.info("The view is too large");
-            return;
-        }
+            SequenceTrack.SeqCache cache = new SequenceTrack.SeqCache(start, seq);
+            cache.refreshAminoAcids();
+            LoadedDataInterval<SequenceTrack.SeqCache> interval = new LoadedDataInterval<>(chr, start, end, cache);
 
-        // Expand the range a bit to avoid missing data.
-        final int matchStart = start - 150, matchEnd = end + 150;
+            if (w > MAX_READ_VIEW) {
+                log.info("The view is too large");
+                publish(frameName, ticket, interval, PackedHaps.empty());
+                return;
+            }
 
-        matchHapList = new ArrayList<>();
-        ArrayList<HapData> tmpHapList = new ArrayList<>();
+            // Expand the range a bit to avoid missing data.
+            final int matchStart = start - 150, matchEnd = end + 150;
 
-        if (isHapDataCached) {
-            cachedHapData.forEach(e -> {
-                if (e.chr.equals(chr) && e.start >= matchStart && e.end <= matchEnd) {
-                    tmpHapList.add(e);
-                }
-            });
-        } else {
-            log.info("Stream request hap data... Starting from:" + matchStart + " to " + matchEnd + " in " + chr);
+            ArrayList<HapData> loadedHapList = new ArrayList<>();
+            ArrayList<HapData> tmpHapList = new ArrayList<>();
 
-            TabixReader.Iterator it = tabixReader.query(chr, matchStart, matchEnd);
+            // Unless reads are shown individually, reads with same chr, start, end, pattern and strand are merged
+            // as they stream in
+            HapAggregator aggregator = isShowFullReads ? null : new HapAggregator(isCombineStrand);
+            int nRecords = 0;
 
-            while (true) {
-                try {
-                    String str = it.next();
+            log.info("Request hap data... Starting from:" + matchStart + " to " + matchEnd + " in " + chr);
 
-                    if (str == null) {
-                        break;
+            try {
+                if (aggregator != null && dataSource instanceof IndexedHapSource) {
+                    // Cached records are merged straight from the store, a HapData is only built per distinct haplotype
+                    IndexedHapSource cached = (IndexedHapSource) dataSource;
+                    PrimitiveIterator.OfInt records = cached.queryRecords(chr, matchStart, matchEnd);
+                    while (records.hasNext()) {
+                        if (!loadTracker.isCurrent(frameName, ticket)) {
+                            log.debug("Superseded load of " + chr + ":" + matchStart + "-" + matchEnd);
+                            return;
+                        }
+                        aggregator.add(cached.getStore(), records.nextInt());
+                        nRecords++;
+                    }
+                } else {
+                    Iterator<HapData> it = dataSource.query(chr, matchStart, matchEnd);
+                    while (it.hasNext()) {
+                        if (!loadTracker.isCurrent(frameName, ticket)) {
+                            log.debug("Superseded load of " + chr + ":" + matchStart + "-" + matchEnd);
+                            return;
+                        }
+                        HapData hapData = it.next();
+                        if (aggregator != null) {
+                            aggregator.add(hapData);
+                        } else {
+                            tmpHapList.add(hapData);
+                        }
+                        nRecords++;
                     }
-
-                    HapData e = CustomUtility.CreateHapFromString(str.split("[\\s\t]+"));
-                    tmpHapList.add(e);
-
-//                    log.info(hapData.chr + " " + hapData.start + " " + hapData.end);
-                } catch (IOException exception) {
-                    exception.printStackTrace();
-                    JOptionPane.showConfirmDialog(null, "Failed to load .tbi file! You should put .tbi file in the same folder.", "Exception", JOptionPane.ERROR_MESSAGE);
                 }
+            } catch (IOException exception) {
+                MessageUtils.showErrorMessage("Failed to load hap data! For *.gz files you should put the .tbi file in the same folder.", exception);
             }
 
-            log.info(tmpHapList.size() + " files have been loaded to MatchHap");
-        }
-
-        if (isShowFullReads) {
-            tmpHapList.forEach(x -> {
-                for (int i = 0; i < x.readCount; i++) {
-                    matchHapList.add(new HapData(x.chr, x.start, x.end, x.states, 1, x.strand));
-                }
-            });
-        } else {
-            Map<String, Integer> timer = new HashMap<>(); // Timer to accumulate read counts
-            Map<String, HapData> hapTemplate = new Hashtable<>(); // Hapdata template
-
-            for (int i = 0; i < tmpHapList.size(); i++) {
-                HapData hapData = tmpHapList.get(i);
+            log.info(nRecords + " files have been loaded to MatchHap");
+
+            List<DownsampledInterval> downsampledIntervals = Collections.emptyList();
+            if (aggregator != null) {
+                loadedHapList.addAll(aggregator.getResults());
+            } else if (prefs.getAsBoolean(Constants.MHAP_DOWNSAMPLE_READS)) {
+                // Deep regions would expand into millions of reads, draw a bounded sample of them
+                HapDownsampler downsampler = new HapDownsampler(prefs.getAsInt(Constants.MHAP_SAMPLING_WINDOW),
+                        prefs.getAsInt(Constants.MHAP_SAMPLING_COUNT));
+                downsampler.sample(tmpHapList);
+                loadedHapList.addAll(downsampler.getReads());
+                downsampledIntervals = downsampler.getDownsampledIntervals();
+            } else {
+                tmpHapList.forEach(x -> {
+                    for (int i = 0; i < x.readCount; i++) {
+                        loadedHapList.add(new HapData(x.chr, x.start, x.end, x.states, 1, x.strand));
+                    }
+                });
+            }
 
-                StringBuilder stringBuilder = new StringBuilder();
-                stringBuilder.append(hapData.chr);
-                stringBuilder.append(hapData.start);
-                stringBuilder.append(hapData.end);
-                stringBuilder.append(BooleanToString(hapData.states));
+            // Find the CpGs of the reads here, render then only slices them and never scans the reference
+            CpGIndex cpgIndex = CpGIndex.getInstance(currentGenome);
+            int cpgStart = matchStart - 1, cpgEnd = matchEnd + 1;
+            for (HapData hapData : loadedHapList) {
+                cpgStart = Math.min(cpgStart, hapData.start - 1);
+                cpgEnd = Math.max(cpgEnd, hapData.end + 1);
+            }
+            int[] readCpGs = cpgIndex.getCpGs(chr, cpgStart, cpgEnd);
 
-                if (isCombineStrand) {
-                    stringBuilder.append(Strand.POSITIVE);
-                } else {
-                    stringBuilder.append(hapData.strand);
-                }
+            // Count the mean bars of the CpGs drawn, the last base excepted, from every read
+            CpGCounts cpgCounts = CpGCounts.count(aggregator != null ? loadedHapList : tmpHapList,
+                    cpgIndex.getCpGs(chr, start, start + seq.length - 1), cpgIndex, isCombineStrand);
 
-                String key = stringBuilder.toString();
+            // Lay out the rows once here, render only draws
+            PackedHaps packed = PackedHaps.pack(loadedHapList, aggregator != null ? READ_SPACING : 1,
+                    readCpGs, cpgCounts, downsampledIntervals);
 
-//            log.info(key);
+            if (publish(frameName, ticket, interval, packed)) {
+                log.info("Repaint the frame from " + chr + " : " + matchStart + " - " + matchEnd + "Width: " + (matchEnd - matchStart));
 
-                if (timer.containsKey(key)) {
-                    timer.replace(key, timer.get(key) + hapData.readCount);
-                } else {
-                    timer.put(key, hapData.readCount);
-                    hapTemplate.put(key, hapData);
+                // Warm the cache with the data of the next window while the user pans, other sources keep nothing
+                // of a query
+                if (dataSource instanceof CachingHapSource) {
+                    loadScheduler.prefetch(frameName, chr, matchStart, matchEnd, chromosomeLength,
+                            (c, s, e) -> dataSource.query(c, s, e));
                 }
             }
+        } finally {
+            loadTracker.finish(frameName, ticket);
+        }
+    }
 
-            timer.forEach((k, v) -> {
-                HapData t = hapTemplate.get(k);
-                matchHapList.add(new HapData(t.chr, t.start, t.end, t.states, timer.get(k), t.strand));
-            });
+    /**
+     * Make the result of a load visible to {@link #render}, unless the load has been superseded in the meantime.
+     * The packed haps are swapped in before the interval so a frame is never reported ready with stale reads.
+     * Each frame has its own data, so loads of the loci of a gene list run concurrently without overwriting each
+     * other.
+     */
+    private synchronized boolean publish(String frameName, long ticket,
+                                         LoadedDataInterval<SequenceTrack.SeqCache> interval,
+                                         PackedHaps packed) {
+        if (!loadTracker.isCurrent(frameName, ticket)) {
+            return false;
         }
-        // A smart way to merge reads with same chr,start,end,state and strand.
+        packedHapsCache.put(frameName, packed);
+        loadedIntervalCache.put(frameName, interval);
+        updateMaxRowCount();
+        return true;
+    }
 
-        log.info("Repaint the frame from " + chr + " : " + matchStart + " - " + matchEnd + "Width: " + (matchEnd - matchStart));
+    private synchronized void updateMaxRowCount() {
+        int rows = 0;
+        synchronized (packedHapsCache) {
+            for (PackedHaps packed : packedHapsCache.values()) {
+                rows = Math.max(rows, packed.getRowCount());
+            }
+        }
+        maxRowCount = rows;
+    }
+
+    /**
+     * Drop all loaded data so the next repaint reloads it with the current display options.  Synchronized with
+     * {@link #publish}, so a load can't store data built with the previous options once it's dropped.
+     */
+    private synchronized void reload() {
+        loadTracker.cancelAll();
+        packedHapsCache.clear();
+        loadedIntervalCache.clear();
+        updateMaxRowCount();
+        tileCache.values().forEach(HapTiles::dispose);
+        tileCache.clear();
+        IGV.getInstance().repaint();
     }
 
     private static int normalize3(int n) {
@@ -433,6 +601,12 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
 
     @Override
     public void render(RenderContext context, Rectangle rect) {
+        DataSourceTrack summaryTrack = getSummaryTrack(context.getReferenceFrame());
+        if (summaryTrack != null) {
+            summaryTrack.render(context, rect);
+            return;
+        }
+
         int resolutionThreshold = PreferencesManager.getPreferences().getAsInt(MAX_SEQUENCE_RESOLUTION);
 
         final String frameName = context.getReferenceFrame().getName();
@@ -443,249 +617,220 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
             context.getGraphic2DForColor(UIConstants.LIGHT_GREY).fill(rect);
         } else {
             LoadedDataInterval<SequenceTrack.SeqCache> sequenceInterval = loadedIntervalCache.get(frameName);
+            PackedHaps packed = packedHapsCache.get(frameName);
+            if (sequenceInterval == null || packed == null) {
+                return;
+            }
 
+            // Draw the cached tiles of the panel, only the missing ones are rendered
             double locScale = context.getScale();
-            int start = (int) context.getOrigin();
-            int end = (int) (start + rect.width * locScale) + 1;
-
-            SequenceTrack.SeqCache cache = sequenceInterval.getFeatures();
-            byte[] seq = cache.seq;
-
-            int sequenceStart = cache.start;
-            int sequenceEnd = sequenceInterval.range.getEnd();
-
-            String chr = sequenceInterval.range.getChr();
+            HapTiles tiles = tileCache.get(frameName);
+            if (tiles == null || !tiles.isValid(packed, locScale, rect.height, displayVersion)) {
+                if (tiles != null) {
+                    tiles.dispose();
+                }
+                tiles = new HapTiles(packed, locScale, rect.height, displayVersion);
+                tileCache.put(frameName, tiles);
+            }
+            tiles.draw(context.getGraphics2D("SEQUENCE"), context.getOrigin(), rect, context.getVisibleRect(),
+                    (g, origin, tileRect) -> drawHaps(g, sequenceInterval, packed, origin, locScale, tileRect));
+        }
+    }
 
-            if (end <= sequenceStart) return;
+    /**
+     * Draw the mean bars and the reads of a frame as if its view started at base {@code origin}.
+     */
+    private void drawHaps(Graphics2D g, LoadedDataInterval<SequenceTrack.SeqCache> sequenceInterval, PackedHaps packed,
+                          double origin, double locScale, Rectangle rect) {
+        SequenceTrack.SeqCache cache = sequenceInterval.getFeatures();
+        byte[] seq = cache.seq;
 
-            //The combined height of sequence and (optionally) colorspace bands
-            int untranslatedSequenceHeight = (int) rect.getHeight();
+        int sequenceStart = cache.start;
 
+        //The combined height of sequence and (optionally) colorspace bands
+        int untranslatedSequenceHeight = (int) rect.getHeight();
 
-            //Rectangle containing the sequence and (optionally) colorspace bands
-            Rectangle untranslatedSequenceRect = new Rectangle(rect.x, rect.y,
-                    (int) rect.getWidth(), untranslatedSequenceHeight);
 
-            int yBase = untranslatedSequenceRect.y + 2;
-            int dY = untranslatedSequenceRect.height - 4;
-            int dX = (int) (1.0 / locScale);
-            // Create a graphics to use
-            Graphics2D g = context.getGraphics2D("SEQUENCE");
+        //Rectangle containing the sequence and (optionally) colorspace bands
+        Rectangle untranslatedSequenceRect = new Rectangle(rect.x, rect.y,
+                (int) rect.getWidth(), untranslatedSequenceHeight);
 
-            //dhmay adding check for adequate track height
-            int perferedMinSize = 8;
-            int fontSize = Math.min(untranslatedSequenceRect.height, Math.min(dX, 12));
+        int yBase = untranslatedSequenceRect.y + 2;
+        int dX = (int) (1.0 / locScale);
 
-            if (fontSize >= perferedMinSize) {
-                Font f = FontManager.getFont(Font.BOLD, fontSize);
-                g.setFont(f);
-            }
-
-            double origin = context.getOrigin();
-            int scale = Math.max(1, (int) context.getScale());
+        //dhmay adding check for adequate track height
+        int perferedMinSize = 8;
+        int fontSize = Math.min(untranslatedSequenceRect.height, Math.min(dX, 12));
 
-            int lastVisibleEnd = Math.min(end, seq.length + sequenceStart);
+        if (fontSize >= perferedMinSize) {
+            Font f = FontManager.getFont(Font.BOLD, fontSize);
+            g.setFont(f);
+        }
 
+        // Left and right edges of the loaded sequence
+        int sequenceX0 = (int) ((sequenceStart - origin) / locScale);
+        int sequenceX1 = (int) ((sequenceStart + seq.length - origin) / locScale);
+
+        // CpGs of all the reads, found when they were loaded
+        int[] readCpGs = packed.getCpGs();
+
+        // Mark the intervals that lost reads to downsampling above the reads
+        g.setColor(Color.BLACK);
+        for (DownsampledInterval interval : packed.getDownsampledIntervals()) {
+            int x0 = (int) ((interval.getStart() - origin) / locScale);
+            int x1 = (int) ((interval.getEnd() - origin) / locScale);
+            int w = Math.max(1, x1 - x0);
+            if (w > 5) w--;
+            g.fillRect(x0, yBase + GetBarBottom(), w, 3);
+        }
 
-            Map<Integer, MeanUtility> meanDic = new HashMap<>();
+        // Draw Dvision
+        if (isShowBar) {
+            g.setColor(Color.BLACK);
+            g.drawLine(sequenceX0, barBeginY, sequenceX1, barBeginY);
+            g.drawLine(sequenceX0, barBeginY + barHeight, sequenceX1, barBeginY + barHeight);
+        }
 
-            ArrayList<AlignInfo> alignInfos = new ArrayList<>();
+        // Display HapData
+        for (int hapIndex = 0; hapIndex < packed.size(); hapIndex++) {
+            HapData hapData = packed.get(hapIndex);
+            if (isOutside(hapData.start - 1, hapData.end + 1, origin, locScale, rect)) {
+                continue;
+            }
+            int anchor = 0;
 
-            Map<Integer, Integer> cpgColDic = new HashMap<>();
+            // Rows were allocated when the data was loaded
+            int readColIndex = packed.getRow(hapIndex) + 1;
 
-            if (matchHapList != null) {
-                // Draw Dvision
-                if (isShowBar) {
-                    g.setColor(Color.BLACK);
-                    g.drawLine(0, barBeginY, (int) (seq.length / locScale), barBeginY);
-                    g.drawLine(0, barBeginY + barHeight, (int) (seq.length / locScale), barBeginY + barHeight);
-                }
+            ArrayList<Integer> circleXList = new ArrayList<>();
+            ArrayList<Integer> circleYList = new ArrayList<>();
 
-                // Display HapData
-                displayableHapList = matchHapList;
+            boolean beginPadding = false;
+            boolean endPadding = false;
 
-                for (HapData hapData : displayableHapList) {
-                    int anchor = 0;
+            Color strandColor = GetColorByStrand(g, hapData);
+            g.setColor(strandColor);
 
-                    // Avoid overlapping of reads.
-                    int strandOffset = 0;
+            // CpGs covered by the read, bit k of the pattern belongs to readCpGs[first + k]
+            int first = CpGIndex.lowerBound(readCpGs, hapData.start - 1);
+            int covered = CpGIndex.lowerBound(readCpGs, hapData.end + 1) - first;
+            for (; anchor < covered && anchor < hapData.states.length; anchor++) {
+                int idx = readCpGs[first + anchor] - sequenceStart;
 
-                    if (hapData.strand == Strand.NEGATIVE) {
-                        strandOffset = -1;
+                // Avoid data and line missing and prevent overflow.
+                if (idx < 0) {
+                    if (!beginPadding && hapData.end > sequenceStart) {
+                        beginPadding = true;
+                        circleXList.add(sequenceX0);
+                        circleYList.add(yBase + GetBarBottom() + readColIndex * circleMargin + circleRadius);
                     }
 
-                    int overlapDetectStart = hapData.start + strandOffset;
-                    int overlapDetectEnd = hapData.end + strandOffset;
-
-                    int readColIndex = (int) alignInfos.stream().filter(x -> (
-                            hapData.start >= overlapDetectStart && hapData.start <= overlapDetectEnd) ||
-                            (hapData.end >= overlapDetectStart && hapData.end <= overlapDetectEnd) ||
-                            (hapData.start <= overlapDetectStart && hapData.end >= overlapDetectEnd) ||
-                            (hapData.start >= overlapDetectStart && hapData.end <= overlapDetectEnd)
-                    ).count();
-
-                    // Avoid overlapping of cpgs.
-                    if (cpgColDic.containsKey(overlapDetectStart)) {
-                        readColIndex = Math.max(cpgColDic.get(overlapDetectStart), readColIndex);
-                        cpgColDic.remove(hapData.start + strandOffset);
-                    }
+                    continue;
+                }
 
-                    if (cpgColDic.containsKey(overlapDetectEnd)) {
-                        readColIndex = Math.max(cpgColDic.get(overlapDetectEnd), readColIndex);
-                        cpgColDic.remove(hapData.end + strandOffset);
+                // Avoid data and line missing and prevent overflow.
+                if (idx >= seq.length - 1) {
+                    if (!endPadding) {
+                        endPadding = true;
+                        circleXList.add(sequenceX1);
+                        circleYList.add(yBase + GetBarBottom() + readColIndex * circleMargin + circleRadius);
                     }
 
-                    readColIndex += 1;
-
-                    cpgColDic.put(overlapDetectStart, readColIndex);
-                    cpgColDic.put(overlapDetectEnd, readColIndex);
+                    continue;
+                }
 
-                    alignInfos.add(new AlignInfo(hapData.start, hapData.end));
+                // Draw different point depending on the strand
+                int drawIdx = hapData.strand == Strand.NEGATIVE ? idx + 1 : idx;
 
-                    ArrayList<Integer> circleXList = new ArrayList<>();
-                    ArrayList<Integer> circleYList = new ArrayList<>();
+                boolean state = hapData.states[anchor];
 
-                    boolean beginPadding = false;
-                    boolean endPadding = false;
+                if (hapData.strand == Strand.NEGATIVE && isCombineStrand) {
+                    drawIdx -= 1;
+                }
 
-                    Color strandColor = GetColorByStrand(g, hapData);
-                    g.setColor(strandColor);
+                int pX0 = (int) ((drawIdx + sequenceStart - origin) / locScale);
 
-                    // Refer the example in the sequence track and it start with start-1 (I don't know why but just do it!)
-                    for (int loc = hapData.start - 1; loc <= hapData.end; loc += scale) {
-                        int idx = loc - sequenceStart;
+                circleXList.add(pX0 + dX / 2 - circleRadius / 2);
+                circleYList.add(yBase + GetBarBottom() + readColIndex * circleMargin + circleRadius);
 
-                        // Avoid data and line missing and prevent overflow.
-                        if (idx < 0 && hapData.end > sequenceStart) {
-                            if (!beginPadding) {
-                                beginPadding = true;
-                                circleXList.add(0);
-                                circleYList.add(yBase + GetBarBottom() + readColIndex * circleMargin + circleRadius);
-                            }
+                if (!state) {
+                    // Draw White Circle!
+                    if (fontSize >= perferedMinSize) {
+                        drawOval(g, pX0 + dX / 2 - circleRadius / 2, yBase + GetBarBottom() + readColIndex * circleMargin, circleRadius, circleRadius);
+                    }
+                } else {
+                    // Draw Black Circle!
+                    if (fontSize >= perferedMinSize) {
+                        drawFillOval(g, pX0 + dX / 2 - circleRadius / 2, yBase + GetBarBottom() + readColIndex * circleMargin, circleRadius, circleRadius);
+                    }
+                }
+            }
 
-                            continue;
-                        }
+            if (fontSize >= perferedMinSize) {
+                // Draw line to connect every circle with some interval
+                for (int i = 0; i < circleXList.size() - 1; i++) {
+                    g.drawLine(
+                            circleXList.get(i) + circleRadius,
+                            circleYList.get(i) - circleRadius / 2,
+                            circleXList.get(i + 1),
+                            circleYList.get(i + 1) - circleRadius / 2
+                    );
+                }
 
-                        if (idx < 0 && hapData.end <= sequenceStart) {
-                            continue;
-                        }
+                if (!isShowFullReads) {
+                    // Draw read count font
+                    int offset = hapData.strand == Strand.NEGATIVE ? 1 : 0;
 
-                        // Avoid data and line missing and prevent overflow.
-                        if (idx >= seq.length - 1) {
-                            if (!endPadding) {
-                                endPadding = true;
-                                circleXList.add((int) (seq.length / locScale));
-                                circleYList.add(yBase + GetBarBottom() + readColIndex * circleMargin + circleRadius);
-                            }
+                    if (isCombineStrand) {
+                        offset = 0;
+                    }
 
-                            continue;
-                        }
+                    int pX0 = (int) ((hapData.end - origin + offset) / locScale);
+                    drawText(g, ("(" + hapData.readCount + ")").toCharArray(), pX0, yBase + GetBarBottom() + readColIndex * circleMargin + circleRadius, dX);
+                }
+            }
+        }
 
-                        // Draw different point depending on the strand
-                        int drawIdx = -1;
-
-                        if (hapData.strand == Strand.NONE || hapData.strand == Strand.POSITIVE) {
-                            if (Character.toLowerCase((char) seq[idx]) == 'c' && Character.toLowerCase((char) seq[idx + 1]) == 'g') {
-                                drawIdx = idx;
-                            }
-                        } else if (hapData.strand == Strand.NEGATIVE) {
-                            if (Character.toLowerCase((char) seq[idx]) == 'c' && Character.toLowerCase((char) seq[idx + 1]) == 'g') {
-                                drawIdx = idx + 1;
-                            }
-                        }
+        g.setColor(Color.BLACK);
 
-                        if (drawIdx != -1) {
-                            boolean state = hapData.states[anchor];
-
-                            if (hapData.strand == Strand.NEGATIVE && isCombineStrand) {
-                                drawIdx -= 1;
-                            }
-
-                            for (int j = 0; j < hapData.readCount; j++) {
-                                if (!meanDic.containsKey(drawIdx)) {
-                                    meanDic.put(drawIdx, new MeanUtility());
-                                }
-
-                                meanDic.get(drawIdx).AddValue(state ? 1 : 0);
-                            }
-
-                            int pX0 = (int) ((drawIdx + sequenceStart - origin) / locScale);
-
-                            circleXList.add(pX0 + dX / 2 - circleRadius / 2);
-                            circleYList.add(yBase + GetBarBottom() + readColIndex * circleMargin + circleRadius);
-
-                            if (!state) {
-                                // Draw White Circle!
-                                if (fontSize >= perferedMinSize) {
-                                    drawOval(g, pX0 + dX / 2 - circleRadius / 2, yBase + GetBarBottom() + readColIndex * circleMargin, circleRadius, circleRadius);
-                                }
-                            } else {
-                                // Draw Black Circle!
-                                if (fontSize >= perferedMinSize) {
-                                    drawFillOval(g, pX0 + dX / 2 - circleRadius / 2, yBase + GetBarBottom() + readColIndex * circleMargin, circleRadius, circleRadius);
-                                }
-                            }
-                            anchor++;
-                        }
+        if (isShowBar) {
+            // Draw Mean, counted when the data was loaded.  Reverse strand CpGs are drawn on the G.
+            CpGCounts cpgCounts = packed.getCpGCounts();
+            for (int i = 0; i < cpgCounts.size(); i++) {
+                for (int strand = CpGCounts.FORWARD; strand <= CpGCounts.REVERSE; strand++) {
+                    if (cpgCounts.getTotal(strand, i) == 0) {
+                        continue;
                     }
+                    int id = cpgCounts.getPosition(i) - sequenceStart + strand;
+                    if (isOutside(id + sequenceStart, id + sequenceStart + 2, origin, locScale, rect)) {
+                        continue;
+                    }
+                    int pX0 = (int) ((id + sequenceStart - origin) / locScale);
+                    double mean = cpgCounts.getMean(strand, i);
 
                     if (fontSize >= perferedMinSize) {
-                        // Draw line to connect every circle with some interval
-                        for (int i = 0; i < circleXList.size() - 1; i++) {
-                            g.drawLine(
-                                    circleXList.get(i) + circleRadius,
-                                    circleYList.get(i) - circleRadius / 2,
-                                    circleXList.get(i + 1),
-                                    circleYList.get(i + 1) - circleRadius / 2
-                            );
+                        String str = "";
+
+                        if (mean == 0) {
+                            str = "0";
+                        } else if (mean == 1) {
+                            str = "1";
+                        } else {
+                            str = String.format("%.2f", mean);
                         }
 
-                        if (!isShowFullReads) {
-                            // Draw read count font
-                            int offset = hapData.strand == Strand.NEGATIVE ? 1 : 0;
-
-                            if (isCombineStrand) {
-                                offset = 0;
-                            }
-
-                            int pX0 = (int) ((hapData.end - origin + offset) / locScale);
-                            drawText(g, ("(" + hapData.readCount + ")").toCharArray(), pX0, yBase + GetBarBottom() + readColIndex * circleMargin + circleRadius, dX);
-                        }
+                        drawText(g, str.toCharArray(), pX0, 15, dX);
                     }
-                }
-
-                g.setColor(Color.BLACK);
 
-                if (isShowBar) {
-                    // Draw Mean
-                    for (int id : meanDic.keySet()) {
-                        int pX0 = (int) ((id + sequenceStart - origin) / locScale);
-                        double mean = meanDic.get(id).GetMean();
+                    if (mean > 0) {
+                        // Add one pixel to the width to make bar better
+                        if (isCombineStrand) {
+                            int pX1 = (int) ((id + 2 + sequenceStart - origin) / locScale);
+                            int width = pX1 - pX0;
 
-                        if (fontSize >= perferedMinSize) {
-                            String str = "";
-
-                            if (mean == 0) {
-                                str = "0";
-                            } else if (mean == 1) {
-                                str = "1";
-                            } else {
-                                str = String.format("%.2f", mean);
-                            }
-
-                            drawText(g, str.toCharArray(), pX0, 15, dX);
-                        }
-
-                        if (mean > 0) {
-                            // Add one pixel to the width to make bar better
-                            if (isCombineStrand) {
-                                int pX1 = (int) ((id + 2 + sequenceStart - origin) / locScale);
-                                int width = pX1 - pX0;
-
-                                drawRect(g, pX0 + dX / 2 - barWidth / 2, (int) (barBeginY + barHeight * (1 - mean)), width, (int) (1 + barHeight * mean));
-                            } else {
-                                drawRect(g, pX0 + dX / 2 - barWidth / 2, (int) (barBeginY + barHeight * (1 - mean)), barWidth, (int) (1 + barHeight * mean));
-                            }
+                            drawRect(g, pX0 + dX / 2 - barWidth / 2, (int) (barBeginY + barHeight * (1 - mean)), width, (int) (1 + barHeight * mean));
+                        } else {
+                            drawRect(g, pX0 + dX / 2 - barWidth / 2, (int) (barBeginY + barHeight * (1 - mean)), barWidth, (int) (1 + barHeight * mean));
                         }
                     }
                 }
@@ -693,6 +838,15 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
         }
     }
 
+    /**
+     * @return true if nothing drawn for bases [start, end) reaches {@code rect}, leaving room for the circles and
+     * labels drawn past the end
+     */
+    private boolean isOutside(int start, int end, double origin, double locScale, Rectangle rect) {
+        int margin = circleRadius + barWidth + TILE_MARGIN;
+        return (end - origin) / locScale + margin < rect.x || (start - origin) / locScale - margin > rect.x + rect.width;
+    }
+
     private Color GetColorByStrand(Graphics2D g, HapData hapData) {
         switch (hapData.strand) {
             case NONE:
@@ -708,11 +862,7 @@ public class HapTrack extends AbstractTrack implements IGVEventObserver {
 
     @Override
     public int getHeight() {
-        if (displayableHapList == null) {
-            return 300;
-        }
-
-        return Math.max(300, GetBarBottom() + displayableHapList.size() * circleMargin);
+        return Math.max(300, GetBarBottom() + (maxRowCount + 1) * circleMargin);
     }
 
     private void drawRect(Graphics2D g, int x, int y, int w, int h) {
@@ -0,0 +1,102 @@
+package custom.lib;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * An in-memory {@link HapDataSource} for fully cached .hap files.  Records live in a {@link HapStore}, sorted by
+ * chromosome and start, so a window query is a binary search followed by a scan of the records it returns,
+ * O(log N + k), instead of a pass over every record of the file.
+ */
+public class IndexedHapSource implements HapDataSource {
+
+    private final HapStore store;
+
+    public IndexedHapSource(HapStore store) {
+        this.store = store;
+    }
+
+    public IndexedHapSource(List<HapData> records) {
+        HapStore.Builder builder = new HapStore.Builder();
+        for (HapData hapData : records) {
+            builder.add(hapData);
+        }
+        this.store = builder.build();
+    }
+
+    public HapStore getStore() {
+        return store;
+    }
+
+    public Iterator<HapData> query(String chr, int start, int end) {
+        List<HapData> result = new ArrayList<>();
+        PrimitiveIterator.OfInt records = queryRecords(chr, start, end);
+        while (records.hasNext()) {
+            result.add(store.get(records.nextInt()));
+        }
+        return result.iterator();
+    }
+
+    /**
+     * Same as {@link #query} but returns the indices of the records in the {@link #getStore() store}, so they can be
+     * read in place without a {@code HapData} per record.
+     */
+    public PrimitiveIterator.OfInt queryRecords(String chr, int start, int end) {
+        int chrId = store.getChromosomeId(chr);
+        if (chrId < 0) {
+            return IntStream.empty().iterator();
+        }
+
+        // Records overlapping the window start at most maxLength before it
+        int limit = store.getRecordLimit(chrId);
+        return new PrimitiveIterator.OfInt() {
+            int next = advance(lowerBound(chrId, start - store.getMaxLength(chrId)));
+
+            private int advance(int i) {
+                while (i < limit && store.getStart(i) <= end && store.getEnd(i) < start) {
+                    i++;
+                }
+                return i < limit && store.getStart(i) <= end ? i : limit;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < limit;
+            }
+
+            @Override
+            public int nextInt() {
+                if (next >= limit) {
+                    throw new NoSuchElementException();
+                }
+                int record = next;
+                next = advance(next + 1);
+                return record;
+            }
+        };
+    }
+
+    /**
+     * @return the chromosomes with at least one record
+     */
+    public List<String> getChromosomeNames() {
+        return store.getChromosomeNames();
+    }
+
+    /**
+     * @return index of the first record of the chromosome starting at or after {@code position}
+     */
+    private int lowerBound(int chrId, int position) {
+        int lo = store.getFirstRecord(chrId);
+        int hi = store.getRecordLimit(chrId);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (store.getStart(mid) < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,142 @@
+package custom.lib;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Correlations computed on the fly from the haplotypes of a {@link HapDataSource} with a {@link LinkageEngine}, so
+ * no precomputed correlation file is needed.
+ * <p>
+ * A pair's value only depends on the reads covering both CpGs, which any window containing the pair returns.  The
+ * pairs computed so far are therefore kept for a contiguous range of the chromosome, and when the view slides only
+ * the pairs involving CpGs new to the range are computed.
+ */
+public class LinkageCorrelationSource implements CorrelationSource {
+
+    public static final int DEFAULT_MIN_READS = 4;
+
+    // Past this the cached range restarts at the current window
+    private static final int MAX_CACHED_RANGE = 100000;
+
+    // The reads of wider ranges take too much memory, their pairs aren't computed
+    public static final int MAX_QUERY_RANGE = 30000;
+
+    private final HapDataSource hapSource;
+    private final CpGIndex cpgIndex;
+    private LinkageEngine.Measure measure = LinkageEngine.Measure.R2;
+    private int minReads = DEFAULT_MIN_READS;
+
+    // Pairs with both CpGs in [cachedStart, cachedEnd) of cachedChr, by (position i, position j)
+    private String cachedChr;
+    private int cachedStart;
+    private int cachedEnd;
+    private Map<Long, CorrelationData> pairs = new HashMap<>();
+
+    /**
+     * @param cpgIndex CpGs of the genome of the haplotypes
+     */
+    public LinkageCorrelationSource(HapDataSource hapSource, CpGIndex cpgIndex) {
+        this.hapSource = hapSource;
+        this.cpgIndex = cpgIndex;
+    }
+
+    public synchronized LinkageEngine.Measure getMeasure() {
+        return measure;
+    }
+
+    public synchronized void setMeasure(LinkageEngine.Measure measure) {
+        this.measure = measure;
+        clear();
+    }
+
+    public synchronized void setMinReads(int minReads) {
+        this.minReads = minReads;
+        clear();
+    }
+
+    private void clear() {
+        cachedChr = null;
+        pairs = new HashMap<>();
+    }
+
+    /**
+     * @return the pairs with both CpGs in [start, end), none if the range is wider than {@link #MAX_QUERY_RANGE}
+     */
+    public synchronized List<CorrelationData> query(String chr, int start, int end) throws IOException {
+        start = Math.max(0, start);
+        if (end - start > MAX_QUERY_RANGE) {
+            return new ArrayList<>();
+        }
+
+        boolean extend = chr.equals(cachedChr) && start <= cachedEnd && end >= cachedStart &&
+                Math.max(end, cachedEnd) - Math.min(start, cachedStart) <= MAX_CACHED_RANGE;
+        if (!extend) {
+            clear();
+        }
+
+        if (cachedChr == null) {
+            compute(chr, start, end, start, end);
+            cachedChr = chr;
+            cachedStart = start;
+            cachedEnd = end;
+        } else if (start < cachedStart || end > cachedEnd) {
+            // Only the reads covering CpGs new to the range are needed, a pair with a new CpG is only covered by them
+            int readStart = start < cachedStart ? start : cachedEnd;
+            int readEnd = end > cachedEnd ? end : cachedStart;
+            int newStart = Math.min(start, cachedStart);
+            int newEnd = Math.max(end, cachedEnd);
+            compute(chr, readStart, readEnd, newStart, newEnd);
+            cachedStart = newStart;
+            cachedEnd = newEnd;
+        }
+
+        List<CorrelationData> result = new ArrayList<>();
+        for (CorrelationData pair : pairs.values()) {
+            if (pair.start - 1 >= start && pair.end - 1 < end) {
+                result.add(pair);
+            }
+        }
+        result.sort(Comparator.comparingInt((CorrelationData c) -> c.start).thenComparingInt(c -> c.end));
+        return result;
+    }
+
+    /**
+     * Compute the pairs of [start, end) not yet in the cached range, from the reads of [readStart, readEnd), which
+     * must include every read covering a CpG of [start, end) outside the cached range.
+     */
+    private void compute(String chr, int readStart, int readEnd, int start, int end) throws IOException {
+        List<HapData> reads = new ArrayList<>();
+        int minStart = Integer.MAX_VALUE;
+        int maxEnd = 0;
+        int maxLength = 0;
+        Iterator<HapData> it = hapSource.query(chr, readStart, readEnd);
+        while (it.hasNext()) {
+            HapData read = it.next();
+            reads.add(read);
+            minStart = Math.min(minStart, read.start);
+            maxEnd = Math.max(maxEnd, read.end);
+            maxLength = Math.max(maxLength, read.end - read.start + 1);
+        }
+        if (reads.isEmpty()) {
+            return;
+        }
+        reads.sort(Comparator.comparingInt(read -> read.start));
+
+        LinkageEngine engine = new LinkageEngine(cpgIndex.getCpGs(chr, minStart - 1, maxEnd + 1), reads);
+        int[] cpgs = engine.getCpGs();
+
+        boolean cached = cachedChr != null;
+        for (int i = CpGIndex.lowerBound(cpgs, start); i < cpgs.length && cpgs[i] < end; i++) {
+            // No read spans CpGs further apart than the longest read
+            for (int j = i + 1; j < cpgs.length && cpgs[j] < end && cpgs[j] - cpgs[i] <= maxLength; j++) {
+                if (cached && cpgs[i] >= cachedStart && cpgs[j] < cachedEnd) {
+                    continue; // Computed before
+                }
+                double value = engine.get(i, j, measure, minReads);
+                if (!Double.isNaN(value)) {
+                    pairs.put(((long) cpgs[i] << 32) | cpgs[j], new CorrelationData(chr, cpgs[i] + 1, cpgs[j] + 1, (float) value));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package custom.lib;
+
+import java.util.List;
+
+/**
+ * Pairwise co-methylation (linkage disequilibrium) of CpGs, computed from the haplotypes covering them.
+ * <p>
+ * For every CpG the reads covering it and the reads methylated at it are kept as bitsets over the reads.  The counts
+ * of a CpG pair are then popcounts of ANDed words.  Read counts weight the reads: the reads are split into bit
+ * planes of their counts, plane b holding the reads whose count has bit b set, so a weighted count is
+ * {@code sum_b 2^b * popcount(x & plane_b)}.
+ */
+public class LinkageEngine {
+
+    public enum Measure {
+        R2("r²"), D_PRIME("|D'|");
+
+        private final String label;
+
+        Measure(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final int[] cpgs;
+    private final int nWords;
+
+    // Per CpG: reads covering it, reads methylated at it, and the range of words holding any of its reads.  The
+    // bitsets of a CpG only hold the words of its range, word w at w - wordFrom.
+    private final long[][] covered;
+    private final long[][] methylated;
+    private final int[] wordFrom;
+    private final int[] wordTo;
+
+    // Bit planes of the read counts
+    private final long[][] planes;
+
+    /**
+     * @param cpgs  sorted positions of all CpGs covered by the reads.  Bit k of a read's pattern belongs to the k-th
+     *              CpG at or after its start.
+     * @param reads reads sorted by start
+     */
+    public LinkageEngine(int[] cpgs, List<HapData> reads) {
+        this.cpgs = cpgs;
+        this.nWords = (reads.size() + 63) >>> 6;
+
+        covered = new long[cpgs.length][];
+        methylated = new long[cpgs.length][];
+        wordFrom = new int[cpgs.length];
+        wordTo = new int[cpgs.length];
+
+        int maxCount = 1;
+        for (HapData read : reads) {
+            maxCount = Math.max(maxCount, read.readCount);
+        }
+        planes = new long[32 - Integer.numberOfLeadingZeros(maxCount)][nWords];
+
+        // First the range of words of each CpG, its bitsets only span it
+        for (int r = 0; r < reads.size(); r++) {
+            HapData read = reads.get(r);
+            int word = r >>> 6;
+            int first = CpGIndex.lowerBound(cpgs, read.start - 1);
+            for (int k = 0; k < read.states.length && first + k < cpgs.length; k++) {
+                int j = first + k;
+                if (wordTo[j] == 0) {
+                    wordFrom[j] = word;
+                }
+                wordTo[j] = word + 1;
+            }
+        }
+        for (int j = 0; j < cpgs.length; j++) {
+            if (wordTo[j] > 0) {
+                covered[j] = new long[wordTo[j] - wordFrom[j]];
+                methylated[j] = new long[wordTo[j] - wordFrom[j]];
+            }
+        }
+
+        for (int r = 0; r < reads.size(); r++) {
+            HapData read = reads.get(r);
+            int word = r >>> 6;
+            long bit = 1L << (r & 63);
+
+            for (int b = 0; b < planes.length; b++) {
+                if ((read.readCount & (1 << b)) != 0) {
+                    planes[b][word] |= bit;
+                }
+            }
+
+            int first = CpGIndex.lowerBound(cpgs, read.start - 1);
+            for (int k = 0; k < read.states.length && first + k < cpgs.length; k++) {
+                int j = first + k;
+                covered[j][word - wordFrom[j]] |= bit;
+                if (read.states[k]) {
+                    methylated[j][word - wordFrom[j]] |= bit;
+                }
+            }
+        }
+    }
+
+    public int[] getCpGs() {
+        return cpgs;
+    }
+
+    /**
+     * Correlation of CpGs {@code i} and {@code j}, indices into {@link #getCpGs()}.
+     *
+     * @return the measure, NaN if fewer than {@code minReads} reads cover both CpGs or either CpG doesn't vary
+     */
+    public double get(int i, int j, Measure measure, int minReads) {
+        if (covered[i] == null || covered[j] == null) {
+            return Double.NaN;
+        }
+        int from = Math.max(wordFrom[i], wordFrom[j]);
+        int to = Math.min(wordTo[i], wordTo[j]);
+
+        long n = 0, ni = 0, nj = 0, nij = 0;
+        long[] covI = covered[i], covJ = covered[j], metI = methylated[i], metJ = methylated[j];
+        int offI = wordFrom[i], offJ = wordFrom[j];
+        for (int b = 0; b < planes.length; b++) {
+            long[] plane = planes[b];
+            long pn = 0, pi = 0, pj = 0, pij = 0;
+            for (int w = from; w < to; w++) {
+                long both = covI[w - offI] & covJ[w - offJ] & plane[w];
+                if (both == 0) continue;
+                long mi = metI[w - offI], mj = metJ[w - offJ];
+                pn += Long.bitCount(both);
+                pi += Long.bitCount(both & mi);
+                pj += Long.bitCount(both & mj);
+                pij += Long.bitCount(both & mi & mj);
+            }
+            n += pn << b;
+            ni += pi << b;
+            nj += pj << b;
+            nij += pij << b;
+        }
+
+        if (n < minReads || n == 0) {
+            return Double.NaN;
+        }
+        double pI = (double) ni / n;
+        double pJ = (double) nj / n;
+        double d = (double) nij / n - pI * pJ;
+
+        if (measure == Measure.R2) {
+            double denominator = pI * (1 - pI) * pJ * (1 - pJ);
+            return denominator > 0 ? d * d / denominator : Double.NaN;
+        } else {
+            double dMax = d < 0 ? Math.min(pI * pJ, (1 - pI) * (1 - pJ)) : Math.min(pI * (1 - pJ), (1 - pI) * pJ);
+            return dMax > 0 ? Math.abs(d) / dMax : Double.NaN;
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package custom.lib;
 
-import htsjdk.tribble.readers.TabixReader;
 import org.apache.log4j.Logger;
+import org.broad.igv.prefs.Constants;
 import org.broad.igv.prefs.IGVPreferences;
 import org.broad.igv.prefs.PreferencesManager;
 import org.broad.igv.ui.IGV;
@@ -31,7 +31,10 @@ public class LoadCorMenuAction extends MenuAction {
 
         if (file.isFile()) {
             try {
-                TabixReader tabixReader = new TabixReader(file.getAbsolutePath());
+                IGVPreferences prefs = PreferencesManager.getPreferences();
+                TabixReaderPool readers = new TabixReaderPool(file.getAbsolutePath(),
+                        prefs.getAsInt(Constants.MHAP_TABIX_READERS),
+                        prefs.getAsInt(Constants.MHAP_BLOCK_CACHE_SIZE_MB) * 1024L * 1024L);
 
                 TrackPanelScrollPane hapScrollPane = igv.addDataPanel("Correlation Data");
                 hapScrollPane.setName("Correlation visualization");
@@ -39,7 +42,7 @@ public class LoadCorMenuAction extends MenuAction {
                 TrackPanel trackPanel = hapScrollPane.getTrackPanel();
 
                 CorrelationTrack correlationTrack = new CorrelationTrack("Correlation File (Streamed)");
-                correlationTrack.tabixReader = tabixReader;
+                correlationTrack.dataSource = new TabixCorrelationSource(readers);
 
                 CorrelationTrack.Instances.add(correlationTrack);
                 trackPanel.addTrack(correlationTrack);
@@ -7,8 +7,9 @@ import htsjdk.tribble.index.Block;
 import htsjdk.tribble.index.tabix.TabixIndex;
 import htsjdk.tribble.readers.AsciiLineReader;
 import htsjdk.tribble.readers.PositionalBufferedStream;
-import htsjdk.tribble.readers.TabixReader;
 import org.apache.log4j.Logger;
+import org.broad.igv.exceptions.ParserException;
+import org.broad.igv.prefs.Constants;
 import org.broad.igv.prefs.IGVPreferences;
 import org.broad.igv.prefs.PreferencesManager;
 import org.broad.igv.ui.IGV;
@@ -16,6 +17,9 @@ import org.broad.igv.ui.action.MenuAction;
 import org.broad.igv.ui.panel.TrackPanel;
 import org.broad.igv.ui.panel.TrackPanelScrollPane;
 import org.broad.igv.ui.util.FileDialogUtils;
+import org.broad.igv.ui.util.MessageUtils;
+import org.broad.igv.ui.util.UIUtilities;
+import org.broad.igv.util.LongRunningTask;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
@@ -23,6 +27,7 @@ import java.io.*;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 // Custom Hap Menu
 public class LoadHapMenuAction extends MenuAction {
@@ -39,7 +44,7 @@ public class LoadHapMenuAction extends MenuAction {
     public void actionPerformed(ActionEvent e) {
         JOptionPane.showConfirmDialog(
                 null,
-                "The Haplotype file supports *.hap and *.gz format files. If you want to use *.gz file ,you will need to create it by Tabix.",
+                "The Haplotype file supports *.hap, *.gz and *.mhb format files. If you want to use *.gz file ,you will need to create it by Tabix.",
                 "Tip",
                 JOptionPane.PLAIN_MESSAGE);
 
@@ -54,21 +59,7 @@ public class LoadHapMenuAction extends MenuAction {
             // load file with index (Stream loading)
             if (file.getAbsolutePath().endsWith(".gz")) {
                 try {
-                    TabixReader tabixReader = new TabixReader(file.getAbsolutePath());
-
-                    TrackPanelScrollPane hapScrollPane = igv.addDataPanel("Hap Data");
-                    hapScrollPane.setName("Hap visualization");
-
-                    TrackPanel trackPanel = hapScrollPane.getTrackPanel();
-
-                    HapTrack hapTrack = new HapTrack("Haplotype File (Streamed):" + file.getName());
-                    hapTrack.isHapDataCached = false;
-                    hapTrack.tabixReader = tabixReader;
-
-                    HapTrack.Instances.add(hapTrack);
-                    trackPanel.addTrack(hapTrack);
-
-                    IGV.getMainFrame().repaint();
+                    addStreamedTrack(file, file);
                 } catch (IOException ioException) {
                     ioException.printStackTrace();
                     JOptionPane.showConfirmDialog(null, "Failed to load *.gz file.", "Exception", JOptionPane.ERROR_MESSAGE);
@@ -77,51 +68,148 @@ public class LoadHapMenuAction extends MenuAction {
             }
             // load all files into the cache
             else if (file.getAbsolutePath().endsWith(".hap")) {
-                TSVReader tsvReader;
-
-                try {
-                    tsvReader = new TSVReader(file);
-                } catch (FileNotFoundException fileNotFoundException) {
-                    fileNotFoundException.printStackTrace();
-                    JOptionPane.showConfirmDialog(null, "Failed to load *.hap file.", "Exception", JOptionPane.ERROR_MESSAGE);
-                    log.info("Failed to load hap!");
+                // A file indexed earlier is streamed from its indexed copy
+                File existingCopy = new HapIndexBuilder().findIndexedCopy(file);
+                if (existingCopy != null) {
+                    try {
+                        addStreamedTrack(existingCopy, file);
+                    } catch (IOException ioException) {
+                        log.error("Failed to load " + file.getAbsolutePath(), ioException);
+                        MessageUtils.showErrorMessage("Failed to load the indexed copy of *.hap file: " + ioException.getMessage(), ioException);
+                    }
                     return;
                 }
 
-                String[] nextToken;
+                // Parse off the event thread, the file is split into chunks that are parsed in parallel straight
+                // into a columnar store, one bit per CpG
+                LongRunningTask.submit(() -> {
+                    // Too large for the heap, sort and index a copy to stream instead
+                    try {
+                        if (!HapIndexBuilder.fitsInHeap(file)) {
+                            log.info(file.getAbsolutePath() + " is too large to be cached, indexing it for streaming");
+                            File indexedCopy = new HapIndexBuilder().build(file);
+                            UIUtilities.invokeOnEventThread(() -> {
+                                try {
+                                    addStreamedTrack(indexedCopy, file);
+                                } catch (IOException ioException) {
+                                    log.error("Failed to load " + indexedCopy.getAbsolutePath(), ioException);
+                                    MessageUtils.showErrorMessage("Failed to load the indexed copy of *.hap file: " + ioException.getMessage(), ioException);
+                                }
+                            });
+                            log.info("Take: " + String.valueOf((System.currentTimeMillis() - startTime) * 0.001) + " s to index " + file.getAbsolutePath());
+                            return;
+                        }
+                    } catch (CancellationException exception) {
+                        log.info("Cancelled indexing " + file.getAbsolutePath());
+                        return;
+                    } catch (IOException exception) {
+                        log.error("Failed to index hap!", exception);
+                        MessageUtils.showErrorMessage("Failed to index *.hap file: " + exception.getMessage(), exception);
+                        return;
+                    }
 
-                ArrayList<HapData> hapDataArrayList = new ArrayList<>();
+                    HapStore hapStore;
+                    try {
+                        hapStore = new ParallelHapLoader().load(file);
+                    } catch (CancellationException exception) {
+                        log.info("Cancelled loading " + file.getAbsolutePath());
+                        return;
+                    } catch (IOException | ParserException exception) {
+                        log.error("Failed to load hap!", exception);
+                        MessageUtils.showErrorMessage("Failed to load *.hap file: " + exception.getMessage(), exception);
+                        return;
+                    }
 
-                do {
-                    nextToken = tsvReader.nextTokens();
+                    log.info("Packed " + hapStore.size() + " records into " + hapStore.getSizeInBytes() / 1024 + " KB");
 
-                    if (nextToken != null) {
-                        HapData hapData = CustomUtility.CreateHapFromString(nextToken);
-                        hapDataArrayList.add(hapData);
-                    }
-                }
-                while (nextToken != null);
+                    UIUtilities.invokeOnEventThread(() -> {
+                        TrackPanelScrollPane hapScrollPane = igv.addDataPanel("Hap Data");
+                        hapScrollPane.setName("Hap visualization");
 
-                TrackPanelScrollPane hapScrollPane = igv.addDataPanel("Hap Data");
-                hapScrollPane.setName("Hap visualization");
+                        TrackPanel trackPanel = hapScrollPane.getTrackPanel();
 
-                TrackPanel trackPanel = hapScrollPane.getTrackPanel();
+                        HapTrack hapTrack = new HapTrack("Haplotype File (Cached):" + file.getName());
+                        hapTrack.dataSource = new IndexedHapSource(hapStore);
+                        loadSummary(hapTrack, file);
 
-                HapTrack hapTrack = new HapTrack("Haplotype File (Cached):" + file.getName());
-                hapTrack.cachedHapData = hapDataArrayList;
-                hapTrack.isHapDataCached = true;
+                        HapTrack.Instances.add(hapTrack);
 
-                HapTrack.Instances.add(hapTrack);
+                        trackPanel.addTrack(hapTrack);
 
-                trackPanel.addTrack(hapTrack);
+                        IGV.getMainFrame().repaint();
+                    });
 
-                IGV.getMainFrame().repaint();
-                
-                long endTime = System.currentTimeMillis();
+                    long endTime = System.currentTimeMillis();
 
-                log.info("Take: " + String.valueOf((endTime - startTime) * 0.001) + " s to load " + file.getAbsolutePath());
+                    log.info("Take: " + String.valueOf((endTime - startTime) * 0.001) + " s to load " + file.getAbsolutePath());
+                });
+            }
+            // Binary container written by "igvtools hapToMHB", indexed and compressed so it is streamed as well
+            else if (file.getAbsolutePath().endsWith(BinaryHapSource.EXTENSION)) {
+                try {
+                    addStreamedTrack(file, file);
+                } catch (IOException ioException) {
+                    log.error("Failed to load " + file.getAbsolutePath(), ioException);
+                    MessageUtils.showErrorMessage("Failed to load *.mhb file: " + ioException.getMessage(), ioException);
+                }
             } else {
-                JOptionPane.showConfirmDialog(null, "Unsupported formats. You should select *.hap or *.gz file!", "Exception", JOptionPane.PLAIN_MESSAGE);
+                JOptionPane.showConfirmDialog(null, "Unsupported formats. You should select *.hap, *.gz or *.mhb file!", "Exception", JOptionPane.PLAIN_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * Add a track streaming {@code dataFile}, named and summarized after {@code file}, the file chosen by the user.
+     */
+    private void addStreamedTrack(File dataFile, File file) throws IOException {
+        HapDataSource streamedSource = openStreamedSource(dataFile);
+
+        TrackPanelScrollPane hapScrollPane = igv.addDataPanel("Hap Data");
+        hapScrollPane.setName("Hap visualization");
+
+        TrackPanel trackPanel = hapScrollPane.getTrackPanel();
+
+        HapTrack hapTrack = new HapTrack("Haplotype File (Streamed):" + file.getName());
+
+        hapTrack.dataSource = streamedSource;
+        loadSummary(hapTrack, file);
+
+        HapTrack.Instances.add(hapTrack);
+        trackPanel.addTrack(hapTrack);
+
+        IGV.getMainFrame().repaint();
+    }
+
+    /**
+     * Open a bgzipped, tabix indexed mHap file or a binary mHap file.  The streamed regions are cached so small pans
+     * and back-and-forth navigation don't hit the disk.
+     */
+    static HapDataSource openStreamedSource(File file) throws IOException {
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        HapDataSource source;
+        if (file.getAbsolutePath().endsWith(BinaryHapSource.EXTENSION)) {
+            source = new BinaryHapSource(file.getAbsolutePath());
+        } else {
+            source = new TabixHapSource(new TabixReaderPool(file.getAbsolutePath(),
+                    prefs.getAsInt(Constants.MHAP_TABIX_READERS),
+                    prefs.getAsInt(Constants.MHAP_BLOCK_CACHE_SIZE_MB) * 1024L * 1024L));
+        }
+        return new CachingHapSource(source,
+                prefs.getAsInt(Constants.MHAP_TILE_SIZE),
+                prefs.getAsInt(Constants.MHAP_CACHE_SIZE_MB) * 1024L * 1024L);
+    }
+
+    /**
+     * Attach the zoomed out summaries written by "igvtools hapToTDF", if there is such a file beside the data.
+     */
+    private void loadSummary(HapTrack hapTrack, File file) {
+        File summaryFile = new File(HapToTDF.getSummaryPath(file.getAbsolutePath()));
+        if (summaryFile.isFile()) {
+            try {
+                hapTrack.setSummary(summaryFile.getAbsolutePath());
+                log.info("Load summary from:" + summaryFile);
+            } catch (Exception exception) {
+                log.error("Failed to load summary " + summaryFile, exception);
             }
         }
     }
@@ -0,0 +1,122 @@
+package custom.lib;
+
+import org.apache.log4j.Logger;
+import org.broad.igv.exceptions.ParserException;
+import org.broad.igv.prefs.IGVPreferences;
+import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.ui.IGV;
+import org.broad.igv.ui.action.MenuAction;
+import org.broad.igv.ui.panel.TrackPanelScrollPane;
+import org.broad.igv.ui.util.FileDialogUtils;
+import org.broad.igv.ui.util.MessageUtils;
+import org.broad.igv.ui.util.UIUtilities;
+import org.broad.igv.util.LongRunningTask;
+
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Loads several mHap files, e.g. tumour / normal samples, into one {@link MultiHapTrack}.
+ */
+public class LoadMultiHapMenuAction extends MenuAction {
+    static Logger log = Logger.getLogger(LoadMultiHapMenuAction.class);
+    IGV igv;
+
+    public LoadMultiHapMenuAction(String label, int mnemonic, IGV igv) {
+        super(label, null, mnemonic);
+        this.igv = igv;
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        File[] files = chooseTrackFiles();
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        // *.hap files are parsed in memory, open the samples off the event thread
+        LongRunningTask.submit(() -> {
+            List<String> sampleNames = new ArrayList<>();
+            List<HapDataSource> dataSources = new ArrayList<>();
+            for (File file : files) {
+                try {
+                    if (file.getName().endsWith(".gz") || file.getName().endsWith(BinaryHapSource.EXTENSION)) {
+                        dataSources.add(LoadHapMenuAction.openStreamedSource(file));
+                    } else if (file.getName().endsWith(".hap")) {
+                        // Files too large for the heap are streamed from a sorted, indexed copy
+                        HapIndexBuilder indexBuilder = new HapIndexBuilder();
+                        File indexedCopy = indexBuilder.findIndexedCopy(file);
+                        if (indexedCopy != null) {
+                            dataSources.add(LoadHapMenuAction.openStreamedSource(indexedCopy));
+                        } else if (!HapIndexBuilder.fitsInHeap(file)) {
+                            dataSources.add(LoadHapMenuAction.openStreamedSource(indexBuilder.build(file)));
+                        } else {
+                            dataSources.add(new IndexedHapSource(new ParallelHapLoader().load(file)));
+                        }
+                    } else {
+                        MessageUtils.showMessage("Skipping " + file.getName() + ", you should select *.hap, *.gz or *.mhb files");
+                        continue;
+                    }
+                    sampleNames.add(file.getName());
+                } catch (CancellationException exception) {
+                    log.info("Cancelled loading " + file.getAbsolutePath());
+                    closeAll(dataSources);
+                    return;
+                } catch (IOException | ParserException exception) {
+                    log.error("Failed to load " + file.getAbsolutePath(), exception);
+                    MessageUtils.showErrorMessage("Failed to load " + file.getName() + ": " + exception.getMessage(), exception);
+                    closeAll(dataSources);
+                    return;
+                }
+            }
+            if (dataSources.isEmpty()) {
+                return;
+            }
+
+            UIUtilities.invokeOnEventThread(() -> {
+                TrackPanelScrollPane scrollPane = igv.addDataPanel("Multi-sample Hap Data");
+                scrollPane.setName("Multi-sample hap visualization");
+
+                MultiHapTrack track = new MultiHapTrack("Haplotype Samples (" + sampleNames.size() + ")", sampleNames, dataSources);
+                MultiHapTrack.Instances.add(track);
+                scrollPane.getTrackPanel().addTrack(track);
+
+                IGV.getMainFrame().repaint();
+            });
+        });
+    }
+
+    /**
+     * Close the samples opened before the load was abandoned.
+     */
+    private static void closeAll(List<HapDataSource> dataSources) {
+        for (HapDataSource dataSource : dataSources) {
+            try {
+                dataSource.close();
+            } catch (IOException exception) {
+                log.error("Failed to close a sample", exception);
+            }
+        }
+    }
+
+    private File[] chooseTrackFiles() {
+
+        File lastDirectoryFile = PreferencesManager.getPreferences().getLastTrackDirectory();
+
+        final IGVPreferences prefs = PreferencesManager.getPreferences();
+
+        File[] trackFiles = FileDialogUtils.chooseMultiple("Select Files", lastDirectoryFile, null);
+
+        if (trackFiles != null && trackFiles.length > 0) {
+            prefs.setLastTrackDirectory(trackFiles[0]);
+        }
+
+        igv.resetStatusMessage();
+
+        return trackFiles;
+    }
+}
@@ -0,0 +1,164 @@
+package custom.lib;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Schedules the loads of a custom track while the user pans, together with the track's {@link LoadTracker}:
+ * <ul>
+ * <li>the range loaded for a view extends further in the direction of the pan, half a view behind and a view and a
+ * half ahead, instead of half a view on each side;</li>
+ * <li>a load requested shortly after the previous one of the frame, as during a drag, waits for the view to settle
+ * so the loads superseded meanwhile never query their source;</li>
+ * <li>once a load is published, the range beyond it in the direction of the pan is queried on a background thread,
+ * warming the caches of the source for the next load.</li>
+ * </ul>
+ */
+public class LoadScheduler {
+
+    private static Logger log = Logger.getLogger(LoadScheduler.class);
+
+    // Loads requested within this long of the previous one of the frame wait for the view to settle
+    static final long SETTLE_MILLIS = 250;
+    static final long DEBOUNCE_MILLIS = 75;
+
+    // Prefetches of all custom tracks, one at a time behind the loads
+    private static final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mHap prefetch");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Queries a range for its side effect on the caches of a source.
+     */
+    public interface Prefetcher {
+        void fetch(String chr, int start, int end) throws IOException;
+    }
+
+    private static class View {
+        String chr;
+        int visibleStart;
+        int visibleEnd;
+        long requestTime;
+        boolean rapid;
+        // 1 panning right, -1 panning left, 0 unknown
+        int direction;
+        Future<?> prefetch;
+    }
+
+    private final LoadTracker loadTracker;
+
+    // Last view requested, by frame name
+    private final Map<String, View> views = new HashMap<>();
+
+    public LoadScheduler(LoadTracker loadTracker) {
+        this.loadTracker = loadTracker;
+    }
+
+    /**
+     * Record a load request for the visible range of a frame, once the {@link LoadTracker} has granted it a ticket,
+     * so requests covered by a load in flight don't count as pan steps.  Pending prefetches of the frame are dropped.
+     *
+     * @return {start, end} the range to load, before clamping to the chromosome
+     */
+    public synchronized int[] getLoadRange(String frameName, String chr, int visibleStart, int visibleEnd) {
+        long now = System.currentTimeMillis();
+        View view = views.computeIfAbsent(frameName, k -> new View());
+
+        int w = visibleEnd - visibleStart;
+        if (!chr.equals(view.chr) || Math.abs(w - (view.visibleEnd - view.visibleStart)) > 1) {
+            view.direction = 0; // A chromosome change or a zoom, the width of a pan only varies by rounding
+        } else if (visibleStart != view.visibleStart) {
+            view.direction = visibleStart > view.visibleStart ? 1 : -1;
+        }
+        view.rapid = view.chr != null && now - view.requestTime < SETTLE_MILLIS;
+        view.chr = chr;
+        view.visibleStart = visibleStart;
+        view.visibleEnd = visibleEnd;
+        view.requestTime = now;
+        if (view.prefetch != null) {
+            view.prefetch.cancel(false);
+            view.prefetch = null;
+        }
+
+        int before = view.direction < 0 ? w + w / 2 : w / 2;
+        int after = view.direction > 0 ? w + w / 2 : w / 2;
+        return new int[]{visibleStart - before, visibleEnd + after};
+    }
+
+    /**
+     * Hold a load requested in quick succession until the view settles.
+     *
+     * @return false if the load has been superseded in the meantime
+     */
+    public boolean awaitSettled(String frameName, long ticket) {
+        boolean rapid;
+        synchronized (this) {
+            View view = views.get(frameName);
+            rapid = view != null && view.rapid;
+        }
+        if (rapid) {
+            try {
+                Thread.sleep(DEBOUNCE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return loadTracker.isCurrent(frameName, ticket);
+    }
+
+    /**
+     * Query the range following the loaded range {@code [start, end)} in the direction of the pan, in the background.
+     * Nothing is prefetched unless the frame is panning.
+     */
+    public synchronized void prefetch(String frameName, String chr, int start, int end, int chromosomeLength,
+                                      Prefetcher prefetcher) {
+        View view = views.get(frameName);
+        if (view == null || view.direction == 0 || !chr.equals(view.chr)) {
+            return;
+        }
+        int length = end - start;
+        int prefetchStart = view.direction > 0 ? end : Math.max(0, start - length);
+        int prefetchEnd = view.direction > 0 ? Math.min(chromosomeLength, end + length) : start;
+        if (prefetchEnd <= prefetchStart) {
+            return;
+        }
+
+        if (view.prefetch != null) {
+            view.prefetch.cancel(false);
+        }
+        view.prefetch = prefetchExecutor.submit(() -> {
+            try {
+                prefetcher.fetch(chr, prefetchStart, prefetchEnd);
+            } catch (IOException e) {
+                // The load of the range will report it
+                log.debug("Failed to prefetch " + chr + ":" + prefetchStart + "-" + prefetchEnd, e);
+            }
+        });
+    }
+
+    /**
+     * Forget the frames other than {@code frameNames}, e.g. after the gene list changed.
+     */
+    public synchronized void retainFrames(Collection<String> frameNames) {
+        views.keySet().retainAll(frameNames);
+    }
+
+    /**
+     * @return the pan direction of the frame, 1 right, -1 left or 0 if unknown
+     */
+    synchronized int getDirection(String frameName) {
+        View view = views.get(frameName);
+        return view == null ? 0 : view.direction;
+    }
+}
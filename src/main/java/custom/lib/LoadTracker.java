@@ -0,0 +1,100 @@
+package custom.lib;
+
+import org.broad.igv.feature.Locus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Bookkeeping for the asynchronous loads of the custom tracks.  Each reference frame has at most one "current"
+ * load; starting a new load for a frame supersedes the previous one, which should stop reading as soon as it
+ * notices and must never publish its result.  A load requested while one in flight covers the view waits for it
+ * with {@link #awaitInFlight} rather than returning with the frame still not ready.
+ */
+public class LoadTracker {
+
+    private long counter = 0;
+
+    // Ticket of the current load, by frame name
+    private final Map<String, Long> current = new HashMap<>();
+
+    // Range requested by the current load, by frame name
+    private final Map<String, Locus> pending = new HashMap<>();
+
+    // Completed when the current load finishes, is superseded or is cancelled, by frame name
+    private final Map<String, CompletableFuture<Void>> done = new HashMap<>();
+
+    /**
+     * Register a new load of the visible range {@code chr:visibleStart-visibleEnd} of the frame.  Once the range to
+     * load is known, record it with {@link #setRange}.
+     *
+     * @return the ticket of the new load, or -1 if a load in flight already covers the visible range
+     */
+    public synchronized long begin(String frameName, String chr, int visibleStart, int visibleEnd) {
+        Locus inFlight = pending.get(frameName);
+        if (inFlight != null && inFlight.contains(chr, visibleStart, visibleEnd)) {
+            return -1;
+        }
+        long ticket = ++counter;
+        current.put(frameName, ticket);
+        pending.put(frameName, new Locus(chr, visibleStart, visibleEnd));
+        CompletableFuture<Void> superseded = done.put(frameName, new CompletableFuture<>());
+        if (superseded != null) {
+            superseded.complete(null);
+        }
+        return ticket;
+    }
+
+    /**
+     * Record the range {@code chr:start-end} loaded by the load identified by {@code ticket}, the requests it covers
+     * then wait for it.  Has no effect if the load has already been superseded.
+     */
+    public synchronized void setRange(String frameName, long ticket, String chr, int start, int end) {
+        if (isCurrent(frameName, ticket)) {
+            pending.put(frameName, new Locus(chr, start, end));
+        }
+    }
+
+    /**
+     * Wait for the load in flight for the frame, if any, to finish or be superseded.
+     */
+    public void awaitInFlight(String frameName) {
+        CompletableFuture<Void> inFlight;
+        synchronized (this) {
+            inFlight = done.get(frameName);
+        }
+        if (inFlight != null) {
+            inFlight.join();
+        }
+    }
+
+    /**
+     * @return true if the load identified by {@code ticket} has not been superseded or cancelled
+     */
+    public synchronized boolean isCurrent(String frameName, long ticket) {
+        Long t = current.get(frameName);
+        return t != null && t == ticket;
+    }
+
+    /**
+     * Mark a load as done.  Has no effect if the load has already been superseded.
+     */
+    public synchronized void finish(String frameName, long ticket) {
+        if (isCurrent(frameName, ticket)) {
+            current.remove(frameName);
+            pending.remove(frameName);
+            done.remove(frameName).complete(null);
+        }
+    }
+
+    /**
+     * Cancel every load in flight, e.g. when the display options change and the results would be stale.
+     */
+    public synchronized void cancelAll() {
+        current.clear();
+        pending.clear();
+        done.values().forEach(f -> f.complete(null));
+        done.clear();
+    }
+}
@@ -0,0 +1,233 @@
+package custom.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-CpG methylation levels and per-window MHL of several mHap samples over one region, with the difference between
+ * two groups of samples: the mean of the other samples minus the mean of the reference samples.
+ * <p>
+ * The CpGs of the region are looked up once and shared by all samples.  Samples are added one at a time as their
+ * queries complete, possibly from several threads, and each addition updates the group sums, so the differential is
+ * available, over the samples loaded so far, while the others are still loading.
+ */
+public class MultiHapProfile {
+
+    // MHL window, in bases, the default window of "igvtools mhapstats"
+    public static final int MHL_WINDOW_SIZE = 500;
+
+    private static final HapStats.Metric[] MHL = {HapStats.Metric.MHL};
+
+    private final String chr;
+    private final int start;
+    private final int end;
+    private final int[] cpgs;
+    private final int windowSize;
+    private final int firstWindow;
+    private final int nWindows;
+
+    // By sample, null until the sample is added.  NaN where a sample has no reads.
+    private final float[][] levels;
+    private final float[][] mhls;
+    private boolean[] reference;
+
+    // Sums and numbers of the samples with data, by group (0 reference, 1 others)
+    private final double[][] levelSums;
+    private final int[][] levelCounts;
+    private final double[][] mhlSums;
+    private final int[][] mhlCounts;
+
+    /**
+     * @param cpgs      0-based positions of the CpGs of [start, end)
+     * @param reference for each sample, if it belongs to the reference group
+     */
+    public MultiHapProfile(String chr, int start, int end, int[] cpgs, boolean[] reference) {
+        this(chr, start, end, cpgs, reference, MHL_WINDOW_SIZE);
+    }
+
+    MultiHapProfile(String chr, int start, int end, int[] cpgs, boolean[] reference, int windowSize) {
+        this.chr = chr;
+        this.start = start;
+        this.end = end;
+        this.cpgs = cpgs;
+        this.windowSize = windowSize;
+        this.firstWindow = start / windowSize;
+        this.nWindows = Math.max(0, (end - 1) / windowSize - firstWindow + 1);
+        this.levels = new float[reference.length][];
+        this.mhls = new float[reference.length][];
+        this.reference = reference.clone();
+        this.levelSums = new double[2][cpgs.length];
+        this.levelCounts = new int[2][cpgs.length];
+        this.mhlSums = new double[2][nWindows];
+        this.mhlCounts = new int[2][nWindows];
+    }
+
+    /**
+     * An empty profile, for regions too wide to load.
+     */
+    public static MultiHapProfile empty(String chr, int start, int end, int nSamples) {
+        return new MultiHapProfile(chr, start, end, new int[0], new boolean[nSamples], MHL_WINDOW_SIZE);
+    }
+
+    public String getChr() {
+        return chr;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public int[] getCpGs() {
+        return cpgs;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @return the start of window {@code w}
+     */
+    public int getWindowStart(int w) {
+        return (firstWindow + w) * windowSize;
+    }
+
+    public int getWindowCount() {
+        return nWindows;
+    }
+
+    /**
+     * Compute the profile of one sample from its reads of the region.
+     */
+    public void addSample(int sample, List<HapData> reads, CpGIndex cpgIndex) {
+        float[] level = new float[cpgs.length];
+        float[] mhl = new float[nWindows];
+        Arrays.fill(mhl, Float.NaN);
+
+        // Read counts weight the levels
+        double[] methylated = new double[cpgs.length];
+        double[] total = new double[cpgs.length];
+
+        List<HapData> sorted = new ArrayList<>(reads);
+        sorted.sort((a, b) -> Integer.compare(a.start, b.start));
+
+        HapStats stats = new HapStats(chr, windowSize, MHL, cpgIndex, (c, windowStart, windowEnd, values) -> {
+            int w = windowStart / windowSize - firstWindow;
+            if (w >= 0 && w < nWindows) {
+                mhl[w] = values[0];
+            }
+        });
+
+        for (HapData hapData : sorted) {
+            if (!hapData.chr.equals(chr)) {
+                continue;
+            }
+            int[] readCpGs = cpgIndex.getCpGs(chr, hapData.start - 1, hapData.end + 1);
+            int n = Math.min(readCpGs.length, hapData.states.length);
+            for (int k = 0; k < n; k++) {
+                int i = Arrays.binarySearch(cpgs, readCpGs[k]);
+                if (i >= 0) {
+                    total[i] += hapData.readCount;
+                    if (hapData.states[k]) {
+                        methylated[i] += hapData.readCount;
+                    }
+                }
+            }
+            stats.add(hapData);
+        }
+        stats.finish();
+
+        for (int i = 0; i < cpgs.length; i++) {
+            level[i] = total[i] > 0 ? (float) (methylated[i] / total[i]) : Float.NaN;
+        }
+
+        synchronized (this) {
+            levels[sample] = level;
+            mhls[sample] = mhl;
+            accumulate(sample, 1);
+        }
+    }
+
+    /**
+     * Move samples between the groups without reloading them.
+     */
+    public synchronized void setReference(boolean[] reference) {
+        for (int s = 0; s < levels.length; s++) {
+            accumulate(s, -1);
+        }
+        this.reference = reference.clone();
+        for (int s = 0; s < levels.length; s++) {
+            accumulate(s, 1);
+        }
+    }
+
+    /**
+     * Add ({@code sign} 1) or remove (-1) a loaded sample from its group's sums.
+     */
+    private void accumulate(int sample, int sign) {
+        if (levels[sample] == null) {
+            return;
+        }
+        int group = reference[sample] ? 0 : 1;
+        for (int i = 0; i < cpgs.length; i++) {
+            float level = levels[sample][i];
+            if (!Float.isNaN(level)) {
+                levelSums[group][i] += sign * level;
+                levelCounts[group][i] += sign;
+            }
+        }
+        for (int w = 0; w < nWindows; w++) {
+            float mhl = mhls[sample][w];
+            if (!Float.isNaN(mhl)) {
+                mhlSums[group][w] += sign * mhl;
+                mhlCounts[group][w] += sign;
+            }
+        }
+    }
+
+    public synchronized boolean isLoaded(int sample) {
+        return levels[sample] != null;
+    }
+
+    /**
+     * @return the methylation level of CpG {@code i} in the sample, NaN if it has no reads or isn't loaded yet
+     */
+    public synchronized float getLevel(int sample, int i) {
+        return levels[sample] == null ? Float.NaN : levels[sample][i];
+    }
+
+    /**
+     * @return the MHL of window {@code w} in the sample, NaN if it has no reads or isn't loaded yet
+     */
+    public synchronized float getMHL(int sample, int w) {
+        return mhls[sample] == null ? Float.NaN : mhls[sample][w];
+    }
+
+    /**
+     * @return the mean level of CpG {@code i} in the other samples minus the reference samples, NaN unless both
+     * groups have data
+     */
+    public synchronized float getLevelDelta(int i) {
+        return delta(levelSums, levelCounts, i);
+    }
+
+    /**
+     * @return the mean MHL of window {@code w} in the other samples minus the reference samples, NaN unless both
+     * groups have data
+     */
+    public synchronized float getMHLDelta(int w) {
+        return delta(mhlSums, mhlCounts, w);
+    }
+
+    private static float delta(double[][] sums, int[][] counts, int i) {
+        if (counts[0][i] == 0 || counts[1][i] == 0) {
+            return Float.NaN;
+        }
+        return (float) (sums[1][i] / counts[1][i] - sums[0][i] / counts[0][i]);
+    }
+}
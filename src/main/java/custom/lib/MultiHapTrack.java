@@ -0,0 +1,348 @@
+package custom.lib;
+
+import org.apache.log4j.Logger;
+import org.broad.igv.Globals;
+import org.broad.igv.event.IGVEventBus;
+import org.broad.igv.event.IGVEventObserver;
+import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.feature.genome.GenomeManager;
+import org.broad.igv.track.AbstractTrack;
+import org.broad.igv.track.RenderContext;
+import org.broad.igv.track.TrackClickEvent;
+import org.broad.igv.ui.FontManager;
+import org.broad.igv.ui.IGV;
+import org.broad.igv.ui.UIConstants;
+import org.broad.igv.ui.panel.FrameManager;
+import org.broad.igv.ui.panel.IGVPopupMenu;
+import org.broad.igv.ui.panel.ReferenceFrame;
+import org.broad.igv.ui.util.MessageUtils;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Methylation of several mHap samples in one track: a row of per-CpG levels for each sample, and a differential row
+ * with the per-CpG level and per-window MHL differences of the other samples against the reference samples.
+ * <p>
+ * A load computes the region and its CpGs once, then queries all samples in parallel.  The frame's profile is
+ * published before the queries complete and each sample is drawn as soon as it is loaded, the differential row
+ * following the samples loaded so far.
+ */
+public class MultiHapTrack extends AbstractTrack implements IGVEventObserver {
+    public static ArrayList<MultiHapTrack> Instances = new ArrayList<>();
+
+    private static Logger log = Logger.getLogger(MultiHapTrack.class);
+
+    // Widest view, in bases, in which the samples are loaded
+    private static final int MAX_VIEW = 20000;
+
+    private static final int ROW_HEIGHT = 15;
+    private static final int DIFF_HEIGHT = 60;
+
+    // Methylation level colors, from unmethylated blue to methylated red, by percent
+    private static final Color[] LEVEL_COLORS = new Color[101];
+
+    static {
+        for (int i = 0; i <= 100; i++) {
+            LEVEL_COLORS[i] = new Color((int) (2.55 * i), 0, (int) (2.55 * (100 - i)));
+        }
+    }
+
+    private static final Color MHL_DELTA_COLOR = new Color(0, 130, 0);
+
+    // Sample queries of all multi-sample tracks
+    private static final ExecutorService queryExecutor = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread thread = new Thread(r, "mHap sample query");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final List<String> sampleNames;
+    private final List<HapDataSource> dataSources;
+
+    // Samples of the reference group, e.g. the normals of tumour / normal pairs
+    private volatile boolean[] reference;
+
+    // Profile of each frame's view range with a little expansion, by frame name
+    private volatile Map<String, MultiHapProfile> profileCache = Collections.synchronizedMap(new HashMap<>());
+
+    private final LoadTracker loadTracker = new LoadTracker();
+    private final LoadScheduler loadScheduler = new LoadScheduler(loadTracker);
+
+    public MultiHapTrack(String name, List<String> sampleNames, List<HapDataSource> dataSources) {
+        super(null, name, name);
+        setSortable(false);
+        this.sampleNames = new ArrayList<>(sampleNames);
+        this.dataSources = new ArrayList<>(dataSources);
+
+        // The first sample is the reference until changed
+        this.reference = new boolean[dataSources.size()];
+        if (reference.length > 0) {
+            reference[0] = true;
+        }
+        IGVEventBus.getInstance().subscribe(FrameManager.ChangeEvent.class, this);
+    }
+
+    @Override
+    public void receiveEvent(Object event) {
+        if (event instanceof FrameManager.ChangeEvent) {
+            // Forget frames that no longer exist, the repaint that follows loads the new ones off the event thread.
+            Collection<ReferenceFrame> frames = ((FrameManager.ChangeEvent) event).getFrames();
+            Map<String, MultiHapProfile> newCache = Collections.synchronizedMap(new HashMap<>());
+            for (ReferenceFrame f : frames) {
+                MultiHapProfile profile = profileCache.get(f.getName());
+                if (profile != null) {
+                    newCache.put(f.getName(), profile);
+                }
+            }
+            profileCache = newCache;
+            loadScheduler.retainFrames(frames.stream().map(ReferenceFrame::getName).collect(Collectors.toList()));
+        } else {
+            log.info("Unknown event type: " + event.getClass());
+        }
+    }
+
+    @Override
+    public boolean isReadyToPaint(ReferenceFrame frame) {
+        if (frame.getChrName().equals(Globals.CHR_ALL)) {
+            return true;
+        }
+        MultiHapProfile profile = profileCache.get(frame.getName());
+        return profile != null && profile.getChr().equals(frame.getChrName()) &&
+                profile.getStart() <= frame.getOrigin() && profile.getEnd() >= frame.getEnd();
+    }
+
+    @Override
+    public void load(ReferenceFrame referenceFrame) {
+        final String frameName = referenceFrame.getName();
+        String chr = referenceFrame.getChrName();
+        Genome genome = GenomeManager.getInstance().getCurrentGenome();
+
+        int start = (int) referenceFrame.getOrigin();
+        int end = (int) referenceFrame.getEnd();
+        int w = end - start;
+
+        final long ticket = loadTracker.begin(frameName, chr, start, end);
+        if (ticket < 0) {
+            // A load in flight already covers the frame, returning now would leave the frame unready and have
+            // the repaint request another load straight away
+            loadTracker.awaitInFlight(frameName);
+            return;
+        }
+
+        try {
+            // Expand for panning, further in the direction of the pan
+            int chromosomeLength = genome.getChromosome(chr).getLength();
+            int[] range = loadScheduler.getLoadRange(frameName, chr, start, end);
+            start = Math.max(0, range[0]);
+            end = Math.min(range[1], chromosomeLength);
+            loadTracker.setRange(frameName, ticket, chr, start, end);
+
+            // Let a drag settle, the loads it supersedes never query the samples
+            if (!loadScheduler.awaitSettled(frameName, ticket)) {
+                return;
+            }
+
+            if (w > MAX_VIEW) {
+                publish(frameName, ticket, MultiHapProfile.empty(chr, start, end, dataSources.size()));
+                return;
+            }
+
+            // One query plan for all samples: the region and its CpGs
+            CpGIndex cpgIndex = CpGIndex.getInstance(genome);
+            MultiHapProfile profile = new MultiHapProfile(chr, start, end, cpgIndex.getCpGs(chr, start, end), reference);
+            if (!publish(frameName, ticket, profile)) {
+                return;
+            }
+
+            final int queryStart = start, queryEnd = end;
+            CompletionService<Integer> completionService = new ExecutorCompletionService<>(queryExecutor);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int s = 0; s < dataSources.size(); s++) {
+                final int sample = s;
+                futures.add(completionService.submit(() -> {
+                    if (!loadTracker.isCurrent(frameName, ticket)) {
+                        return sample;
+                    }
+                    List<HapData> reads = new ArrayList<>();
+                    Iterator<HapData> it = dataSources.get(sample).query(chr, queryStart, queryEnd);
+                    while (it.hasNext()) {
+                        reads.add(it.next());
+                    }
+                    profile.addSample(sample, reads, cpgIndex);
+                    return sample;
+                }));
+            }
+
+            // Draw each sample as it completes.  Running queries aren't interrupted, an interrupt closes the channel
+            // of a binary source for good.
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    Future<Integer> done;
+                    while ((done = completionService.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                        if (!loadTracker.isCurrent(frameName, ticket)) {
+                            futures.forEach(f -> f.cancel(false));
+                            return;
+                        }
+                    }
+                    try {
+                        done.get();
+                    } catch (ExecutionException e) {
+                        log.error("Failed to load a sample of " + chr + ":" + start + "-" + end, e.getCause());
+                        MessageUtils.showErrorMessage("Failed to load hap data of " + chr + ":" + start + "-" + end, e);
+                    }
+                    repaint();
+                }
+
+                // Warm the cached samples with the data of the next window while the user pans, other sources keep
+                // nothing of a query
+                List<HapDataSource> cachingSources = new ArrayList<>();
+                for (HapDataSource dataSource : dataSources) {
+                    if (dataSource instanceof CachingHapSource) {
+                        cachingSources.add(dataSource);
+                    }
+                }
+                if (!cachingSources.isEmpty()) {
+                    loadScheduler.prefetch(frameName, chr, queryStart, queryEnd, chromosomeLength, (c, s, e) -> {
+                        for (HapDataSource dataSource : cachingSources) {
+                            dataSource.query(c, s, e);
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                futures.forEach(f -> f.cancel(false));
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            loadTracker.finish(frameName, ticket);
+        }
+    }
+
+    private synchronized boolean publish(String frameName, long ticket, MultiHapProfile profile) {
+        if (!loadTracker.isCurrent(frameName, ticket)) {
+            return false;
+        }
+        profileCache.put(frameName, profile);
+        return true;
+    }
+
+    @Override
+    public IGVPopupMenu getPopupMenu(final TrackClickEvent te) {
+        IGVPopupMenu menu = new IGVPopupMenu();
+
+        int row = (te.getMouseEvent().getY() - getY()) / ROW_HEIGHT;
+        if (row >= 0 && row < sampleNames.size()) {
+            final JCheckBoxMenuItem referenceItem = new JCheckBoxMenuItem("Reference Sample: " + sampleNames.get(row), reference[row]);
+            referenceItem.addActionListener(e -> {
+                boolean[] newReference = reference.clone();
+                newReference[row] = referenceItem.isSelected();
+                setReference(newReference);
+            });
+            menu.add(referenceItem);
+        }
+
+        final JMenuItem firstItem = new JMenuItem("Use First Sample as Reference");
+        firstItem.addActionListener(e -> {
+            boolean[] newReference = new boolean[reference.length];
+            newReference[0] = true;
+            setReference(newReference);
+        });
+        menu.add(firstItem);
+
+        return menu;
+    }
+
+    /**
+     * Change the reference group.  Loaded profiles only regroup their samples, nothing is reloaded.
+     */
+    private void setReference(boolean[] newReference) {
+        reference = newReference;
+        synchronized (profileCache) {
+            for (MultiHapProfile profile : profileCache.values()) {
+                profile.setReference(newReference);
+            }
+        }
+        repaint();
+    }
+
+    private void repaint() {
+        IGV.getMainFrame().repaint();
+    }
+
+    @Override
+    public void render(RenderContext context, Rectangle rect) {
+        MultiHapProfile profile = profileCache.get(context.getReferenceFrame().getName());
+        if (profile == null) {
+            return;
+        }
+        if (context.getReferenceFrame().getEnd() - context.getOrigin() > MAX_VIEW) {
+            context.getGraphic2DForColor(UIConstants.LIGHT_GREY).fill(rect);
+            return;
+        }
+
+        double locScale = context.getScale();
+        double origin = context.getOrigin();
+        int dX = Math.max(2, (int) (1.0 / locScale));
+        int[] cpgs = profile.getCpGs();
+
+        Graphics2D g = context.getGraphics2D("SEQUENCE");
+        g.setFont(FontManager.getFont(10));
+
+        // Sample rows
+        for (int s = 0; s < sampleNames.size(); s++) {
+            int y = rect.y + s * ROW_HEIGHT;
+            if (profile.isLoaded(s)) {
+                for (int i = 0; i < cpgs.length; i++) {
+                    float level = profile.getLevel(s, i);
+                    if (!Float.isNaN(level)) {
+                        int pX = (int) ((cpgs[i] - origin) / locScale);
+                        g.setColor(LEVEL_COLORS[Math.round(100 * level)]);
+                        g.fillRect(pX, y + 1, dX, ROW_HEIGHT - 2);
+                    }
+                }
+            }
+            g.setColor(Color.BLACK);
+            g.drawString(sampleNames.get(s) + (reference[s] ? " (reference)" : ""), rect.x + 2, y + ROW_HEIGHT - 3);
+        }
+
+        // Differential row: level deltas as bars, MHL deltas as a line per window, centered on 0
+        int baseline = rect.y + sampleNames.size() * ROW_HEIGHT + DIFF_HEIGHT / 2;
+        int halfHeight = DIFF_HEIGHT / 2 - 2;
+        g.setColor(Color.LIGHT_GRAY);
+        g.drawLine(rect.x, baseline, rect.x + rect.width, baseline);
+
+        for (int i = 0; i < cpgs.length; i++) {
+            float delta = profile.getLevelDelta(i);
+            if (!Float.isNaN(delta) && delta != 0) {
+                int pX = (int) ((cpgs[i] - origin) / locScale);
+                int h = Math.round(Math.abs(delta) * halfHeight);
+                g.setColor(delta > 0 ? LEVEL_COLORS[100] : LEVEL_COLORS[0]);
+                g.fillRect(pX, delta > 0 ? baseline - h : baseline, dX, Math.max(1, h));
+            }
+        }
+
+        g.setColor(MHL_DELTA_COLOR);
+        for (int w = 0; w < profile.getWindowCount(); w++) {
+            float delta = profile.getMHLDelta(w);
+            if (!Float.isNaN(delta)) {
+                int pX0 = (int) ((profile.getWindowStart(w) - origin) / locScale);
+                int pX1 = (int) ((profile.getWindowStart(w) + profile.getWindowSize() - origin) / locScale);
+                int pY = baseline - Math.round(delta * halfHeight);
+                g.drawLine(pX0, pY, pX1, pY);
+            }
+        }
+
+        g.setColor(Color.BLACK);
+        g.drawString("Level / MHL difference", rect.x + 2, baseline - halfHeight + 10);
+    }
+
+    @Override
+    public int getHeight() {
+        return sampleNames.size() * ROW_HEIGHT + DIFF_HEIGHT;
+    }
+}
@@ -0,0 +1,134 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.broad.igv.sam.DownsampledInterval;
+
+import java.util.*;
+
+/**
+ * Haplotypes of a loaded interval, allocated to rows such that reads in a row don't overlap.  Rows are packed
+ * greedily once per load: reads are taken in order of start and each goes to the row that frees up first, found
+ * with a priority queue on the row end, O(n log n) overall.
+ * <p>
+ * The positions of the CpGs the reads cover and the per-CpG counts of the mean bars are kept alongside, so drawing
+ * never scans the reference.  When the drawn reads are a sample they are still counted
+ * from all the records of the interval, and the intervals that lost reads are kept too.
+ */
+public class PackedHaps {
+
+    private final List<HapData> haps;
+    private final int[] rows;
+    private final int rowCount;
+    private final int[] cpgs;
+    private final CpGCounts cpgCounts;
+    private final List<DownsampledInterval> downsampledIntervals;
+
+    private PackedHaps(List<HapData> haps, int[] rows, int rowCount, int[] cpgs,
+                       CpGCounts cpgCounts, List<DownsampledInterval> downsampledIntervals) {
+        this.haps = haps;
+        this.rows = rows;
+        this.rowCount = rowCount;
+        this.cpgs = cpgs;
+        this.cpgCounts = cpgCounts;
+        this.downsampledIntervals = downsampledIntervals;
+    }
+
+    public static PackedHaps empty() {
+        return new PackedHaps(Collections.emptyList(), new int[0], 0, new int[0], CpGCounts.empty(), Collections.emptyList());
+    }
+
+    /**
+     * @param minSpacing minimum gap in bases between the end of one read and the start of the next in a row
+     */
+    public static PackedHaps pack(List<HapData> hapList, int minSpacing) {
+        return pack(hapList, minSpacing, new int[0], CpGCounts.empty(), Collections.emptyList());
+    }
+
+    /**
+     * @param cpgs                 sorted positions of the CpGs covered by the reads
+     * @param cpgCounts            per-CpG counts of all the records of the interval
+     * @param downsampledIntervals intervals that lost reads to the sampling, when {@code hapList} is a sample
+     */
+    public static PackedHaps pack(List<HapData> hapList, int minSpacing, int[] cpgs,
+                                  CpGCounts cpgCounts, List<DownsampledInterval> downsampledIntervals) {
+        List<HapData> haps = new ArrayList<>(hapList);
+        haps.sort(Comparator.comparingInt(PackedHaps::packStart).thenComparingInt(PackedHaps::packEnd));
+
+        int[] rows = new int[haps.size()];
+        int rowCount = 0;
+
+        // {row end, row}, the row that frees up first on top
+        PriorityQueue<int[]> rowEnds = new PriorityQueue<>(
+                (a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]));
+
+        for (int i = 0; i < haps.size(); i++) {
+            HapData hapData = haps.get(i);
+            int start = packStart(hapData);
+
+            int[] row = rowEnds.peek();
+            if (row != null && row[0] + minSpacing < start) {
+                rowEnds.poll();
+            } else {
+                row = new int[]{0, rowCount++};
+            }
+            row[0] = packEnd(hapData);
+            rows[i] = row[1];
+            rowEnds.add(row);
+        }
+
+        return new PackedHaps(haps, rows, rowCount, cpgs, cpgCounts, downsampledIntervals);
+    }
+
+    // CpGs of reverse strand reads are drawn on the G, shift them so they pack with the forward strand ones
+    private static int packStart(HapData hapData) {
+        return hapData.strand == Strand.NEGATIVE ? hapData.start - 1 : hapData.start;
+    }
+
+    private static int packEnd(HapData hapData) {
+        return hapData.strand == Strand.NEGATIVE ? hapData.end - 1 : hapData.end;
+    }
+
+    /**
+     * @return the reads, sorted by start
+     */
+    public List<HapData> getHaps() {
+        return haps;
+    }
+
+    public int size() {
+        return haps.size();
+    }
+
+    public HapData get(int i) {
+        return haps.get(i);
+    }
+
+    /**
+     * @return the 0-based row of read {@code i}
+     */
+    public int getRow(int i) {
+        return rows[i];
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the sorted positions of the CpGs covered by the reads
+     */
+    public int[] getCpGs() {
+        return cpgs;
+    }
+
+    /**
+     * @return the methylated and total reads of each CpG of the interval
+     */
+    public CpGCounts getCpGCounts() {
+        return cpgCounts;
+    }
+
+    public List<DownsampledInterval> getDownsampledIntervals() {
+        return downsampledIntervals;
+    }
+}
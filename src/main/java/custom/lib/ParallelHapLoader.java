@@ -0,0 +1,216 @@
+package custom.lib;
+
+import org.apache.log4j.Logger;
+import org.broad.igv.event.IGVEventBus;
+import org.broad.igv.event.IGVEventObserver;
+import org.broad.igv.event.StopEvent;
+import org.broad.igv.ui.IGV;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk loader for large, uncompressed .hap files.  The file is memory mapped and split into newline aligned
+ * chunks which are parsed in parallel on a fork-join pool, each into its own {@link HapStore}.  The per-chunk
+ * stores, already sorted by chromosome and start, are then merged.
+ * <p>
+ * Progress is reported on the IGV status bar, and the status bar's stop button cancels the load.
+ */
+public class ParallelHapLoader implements IGVEventObserver {
+
+    private static Logger log = Logger.getLogger(ParallelHapLoader.class);
+
+    // Chunks are mapped individually, keep them well below the 2 GB limit of a mapping
+    private static final long MAX_CHUNK_SIZE = 256L * 1024 * 1024;
+    private static final long MIN_CHUNK_SIZE = 4L * 1024 * 1024;
+
+    // Lines parsed between checks for cancellation and progress updates
+    private static final int CHECK_INTERVAL = 10000;
+
+    private final ForkJoinPool pool;
+    private final long minChunkSize;
+    private volatile boolean cancelled = false;
+    private final AtomicInteger reportedPercent = new AtomicInteger();
+
+    public ParallelHapLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ParallelHapLoader(ForkJoinPool pool) {
+        this(pool, MIN_CHUNK_SIZE);
+    }
+
+    ParallelHapLoader(ForkJoinPool pool, long minChunkSize) {
+        this.pool = pool;
+        this.minChunkSize = minChunkSize;
+    }
+
+    /**
+     * Load the file into a single sorted store.
+     *
+     * @throws CancellationException if the load is cancelled with the stop button
+     */
+    public HapStore load(File file) throws IOException {
+
+        long t0 = System.currentTimeMillis();
+        IGVEventBus.getInstance().subscribe(StopEvent.class, this);
+        if (IGV.hasInstance()) {
+            IGV.getInstance().enableStopButton(true);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            List<long[]> chunks = split(channel);
+            AtomicLong bytesParsed = new AtomicLong();
+            long totalBytes = channel.size();
+
+            List<Callable<HapStore>> tasks = new ArrayList<>();
+            for (long[] chunk : chunks) {
+                tasks.add(() -> parseChunk(channel, chunk[0], chunk[1], bytesParsed, totalBytes, file.getName()));
+            }
+
+            List<HapStore> stores = new ArrayList<>();
+            for (Future<HapStore> future : pool.invokeAll(tasks)) {
+                stores.add(future.get());
+            }
+            if (cancelled) {
+                throw new CancellationException("Loading " + file.getName() + " cancelled");
+            }
+
+            HapStore store = HapStore.merge(stores);
+            log.info("Loaded " + store.size() + " records from " + file.getName() + " in " + chunks.size() +
+                    " chunks, " + (System.currentTimeMillis() - t0) + " ms");
+            return store;
+
+        } catch (InterruptedException e) {
+            throw new CancellationException("Loading " + file.getName() + " interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        } finally {
+            IGVEventBus.getInstance().unsubscribe(this);
+            if (IGV.hasInstance()) {
+                IGV.getInstance().enableStopButton(false);
+                IGV.getInstance().resetStatusMessage();
+            }
+        }
+    }
+
+    /**
+     * Split the file into chunks {start, end} that begin at the start of a line.
+     */
+    private List<long[]> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int parallelism = Math.max(1, pool.getParallelism());
+        long chunkSize = Math.max(minChunkSize, Math.min(MAX_CHUNK_SIZE, size / (4L * parallelism) + 1));
+
+        List<long[]> chunks = new ArrayList<>();
+        long start = 0;
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+
+            // Move the boundary past the next newline
+            while (end < size) {
+                probe.clear();
+                int n = channel.read(probe, end);
+                if (n <= 0) {
+                    end = size;
+                    break;
+                }
+                int i = 0;
+                while (i < n && probe.get(i) != '\n') i++;
+                end += i;
+                if (i < n) {
+                    end++;
+                    break;
+                }
+            }
+
+            chunks.add(new long[]{start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    private HapStore parseChunk(FileChannel channel, long start, long end, AtomicLong bytesParsed, long totalBytes,
+                                String fileName) throws IOException {
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        HapStore.Builder builder = new HapStore.Builder();
+        HapLineParser parser = new HapLineParser(new ByteBufferInputStream(buffer));
+
+        long reported = 0;
+        int lines = 0;
+        while (parser.next(builder)) {
+            if (++lines % CHECK_INTERVAL == 0) {
+                if (cancelled) {
+                    return builder.build();
+                }
+                long position = buffer.position();
+                long total = bytesParsed.addAndGet(position - reported);
+                reported = position;
+
+                // Only report whole percent steps, updating the status bar from a worker thread is slow
+                int percent = (int) (100 * total / totalBytes);
+                int last = reportedPercent.get();
+                if (percent > last && reportedPercent.compareAndSet(last, percent) && IGV.hasInstance()) {
+                    IGV.getInstance().setStatusBarMessage("Loading " + fileName + ": " + percent + "%");
+                }
+            }
+        }
+        bytesParsed.addAndGet((end - start) - reported);
+
+        return builder.build();
+    }
+
+    @Override
+    public void receiveEvent(Object event) {
+        if (event instanceof StopEvent) {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Read-only stream over a (mapped) byte buffer
+     */
+    static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
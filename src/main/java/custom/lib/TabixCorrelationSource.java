@@ -0,0 +1,20 @@
+package custom.lib;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Correlations precomputed in a bgzipped, tabix indexed file (chr, start, end, cor).
+ */
+public class TabixCorrelationSource implements CorrelationSource {
+
+    private TabixReaderPool readers;
+
+    public TabixCorrelationSource(TabixReaderPool readers) {
+        this.readers = readers;
+    }
+
+    public List<CorrelationData> query(String chr, int start, int end) throws IOException {
+        return readers.query(chr, start, end, HapLineParser::parseCorrelationData);
+    }
+}
@@ -0,0 +1,25 @@
+package custom.lib;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Data source backed by a bgzipped, tabix indexed mHap file.
+ */
+public class TabixHapSource implements HapDataSource {
+
+    private TabixReaderPool readers;
+
+    public TabixHapSource(TabixReaderPool readers) {
+        this.readers = readers;
+    }
+
+    public Iterator<HapData> query(String chr, int start, int end) throws IOException {
+        return readers.query(chr, start, end, HapLineParser::parseHapData).iterator();
+    }
+
+    @Override
+    public void close() {
+        readers.close();
+    }
+}
@@ -0,0 +1,141 @@
+package custom.lib;
+
+import htsjdk.tribble.readers.TabixReader;
+import org.apache.log4j.Logger;
+import org.broad.igv.util.stream.IGVSeekableStreamFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Thread safe tabix access to one file.  {@link TabixReader} is not thread safe, so each query borrows a reader of
+ * its own, opening a new one while there are fewer than the maximum and waiting for one to be returned otherwise.
+ * All readers read the file through one shared {@link BlockCache}, so concurrent queries of the same region only
+ * read its blocks once.
+ */
+public class TabixReaderPool {
+
+    private static Logger log = Logger.getLogger(TabixReaderPool.class);
+
+    // A BGZF block is at most 64 KB
+    private static final int PAGE_SIZE = 64 * 1024;
+
+    /**
+     * Parses one line of a query result.
+     */
+    public interface LineParser<T> {
+        T parse(String line) throws IOException;
+    }
+
+    private final String path;
+    private final int maxReaders;
+    private final BlockCache blockCache;
+
+    private final ArrayDeque<TabixReader> idleReaders = new ArrayDeque<>();
+    private int openReaders = 0;
+    private boolean closed = false;
+
+    public TabixReaderPool(String path, int maxReaders, long blockCacheBytes) throws IOException {
+        this.path = path;
+        this.maxReaders = Math.max(1, maxReaders);
+        this.blockCache = new BlockCache(PAGE_SIZE, blockCacheBytes);
+
+        // Open the first reader now so a missing or invalid index is reported when the file is opened
+        idleReaders.push(openReader());
+        openReaders = 1;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Set<String> getChromosomes() throws IOException {
+        TabixReader reader = borrow();
+        try {
+            return reader.getChromosomes();
+        } finally {
+            release(reader);
+        }
+    }
+
+    /**
+     * @return the parsed lines overlapping {@code chr:start-end}
+     */
+    public <T> List<T> query(String chr, int start, int end, LineParser<T> parser) throws IOException {
+        List<T> records = new ArrayList<>();
+        TabixReader reader = borrow();
+        try {
+            TabixReader.Iterator it = reader.query(chr, start, end);
+            String line;
+            while ((line = it.next()) != null) {
+                records.add(parser.parse(line));
+            }
+        } finally {
+            release(reader);
+        }
+        return records;
+    }
+
+    private TabixReader borrow() throws IOException {
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Closed " + path);
+                }
+                if (!idleReaders.isEmpty()) {
+                    return idleReaders.pop();
+                }
+                if (openReaders < maxReaders) {
+                    openReaders++;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a reader of " + path, e);
+                }
+            }
+        }
+
+        // Opening reads the index, do it outside the lock
+        try {
+            return openReader();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                openReaders--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private TabixReader openReader() throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("Opening tabix reader of " + path);
+        }
+        return new TabixReader(path, path + ".tbi",
+                new CachedSeekableStream(IGVSeekableStreamFactory.getInstance().getStreamFor(path), blockCache));
+    }
+
+    private synchronized void release(TabixReader reader) {
+        if (closed) {
+            reader.close();
+            return;
+        }
+        idleReaders.push(reader);
+        notifyAll();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        for (TabixReader reader : idleReaders) {
+            reader.close();
+        }
+        idleReaders.clear();
+        notifyAll();
+    }
+}
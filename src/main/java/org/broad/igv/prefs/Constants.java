@@ -171,6 +171,15 @@ final public class Constants {
     public static final String COLOR_G = "COLOR.G";
     public static final String COLOR_N = "COLOR.N";
 
+    // Haplotype (mHap) track settings
+    public static final String MHAP_CACHE_SIZE_MB = "MHAP.CACHE_SIZE_MB";
+    public static final String MHAP_TILE_SIZE = "MHAP.TILE_SIZE";
+    public static final String MHAP_TABIX_READERS = "MHAP.TABIX_READERS";
+    public static final String MHAP_BLOCK_CACHE_SIZE_MB = "MHAP.BLOCK_CACHE_SIZE_MB";
+    public static final String MHAP_DOWNSAMPLE_READS = "MHAP.DOWNSAMPLE_READS";
+    public static final String MHAP_SAMPLING_WINDOW = "MHAP.SAMPLING_WINDOW";
+    public static final String MHAP_SAMPLING_COUNT = "MHAP.SAMPLING_COUNT";
+
     // Variant (VCF) track settings
     public static final String VARIANT_COLOR_BY_ALLELE_FREQ = "VARIANT_COLOR_BY_ALLELE_FREQ";
     public static final String HOMREF_COLOR = "HOMREF.COLOR";
@@ -31,6 +31,12 @@ package org.broad.igv.tools;
 
 
 import com.sanityinc.jargs.CmdLineParser;
+import custom.lib.BamToHap;
+import custom.lib.BinaryHapWriter;
+import custom.lib.HapStats;
+import custom.lib.HapStatsWriter;
+import custom.lib.HapTabixWriter;
+import custom.lib.HapToTDF;
 import htsjdk.samtools.*;
 import htsjdk.tribble.Feature;
 import htsjdk.tribble.FeatureCodec;
@@ -111,6 +117,10 @@ public class IgvTools {
     static final String CMD_DISCORDANT = "discordant";
     static final String CMD_MAFTOSAM = "maftosam";
     static final String CMD_SUMWIGS = "sumwigs";
+    static final String CMD_HAPTOTDF = "haptotdf";
+    static final String CMD_MHAPSTATS = "mhapstats";
+    static final String CMD_HAPTOMHB = "haptomhb";
+    static final String CMD_BAMTOMHAP = "bamtomhap";
 
     /**
      * Stream for writing messages to the user, which we
@@ -133,11 +143,15 @@ public class IgvTools {
     //TODO extract this from readme
     static String[] commandDocs = new String[]{
             "version print the version number",
-            "sort    sort an alignment file by start position. ",
-            "index   index an alignment file",
+            "sort    sort an alignment file by start position. mHap files sorted to .gz are bgzipped and tabix indexed",
+            "index   index an alignment file. mHap files are bgzipped if needed and tabix indexed",
             "toTDF    convert an input file (cn, gct, wig) to tiled data format (tdf)",
             "count   compute coverage density for an alignment file",
             "formatexp  center, scale, and log2 normalize an expression file",
+            "hapToTDF  compute zoomed out methylation summaries of an mHap file (hap, hap.gz)",
+            "mhapstats  compute haplotype-level methylation metrics (MHL, PDR, CHALM, MCR, entropy) of an mHap file",
+            "hapToMHB  convert a sorted mHap file (hap, hap.gz) to the indexed binary mHap format (mhb)",
+            "bamToMHap  call CpG haplotypes of an indexed bisulfite alignment file (bam, cram) into a bgzipped, indexed mHap file",
             "gui      Start the gui",
             "help <command>     display this help message, or help on a specific command",
             "See http://www.broadinstitute.org/software/igv/igvtools_commandline for more detailed help"
@@ -145,6 +159,7 @@ public class IgvTools {
     public static final int MAX_RECORDS_IN_RAM = 500000;
     public static final int MAX_ZOOM = 7;
     public static final int WINDOW_SIZE = 25;
+    public static final int MHAP_WINDOW_SIZE = 500;
     public static final int EXT_FACTOR = 0;
     public static final Object PROBE_FILE = null;
     public static final int LINEAR_BIN_SIZE = 16000;
@@ -190,6 +205,10 @@ public class IgvTools {
     // Trackline
     private static CmdLineParser.Option colorOption = null;
 
+    // mhapstats
+    private static CmdLineParser.Option metricsOption = null;
+    private static CmdLineParser.Option threadsOption = null;
+
     /**
      * The general usage string
      */
@@ -450,6 +469,44 @@ public class IgvTools {
                 Boolean noSATagOption = (Boolean) parser.getOptionValue(noSATag, false);
                 MAFtoSAM.convert(inputFile, outputFile, noSATagOption);
 
+            } else if (command.equals(CMD_HAPTOTDF)) {
+                validateArgsLength(nonOptionArgs, 3, "Error in syntax. Expected: " + command + " [options] hapfile [tdffile] genome");
+                int maxZoomValue = (Integer) parser.getOptionValue(maxZoomOption, MAX_ZOOM);
+                String ofile = nonOptionArgs.length > 3 ? nonOptionArgs[2] : HapToTDF.getSummaryPath(ifile);
+                String genomeId = nonOptionArgs[nonOptionArgs.length > 3 ? 3 : 2];
+                Genome genome = loadGenome(genomeId);
+                if (genome == null) {
+                    throw new PreprocessingException("Genome could not be loaded: " + genomeId);
+                }
+                HapToTDF.convert(ifile, new File(ofile), genome, maxZoomValue);
+            } else if (command.equals(CMD_MHAPSTATS)) {
+                validateArgsLength(nonOptionArgs, 4, "Error in syntax. Expected: " + command + " [options] hapfile outputfile genome");
+                String ofile = nonOptionArgs[2];
+                String genomeId = nonOptionArgs[3];
+                int maxZoomValue = (Integer) parser.getOptionValue(maxZoomOption, MAX_ZOOM);
+                int windowSizeValue = (Integer) parser.getOptionValue(windowSizeOption, MHAP_WINDOW_SIZE);
+                int threads = (Integer) parser.getOptionValue(threadsOption, Runtime.getRuntime().availableProcessors());
+                HapStats.Metric[] metrics = parseMetrics((String) parser.getOptionValue(metricsOption));
+                Genome genome = loadGenome(genomeId);
+                if (genome == null) {
+                    throw new PreprocessingException("Genome could not be loaded: " + genomeId);
+                }
+                new HapStatsWriter(genome, windowSizeValue, metrics).write(ifile, new File(ofile), maxZoomValue, threads);
+            } else if (command.equals(CMD_HAPTOMHB)) {
+                validateArgsLength(nonOptionArgs, 2, "Error in syntax. Expected: " + command + " hapfile [mhbfile]");
+                String ofile = nonOptionArgs.length > 2 ? nonOptionArgs[2] : BinaryHapWriter.getDefaultPath(ifile);
+                BinaryHapWriter.convert(ifile, new File(ofile));
+            } else if (command.equals(CMD_BAMTOMHAP)) {
+                validateArgsLength(nonOptionArgs, 3, "Error in syntax. Expected: " + command + " [options] alignmentfile [hapfile] genome");
+                String ofile = nonOptionArgs.length > 3 ? nonOptionArgs[2] : BamToHap.getDefaultPath(ifile);
+                String genomeId = nonOptionArgs[nonOptionArgs.length > 3 ? 3 : 2];
+                int minMapQuality = (Integer) parser.getOptionValue(minMapQualityOpt, BamToHap.DEFAULT_MIN_MAPPING_QUALITY);
+                int threads = (Integer) parser.getOptionValue(threadsOption, Runtime.getRuntime().availableProcessors());
+                Genome genome = loadGenome(genomeId);
+                if (genome == null) {
+                    throw new PreprocessingException("Genome could not be loaded: " + genomeId);
+                }
+                new BamToHap(genome, minMapQuality).convert(ifile, new File(ofile), threads);
             } else if (command.equals(CMD_SUMWIGS)) {
                 sumWigs(nonOptionArgs[1], nonOptionArgs[2]);
             } else if (command.equals(CMD_DENSITIESTOBEDGRAPH)) {
@@ -601,6 +658,22 @@ public class IgvTools {
             }
         }
 
+        if (command.equals(CMD_HAPTOTDF)) {
+            maxZoomOption = parser.addIntegerOption('z', "maxZoom");
+        }
+
+        if (command.equals(CMD_MHAPSTATS)) {
+            maxZoomOption = parser.addIntegerOption('z', "maxZoom");
+            windowSizeOption = parser.addIntegerOption('w', "windowSize");
+            metricsOption = parser.addStringOption("metrics");
+            threadsOption = parser.addIntegerOption("threads");
+        }
+
+        if (command.equals(CMD_BAMTOMHAP)) {
+            minMapQualityOpt = parser.addIntegerOption("minMapQuality");
+            threadsOption = parser.addIntegerOption("threads");
+        }
+
         if (command.equals(CMD_INDEX)) {
             indexTypeOption = parser.addIntegerOption("indexType");
             binSizeOption = parser.addIntegerOption("binSize");
@@ -938,6 +1011,10 @@ public class IgvTools {
             outputDir = inputFile.getParent();
         }
 
+        if (typeString.endsWith("hap")) {
+            return indexHap(inputFile, outputDir);
+        }
+
         if (typeString.endsWith("gz")) {
             log.error("Cannot index a gzipped file");
             throw new PreprocessingException("Cannot index a gzipped file");
@@ -1009,6 +1086,38 @@ public class IgvTools {
 
     }
 
+    /**
+     * mHap files are indexed with tabix, which needs them bgzipped: a bgzipped file gets its .tbi next to it, a plain
+     * one is first bgzipped to {@code <file>.gz} in the output directory.  The file must be sorted.
+     *
+     * @return the path of the index
+     */
+    private String indexHap(File inputFile, String outputDir) throws IOException {
+        if (inputFile.getName().endsWith(".gz")) {
+            HapTabixWriter.index(inputFile);
+            return inputFile.getAbsolutePath() + ".tbi";
+        }
+
+        File outputFile = new File(outputDir, inputFile.getName() + ".gz");
+        userMessageWriter.println("Compressing " + inputFile.getAbsolutePath() + "  -> " + outputFile.getAbsolutePath());
+        boolean complete = false;
+        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+             HapTabixWriter writer = new HapTabixWriter(outputFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                writer.writeLine(line);
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                outputFile.delete();
+                new File(outputFile.getPath() + ".tbi").delete();
+            }
+        }
+        userMessageWriter.flush();
+        return outputFile.getAbsolutePath() + ".tbi";
+    }
+
     public void indexBAM(File inputFile, String outputFileName) {
         final File bamIndexFile = new File(outputFileName);
         SamReaderFactory.setDefaultValidationStringency(ValidationStringency.SILENT);
@@ -1223,6 +1332,29 @@ public class IgvTools {
     }
 
 
+    /**
+     * Parse the metrics line of hapStats.  The default is all metrics.
+     *
+     * @param string comma delimited string of metrics, e.g. mhl, pdr
+     * @return the metrics, in the order given
+     */
+    private static HapStats.Metric[] parseMetrics(String string) {
+        if (string == null || string.length() == 0) {
+            return HapStats.Metric.values();
+        }
+        String[] tokens = string.split(",");
+        List<HapStats.Metric> metrics = new ArrayList<>(tokens.length);
+        for (String token : tokens) {
+            try {
+                metrics.add(HapStats.Metric.valueOf(token.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new PreprocessingException("Unrecognized metric: " + token.trim() + ". Valid metrics are " +
+                        Arrays.toString(HapStats.Metric.values()));
+            }
+        }
+        return metrics.toArray(new HapStats.Metric[0]);
+    }
+
     /**
      * Parse the window functions line.   The default for most files is a single "mean",  however gct files include
      * min and max as well.
@@ -33,6 +33,7 @@ import htsjdk.tribble.readers.AsciiLineReader;
 
 import java.io.*;
 import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created by IntelliJ IDEA.
@@ -76,16 +77,16 @@ public abstract class AsciiSorter implements Sorter {
 
     public void run() throws IOException {
 
-        FileInputStream fis = null;
+        InputStream fis = null;
         PrintWriter writer = null;
+        ErrorTrackingWriter rawWriter = null;
 
         try {
-            fis = new FileInputStream(inputFile);
-            Writer rawWriter;
+            fis = openInputStream(inputFile);
             if (writeStdOut) {
-                rawWriter = new OutputStreamWriter(System.out);
+                rawWriter = new ErrorTrackingWriter(new OutputStreamWriter(System.out));
             } else {
-                rawWriter = new FileWriter(this.outputFile);
+                rawWriter = new ErrorTrackingWriter(openWriter(this.outputFile));
             }
             writer = new PrintWriter(new BufferedWriter(rawWriter));
 
@@ -118,6 +119,14 @@ public abstract class AsciiSorter implements Sorter {
             if (fis != null) fis.close();
             if (writer != null) writer.close();
         }
+
+        // PrintWriter swallows the errors of the writer, e.g. a line the output format rejects
+        if (rawWriter.getError() != null) {
+            throw rawWriter.getError();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Failed to write " + (writeStdOut ? "the sorted records" : outputFile.getPath()));
+        }
     }
 
     public void setComparator(Comparator<SortableRecord> comparator) {
@@ -141,6 +150,21 @@ public abstract class AsciiSorter implements Sorter {
         return comp;
     }
 
+    /**
+     * @return the stream of the input file, decompressed if it is gzipped
+     */
+    protected InputStream openInputStream(File inputFile) throws IOException {
+        InputStream is = new FileInputStream(inputFile);
+        return inputFile.getName().endsWith(".gz") ? new GZIPInputStream(is) : is;
+    }
+
+    /**
+     * @return the writer of the sorted output file
+     */
+    protected Writer openWriter(File outputFile) throws IOException {
+        return new FileWriter(outputFile);
+    }
+
     abstract Parser getParser() throws IOException;
 
     /**
@@ -165,4 +189,72 @@ public abstract class AsciiSorter implements Sorter {
     public void setWriteStdOut(boolean writeStdOut) {
         this.writeStdOut = writeStdOut;
     }
+
+    /**
+     * Keeps the first error of the writer, which PrintWriter would otherwise swallow.
+     */
+    private static class ErrorTrackingWriter extends FilterWriter {
+
+        private IOException error;
+
+        ErrorTrackingWriter(Writer out) {
+            super(out);
+        }
+
+        IOException getError() {
+            return error;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            try {
+                super.write(c);
+            } catch (IOException e) {
+                throw track(e);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            try {
+                super.write(cbuf, off, len);
+            } catch (IOException e) {
+                throw track(e);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            try {
+                super.write(str, off, len);
+            } catch (IOException e) {
+                throw track(e);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                super.flush();
+            } catch (IOException e) {
+                throw track(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } catch (IOException e) {
+                throw track(e);
+            }
+        }
+
+        private IOException track(IOException e) {
+            if (error == null) {
+                error = e;
+            }
+            return e;
+        }
+    }
 }
@@ -0,0 +1,41 @@
+package org.broad.igv.tools.sort;
+
+import custom.lib.HapTabixWriter;
+import htsjdk.tribble.readers.AsciiLineReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Sorts mHap files (chr, start, end, haplotype, count, strand), plain or gzipped.  A ".gz" output file is bgzipped
+ * and tabix indexed as it is written, ready to be streamed.
+ */
+public class HapSorter extends AsciiSorter {
+
+    public HapSorter(File inputFile, File outputFile) {
+        super(inputFile, outputFile);
+    }
+
+    @Override
+    Parser getParser() {
+        // Columns may be space separated, as HapLineParser accepts
+        return new Parser(0, 1, true);
+    }
+
+    @Override
+    protected Writer openWriter(File outputFile) throws IOException {
+        return outputFile.getName().endsWith(".gz") ? new HapTabixWriter(outputFile) : super.openWriter(outputFile);
+    }
+
+    @Override
+    String writeHeader(AsciiLineReader reader, PrintWriter writer) throws IOException {
+        String nextLine = reader.readLine();
+        while (nextLine != null && (nextLine.startsWith("#") || nextLine.trim().length() == 0)) {
+            writer.println(nextLine);
+            nextLine = reader.readLine();
+        }
+        return nextLine;
+    }
+}
@@ -47,7 +47,9 @@ public class SorterFactory {
         if (shortFN.endsWith(".txt")) {
             shortFN = shortFN.substring(0, shortFN.length() - 4);
         }
-        if (shortFN.endsWith(".cn") || shortFN.endsWith(".xcn") || shortFN.endsWith(".snp") || shortFN.endsWith(".igv")) {
+        if (shortFN.endsWith(".hap") || shortFN.endsWith(".hap.gz")) {
+            return new HapSorter(inputFile, outputFile);
+        } else if (shortFN.endsWith(".cn") || shortFN.endsWith(".xcn") || shortFN.endsWith(".snp") || shortFN.endsWith(".igv")) {
             return new CNSorter(inputFile, outputFile);
         } else if (shortFN.endsWith(".sam")) {
             return new SAMSorter(inputFile, outputFile);
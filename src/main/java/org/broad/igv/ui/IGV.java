@@ -36,8 +36,6 @@ package org.broad.igv.ui;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.jidesoft.swing.JideSplitPane;
-import custom.lib.CorrelationTrack;
-import custom.lib.HapTrack;
 import htsjdk.samtools.seekablestream.SeekableFileStream;
 import org.apache.log4j.Logger;
 import org.broad.igv.DirectoryManager;
@@ -2392,17 +2390,6 @@ public class IGV implements IGVEventObserver {
                         }
                     }
                 }
-
-                // Reload for my hap track windows if required
-                for (int i = 0; i < HapTrack.Instances.size(); i++) {
-                    if (HapTrack.Instances.get(i).isReadyToPaint(frame) == false) {
-                        HapTrack.Instances.get(i).load(frame);
-                    }
-                }
-
-                for (int i = 0; i < CorrelationTrack.Instances.size(); i++) {
-                    CorrelationTrack.Instances.get(i).load(frame);
-                }
             }
         }
 
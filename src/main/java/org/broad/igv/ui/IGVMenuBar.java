@@ -27,6 +27,7 @@ package org.broad.igv.ui;
 
 import custom.lib.LoadCorMenuAction;
 import custom.lib.LoadHapMenuAction;
+import custom.lib.LoadMultiHapMenuAction;
 import org.apache.log4j.Logger;
 import org.broad.igv.DirectoryManager;
 import org.broad.igv.Globals;
@@ -283,6 +284,10 @@ public class IGVMenuBar extends JMenuBar implements IGVEventObserver {
         menuAction = new LoadHapMenuAction("Load from Haplotype File...", KeyEvent.VK_F1, igv);
         menuItems.add(MenuAndToolbarUtils.createMenuItem(menuAction));
 
+        // Several Hap samples in one track
+        menuAction = new LoadMultiHapMenuAction("Load Multiple Haplotype Files...", KeyEvent.VK_F3, igv);
+        menuItems.add(MenuAndToolbarUtils.createMenuItem(menuAction));
+
         // Custom Correlation Data
         menuAction = new LoadCorMenuAction("Load from Correlation File...", KeyEvent.VK_F2, igv);
         menuItems.add(MenuAndToolbarUtils.createMenuItem(menuAction));
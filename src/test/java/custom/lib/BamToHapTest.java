@@ -0,0 +1,152 @@
+package custom.lib;
+
+import htsjdk.samtools.*;
+import htsjdk.tribble.readers.TabixReader;
+import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.util.ParsingUtils;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BamToHapTest {
+
+    @Test
+    public void testConvert() throws Exception {
+        Random random = new Random(3);
+        byte[] seq = HapTestUtils.randomSequence(random, 20000);
+        Genome genome = HapTestUtils.createGenome(seq);
+        int[] cpgs = new CpGIndex(genome).getCpGs("chr1", 0, seq.length);
+
+        SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", seq.length));
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+        File bam = File.createTempFile("bamtohap", ".bam");
+        bam.deleteOnExit();
+        Map<String, Integer> expected = new TreeMap<>();
+        try (SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, false, bam)) {
+            for (int f = 0; f < 500; f++) {
+                int start = 100 + 50 * random.nextInt(300);
+                boolean methylated = random.nextBoolean();
+                String name = "read" + f;
+                int type = random.nextInt(3);
+                if (type == 0) {
+                    // Unpaired read of the top strand
+                    writer.addAlignment(record(header, name, seq, start, 80, methylated, false, false, false));
+                    addExpected(expected, cpgs, start, start + 80, methylated, '+');
+                } else if (type == 1) {
+                    // Unpaired read of the bottom strand
+                    writer.addAlignment(record(header, name, seq, start, 80, methylated, true, false, false));
+                    addExpected(expected, cpgs, start, start + 80, methylated, '-');
+                } else {
+                    // Overlapping mates of a top strand fragment
+                    SAMRecord first = record(header, name, seq, start, 60, methylated, false, true, true);
+                    SAMRecord second = record(header, name, seq, start + 40, 60, methylated, true, true, false);
+                    first.setMateAlignmentStart(start + 41);
+                    second.setMateAlignmentStart(start + 1);
+                    writer.addAlignment(first);
+                    writer.addAlignment(second);
+                    addExpected(expected, cpgs, start, start + 100, methylated, '+');
+                }
+            }
+        }
+        File bai = new File(bam.getPath().replaceAll("\\.bam$", ".bai"));
+        File bamBai = new File(bam.getPath() + ".bai");
+        assertTrue(bai.renameTo(bamBai));
+        bamBai.deleteOnExit();
+
+        File output = File.createTempFile("bamtohap", ".hap.gz");
+        output.deleteOnExit();
+        new File(output.getPath() + ".tbi").deleteOnExit();
+        new BamToHap(genome, 0).convert(bam.getPath(), output, 2);
+
+        Map<String, Integer> actual = new TreeMap<>();
+        int previousStart = 0;
+        try (BufferedReader reader = ParsingUtils.openBufferedReader(output.getPath())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\t");
+                int start = Integer.parseInt(tokens[1]);
+                assertTrue("Output is sorted", start >= previousStart);
+                previousStart = start;
+                assertNull("Haplotypes are collapsed", actual.put(tokens[1] + "\t" + tokens[2] + "\t" + tokens[3] + "\t" + tokens[5],
+                        Integer.parseInt(tokens[4])));
+            }
+        }
+        assertEquals(expected, actual);
+
+        // Every record, including the single CpG ones, is found through the index
+        TabixReader tabixReader = new TabixReader(output.getPath());
+        for (String key : expected.keySet()) {
+            String[] tokens = key.split("\t");
+            int start = Integer.parseInt(tokens[0]);
+            TabixReader.Iterator it = tabixReader.query("chr1", start, start + 1);
+            boolean found = false;
+            String line;
+            while ((line = it.next()) != null) {
+                found |= line.startsWith("chr1\t" + tokens[0] + "\t" + tokens[1] + "\t" + tokens[2] + "\t");
+            }
+            assertTrue(key, found);
+        }
+        tabixReader.close();
+    }
+
+    /**
+     * A fully converted read of the 0-based reference interval [start, start + length).  Cs of CpGs, or Gs on the
+     * bottom strand, are protected when {@code methylated}.
+     */
+    private static SAMRecord record(SAMFileHeader header, String name, byte[] seq, int start, int length,
+                                    boolean methylated, boolean negative, boolean paired, boolean firstOfPair) {
+        boolean bottom = paired ? negative ^ !firstOfPair : negative;
+        byte[] read = Arrays.copyOfRange(seq, start, start + length);
+        for (int i = 0; i < length; i++) {
+            int p = start + i;
+            if (!bottom && read[i] == 'C') {
+                boolean cpg = p + 1 < seq.length && seq[p + 1] == 'G';
+                read[i] = cpg && methylated ? (byte) 'C' : (byte) 'T';
+            } else if (bottom && read[i] == 'G') {
+                boolean cpg = p > 0 && seq[p - 1] == 'C';
+                read[i] = cpg && methylated ? (byte) 'G' : (byte) 'A';
+            }
+        }
+
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(name);
+        record.setReferenceName("chr1");
+        record.setAlignmentStart(start + 1);
+        record.setCigarString(length + "M");
+        record.setReadBases(read);
+        record.setBaseQualities(SAMRecord.NULL_QUALS);
+        record.setMappingQuality(60);
+        record.setReadNegativeStrandFlag(negative);
+        if (paired) {
+            record.setReadPairedFlag(true);
+            record.setProperPairFlag(true);
+            record.setFirstOfPairFlag(firstOfPair);
+            record.setSecondOfPairFlag(!firstOfPair);
+            record.setMateReferenceName("chr1");
+            record.setMateNegativeStrandFlag(!negative);
+        }
+        return record;
+    }
+
+    /**
+     * A CpG is called when both its C and G are in [start, end)
+     */
+    private static void addExpected(Map<String, Integer> expected, int[] cpgs, int start, int end, boolean methylated, char strand) {
+        int first = CpGIndex.lowerBound(cpgs, start);
+        int last = CpGIndex.lowerBound(cpgs, end - 1) - 1;
+        if (last < first) {
+            return;
+        }
+        StringBuilder pattern = new StringBuilder();
+        for (int i = first; i <= last; i++) {
+            pattern.append(methylated ? '1' : '0');
+        }
+        expected.merge((cpgs[first] + 1) + "\t" + (cpgs[last] + 2) + "\t" + pattern + "\t" + strand, 1, Integer::sum);
+    }
+}
@@ -0,0 +1,106 @@
+package custom.lib;
+
+import org.broad.igv.exceptions.ParserException;
+import org.broad.igv.feature.Strand;
+import org.broad.igv.feature.genome.Genome;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BinaryHapTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(7);
+        byte[] seq = HapTestUtils.randomSequence(random, 2 * CpGIndex.TILE_SIZE + 5000);
+        Genome genome = HapTestUtils.createGenome(seq);
+        CpGIndex cpgIndex = new CpGIndex(genome);
+        int[] cpgs = cpgIndex.getCpGs("chr1", 0, seq.length);
+
+        // Reads start at a CpG, bit k is the CpG of ordinal + k
+        Strand[] strands = {Strand.NONE, Strand.POSITIVE, Strand.NEGATIVE};
+        List<HapData> records = new ArrayList<>();
+        int ordinal = 0;
+        for (int i = 0; i < 30000; i++) {
+            ordinal += random.nextInt(4);
+            int n = 1 + random.nextInt(Math.min(20, cpgs.length - ordinal));
+            if (ordinal + n > cpgs.length) {
+                break;
+            }
+            records.add(HapTestUtils.read(cpgs, ordinal, HapTestUtils.randomStates(random, n, 0.5),
+                    1 + random.nextInt(300), strands[random.nextInt(3)]));
+        }
+
+        File file = File.createTempFile("test", BinaryHapSource.EXTENSION);
+        file.deleteOnExit();
+        try (BinaryHapWriter writer = new BinaryHapWriter(file)) {
+            for (HapData hapData : records) {
+                writer.add(hapData);
+            }
+        }
+
+        try (BinaryHapSource source = new BinaryHapSource(file.getPath())) {
+            assertEquals(Collections.singleton("chr1"), source.getChromosomes());
+            assertEquals(records.size(), count(source.query("chr1", 0, seq.length), new ArrayList<>()));
+            assertFalse(source.query("chr2", 0, seq.length).hasNext());
+
+            for (int q = 0; q < 100; q++) {
+                int start = random.nextInt(seq.length);
+                int end = start + random.nextInt(20000);
+                List<String> expected = new ArrayList<>();
+                for (HapData hapData : records) {
+                    if (hapData.end >= start && hapData.start <= end) {
+                        expected.add(key(hapData));
+                    }
+                }
+                List<String> actual = new ArrayList<>();
+                count(source.query("chr1", start, end), actual);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsUnsortedRecords() throws Exception {
+        File file = File.createTempFile("test", BinaryHapSource.EXTENSION);
+        file.deleteOnExit();
+
+        BinaryHapWriter writer = new BinaryHapWriter(file);
+        writer.add(new HapData("chr1", 2, 3, new boolean[]{true}, 1, Strand.NONE));
+        try {
+            writer.add(new HapData("chr1", 1, 3, new boolean[]{true}, 1, Strand.NONE));
+            fail("Expected unsorted records to be rejected");
+        } catch (ParserException e) {
+            // Expected
+        }
+        writer.add(new HapData("chr2", 1, 3, new boolean[]{true}, 1, Strand.NONE));
+        try {
+            writer.add(new HapData("chr1", 6, 7, new boolean[]{true}, 1, Strand.NONE));
+            fail("Expected a chromosome appearing twice to be rejected");
+        } catch (ParserException e) {
+            // Expected
+        }
+        writer.close();
+    }
+
+    private static int count(Iterator<HapData> it, List<String> keys) {
+        int n = 0;
+        while (it.hasNext()) {
+            keys.add(key(it.next()));
+            n++;
+        }
+        return n;
+    }
+
+    private static String key(HapData hapData) {
+        StringBuilder key = new StringBuilder(hapData.chr + ":" + hapData.start + "-" + hapData.end + ":" +
+                hapData.readCount + ":" + hapData.strand + ":");
+        for (boolean state : hapData.states) {
+            key.append(state ? '1' : '0');
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,132 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CachingHapSourceTest {
+
+    /**
+     * Source with one 100 bp record every 500 bp that counts the queries it receives
+     */
+    static class CountingSource implements HapDataSource {
+
+        volatile int queryCount = 0;
+
+        public synchronized Iterator<HapData> query(String chr, int start, int end) {
+            queryCount++;
+            List<HapData> records = new ArrayList<>();
+            for (int s = (start / 500) * 500; s <= end; s += 500) {
+                if (s + 100 >= start) {
+                    records.add(new HapData(chr, s, s + 100, new boolean[]{true, false}, 1, Strand.POSITIVE));
+                }
+            }
+            return records.iterator();
+        }
+    }
+
+    private static int count(Iterator<HapData> iter) {
+        int n = 0;
+        while (iter.hasNext()) {
+            iter.next();
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        CountingSource reader = new CountingSource();
+        CachingHapSource source = new CachingHapSource(reader, 10000, Long.MAX_VALUE);
+
+        // Records starting at 9500, 10000 ... 12000
+        assertEquals(6, count(source.query("chr1", 9550, 12050)));
+        assertEquals(1, reader.queryCount);
+
+        // Small pan and back, all within cached bins
+        assertEquals(3, count(source.query("chr1", 10400, 11600)));
+        assertEquals(6, count(source.query("chr1", 9550, 12050)));
+        assertEquals(1, reader.queryCount);
+
+        // Only the missing bin is fetched
+        source.query("chr1", 25000, 26000);
+        assertEquals(2, reader.queryCount);
+
+        source.query("chr2", 25000, 26000);
+        assertEquals(3, reader.queryCount);
+    }
+
+    @Test
+    public void testRecordsLongerThanABin() throws Exception {
+        HapData longRead = new HapData("chr1", 1000, 45000, new boolean[]{true}, 1, Strand.POSITIVE);
+        HapData shortRead = new HapData("chr1", 40500, 40600, new boolean[]{true}, 1, Strand.POSITIVE);
+        CachingHapSource source = new CachingHapSource(
+                new IndexedHapSource(Arrays.asList(longRead, shortRead)), 10000, Long.MAX_VALUE);
+
+        // The long read starts four bins before the query
+        List<HapData> records = new ArrayList<>();
+        source.query("chr1", 40000, 41000).forEachRemaining(records::add);
+        assertEquals(2, records.size());
+        assertEquals(longRead.start, records.get(0).start);
+
+        // And is found by later queries of other bins
+        assertEquals(1, count(source.query("chr1", 30000, 31000)));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        CountingSource reader = new CountingSource();
+
+        // Room for a little more than one bin of 20 records
+        CachingHapSource source = new CachingHapSource(reader, 10000, 2500);
+
+        source.query("chr1", 1000, 2000);
+        source.query("chr1", 51000, 52000);
+        assertEquals(2, reader.queryCount);
+
+        // The first bin has been evicted
+        source.query("chr1", 1000, 2000);
+        assertEquals(3, reader.queryCount);
+    }
+
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        // Each read blocks until two reads are in flight, which only happens if distinct loci are read concurrently
+        CountDownLatch inFlight = new CountDownLatch(2);
+        CountingSource counter = new CountingSource();
+        HapDataSource reader = (chr, start, end) -> {
+            inFlight.countDown();
+            try {
+                assertTrue(inFlight.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return counter.query(chr, start, end);
+        };
+        CachingHapSource source = new CachingHapSource(reader, 10000, Long.MAX_VALUE);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                // Two queries of each locus, each locus is read once
+                int offset = (i % 2) * 100000;
+                results.add(executor.submit(() -> count(source.query("chr1", offset + 1000, offset + 2000))));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(3, (int) result.get(20, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(2, counter.queryCount);
+    }
+}
@@ -0,0 +1,44 @@
+package custom.lib;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CorrelationHeatmapTest {
+
+    @Test
+    public void testRasterizesDiamonds() {
+        // 5 pixels per base, too small for labels
+        double scale = 0.2;
+        int height = 200;
+        List<CorrelationData> data = Arrays.asList(
+                new CorrelationData("chr1", 110, 113, 1.0f),
+                new CorrelationData("chr1", 120, 130, 0.5f));
+        CorrelationHeatmap heatmap = new CorrelationHeatmap(data, 100, 140, scale, height);
+        BufferedImage image = heatmap.getImage();
+        assertEquals(200, image.getWidth());
+
+        // Centers of the diamonds, as the track computes them
+        assertEquals(0xFFFF0000, image.getRGB(55, height - 7 + 3));
+        assertEquals(0xFF000000 | (Math.round(0.5f * 255) << 16), image.getRGB(122, height - 31 + 7));
+
+        // Outside any diamond
+        assertEquals(0, image.getRGB(10, height - 1));
+    }
+
+    @Test
+    public void testValidity() {
+        List<CorrelationData> data = new ArrayList<>();
+        CorrelationHeatmap heatmap = new CorrelationHeatmap(data, 100, 200, 0.5, 150);
+        assertTrue(heatmap.isValid(data, 120, 180, 0.5, 150));
+        assertFalse(heatmap.isValid(data, 90, 180, 0.5, 150));
+        assertFalse(heatmap.isValid(data, 120, 180, 0.25, 150));
+        assertFalse(heatmap.isValid(data, 120, 180, 0.5, 160));
+        assertFalse(heatmap.isValid(new ArrayList<>(), 120, 180, 0.5, 150));
+    }
+}
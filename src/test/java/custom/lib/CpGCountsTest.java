@@ -0,0 +1,73 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.broad.igv.feature.genome.Genome;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CpGCountsTest {
+
+    @Test
+    public void testCounts() {
+        Random random = new Random(7);
+        byte[] seq = HapTestUtils.randomSequence(random, 5000);
+        Genome genome = HapTestUtils.createGenome(seq);
+        CpGIndex cpgIndex = new CpGIndex(genome);
+        int[] all = cpgIndex.getCpGs("chr1", 0, seq.length);
+
+        // Reads anywhere, some of them across the edges of the counted interval
+        List<HapData> haps = new ArrayList<>();
+        for (int r = 0; r < 500; r++) {
+            int o = random.nextInt(all.length - 10);
+            boolean[] states = HapTestUtils.randomStates(random, 1 + random.nextInt(8), 0.5);
+            Strand strand = random.nextBoolean() ? Strand.POSITIVE : Strand.NEGATIVE;
+            haps.add(HapTestUtils.read(all, o, states, 1 + random.nextInt(4), strand));
+        }
+
+        int start = 2000, end = 3000;
+        for (boolean combine : new boolean[]{false, true}) {
+            CpGCounts counts = CpGCounts.count(haps, cpgIndex.getCpGs("chr1", start, end), cpgIndex, combine);
+
+            // Per CpG tally, keyed by the drawn position
+            Map<Integer, int[]> expected = new HashMap<>();
+            for (HapData hapData : haps) {
+                int[] cpgs = cpgIndex.getCpGs("chr1", hapData.start - 1, hapData.end + 1);
+                for (int k = 0; k < cpgs.length && k < hapData.states.length; k++) {
+                    if (cpgs[k] < start || cpgs[k] >= end) {
+                        continue;
+                    }
+                    int drawn = hapData.strand == Strand.NEGATIVE && !combine ? cpgs[k] + 1 : cpgs[k];
+                    int[] tally = expected.computeIfAbsent(drawn, x -> new int[2]);
+                    tally[0] += hapData.states[k] ? hapData.readCount : 0;
+                    tally[1] += hapData.readCount;
+                }
+            }
+
+            int found = 0;
+            for (int i = 0; i < counts.size(); i++) {
+                for (int strand = CpGCounts.FORWARD; strand <= CpGCounts.REVERSE; strand++) {
+                    int[] tally = expected.get(counts.getPosition(i) + strand);
+                    if (tally == null) {
+                        assertEquals(0, counts.getTotal(strand, i));
+                        assertTrue(Double.isNaN(counts.getMean(strand, i)));
+                        continue;
+                    }
+                    assertEquals(tally[0], counts.getMethylated(strand, i));
+                    assertEquals(tally[1], counts.getTotal(strand, i));
+                    assertEquals((double) tally[0] / tally[1], counts.getMean(strand, i), 1e-9);
+                    found++;
+                }
+            }
+            assertEquals(expected.size(), found);
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        CpGCounts counts = CpGCounts.empty();
+        assertEquals(0, counts.size());
+    }
+}
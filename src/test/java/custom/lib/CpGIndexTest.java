@@ -0,0 +1,42 @@
+package custom.lib;
+
+import org.broad.igv.feature.genome.Genome;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CpGIndexTest {
+
+    @Test
+    public void testMatchesSequenceScan() {
+        Random random = new Random(5);
+        byte[] seq = HapTestUtils.randomSequence(random, 2 * CpGIndex.TILE_SIZE + 1000, new byte[]{'A', 'C', 'G', 'T', 'c', 'g'});
+        // A CpG spanning the tile boundary
+        seq[CpGIndex.TILE_SIZE - 1] = 'C';
+        seq[CpGIndex.TILE_SIZE] = 'g';
+
+        Genome genome = HapTestUtils.createGenome(seq);
+        CpGIndex index = new CpGIndex(genome);
+
+        int[][] ranges = {{0, 500}, {CpGIndex.TILE_SIZE - 100, CpGIndex.TILE_SIZE + 100}, {12345, 2 * CpGIndex.TILE_SIZE + 900},
+                {-10, 30}, {seq.length - 50, seq.length + 50}, {700, 700}};
+        for (int[] range : ranges) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = Math.max(0, range[0]); i < Math.min(range[1], seq.length - 1); i++) {
+                if (Character.toLowerCase(seq[i]) == 'c' && Character.toLowerCase(seq[i + 1]) == 'g') {
+                    expected.add(i);
+                }
+            }
+            int[] actual = index.getCpGs("chr1", range[0], range[1]);
+            assertEquals(expected.size(), actual.length);
+            for (int i = 0; i < actual.length; i++) {
+                assertEquals((int) expected.get(i), actual[i]);
+            }
+        }
+
+        assertTrue(Arrays.binarySearch(index.getCpGs("chr1", 0, seq.length), CpGIndex.TILE_SIZE - 1) >= 0);
+        assertEquals(0, index.getCpGs("chrUnknown", 0, 1000).length);
+    }
+}
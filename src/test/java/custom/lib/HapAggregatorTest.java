@@ -0,0 +1,91 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class HapAggregatorTest {
+
+    @Test
+    public void testMergesIdenticalHaplotypes() {
+        HapAggregator aggregator = new HapAggregator(false);
+        aggregator.add(hap("chr1", 100, 120, "1101", 2, Strand.POSITIVE));
+        aggregator.add(hap("chr1", 100, 120, "1101", 3, Strand.POSITIVE));
+        aggregator.add(hap("chr1", 100, 120, "1101", 1, Strand.NEGATIVE));
+        aggregator.add(hap("chr1", 100, 120, "1100", 1, Strand.POSITIVE));
+        aggregator.add(hap("chr2", 100, 120, "1101", 4, Strand.POSITIVE));
+
+        List<HapData> results = aggregator.getResults();
+        assertEquals(4, results.size());
+        assertEquals(5, results.get(0).readCount);
+        assertEquals(Strand.NEGATIVE, results.get(1).strand);
+        assertEquals("chr2", results.get(3).chr);
+
+        HapAggregator combined = new HapAggregator(true);
+        combined.add(hap("chr1", 100, 120, "1101", 2, Strand.POSITIVE));
+        combined.add(hap("chr1", 100, 120, "1101", 1, Strand.NEGATIVE));
+        assertEquals(1, combined.size());
+        assertEquals(3, combined.getCount(0));
+    }
+
+    @Test
+    public void testMatchesStringKeys() {
+        Random random = new Random(3);
+        Strand[] strands = {Strand.NONE, Strand.POSITIVE, Strand.NEGATIVE};
+
+        HapStore.Builder builder = new HapStore.Builder();
+        HapAggregator aggregator = new HapAggregator(false);
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            // Few distinct values, so there are many duplicates, and long patterns spanning several words
+            int length = random.nextBoolean() ? 1 + random.nextInt(4) : 60 + random.nextInt(10);
+            StringBuilder pattern = new StringBuilder();
+            for (int k = 0; k < length; k++) {
+                pattern.append(random.nextInt(8) == 0 ? '0' : '1');
+            }
+            int start = random.nextInt(20);
+            HapData hapData = hap("chr" + random.nextInt(2), start, start + 10, pattern.toString(),
+                    1 + random.nextInt(5), strands[random.nextInt(3)]);
+            aggregator.add(hapData);
+            builder.add(hapData);
+            expected.merge(key(hapData), hapData.readCount, Integer::sum);
+        }
+
+        assertEquals(expected, counts(aggregator.getResults()));
+
+        // Same result straight from the packed store
+        HapStore store = builder.build();
+        HapAggregator fromStore = new HapAggregator(false);
+        for (int i = 0; i < store.size(); i++) {
+            fromStore.add(store, i);
+        }
+        assertEquals(expected, counts(fromStore.getResults()));
+    }
+
+    private static Map<String, Integer> counts(List<HapData> results) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (HapData hapData : results) {
+            assertNull(counts.put(key(hapData), hapData.readCount));
+        }
+        return counts;
+    }
+
+    private static String key(HapData hapData) {
+        StringBuilder sb = new StringBuilder(hapData.chr + ":" + hapData.start + "-" + hapData.end + ":" + hapData.strand + ":");
+        for (boolean state : hapData.states) {
+            sb.append(state ? '1' : '0');
+        }
+        return sb.toString();
+    }
+
+    private static HapData hap(String chr, int start, int end, String pattern, int count, Strand strand) {
+        boolean[] states = new boolean[pattern.length()];
+        for (int k = 0; k < states.length; k++) {
+            states[k] = pattern.charAt(k) == '1';
+        }
+        return new HapData(chr, start, end, states, count, strand);
+    }
+}
@@ -0,0 +1,88 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.broad.igv.sam.DownsampledInterval;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class HapDownsamplerTest {
+
+    @Test
+    public void testDepthIsBounded() {
+        Random random = new Random(17);
+        List<HapData> records = new ArrayList<>();
+        long totalReads = 0;
+        for (int i = 0; i < 2000; i++) {
+            int start = 1000 + random.nextInt(1000);
+            // An amplicon: few records, very deep
+            int count = 1 + random.nextInt(5000);
+            records.add(new HapData("chr1", start, start + 50, new boolean[]{true, false}, count, Strand.POSITIVE));
+            totalReads += count;
+        }
+
+        HapDownsampler downsampler = new HapDownsampler(50, 100, new Random(1));
+        downsampler.sample(records);
+        List<HapData> reads = downsampler.getReads();
+
+        long removed = 0;
+        for (DownsampledInterval interval : downsampler.getDownsampledIntervals()) {
+            removed += interval.getCount();
+        }
+        assertEquals(totalReads, reads.size() + removed);
+
+        // At most 100 reads starting in each window, windows start at the first record after the previous one
+        TreeMap<Integer, Integer> windows = new TreeMap<>();
+        records.sort(Comparator.comparingInt(h -> h.start));
+        int windowStart = Integer.MIN_VALUE;
+        for (HapData record : records) {
+            if (windowStart == Integer.MIN_VALUE || record.start >= windowStart + 50) {
+                windowStart = record.start;
+                windows.put(windowStart, 0);
+            }
+        }
+        for (HapData read : reads) {
+            assertEquals(1, read.readCount);
+            int window = windows.floorKey(read.start);
+            windows.put(window, windows.get(window) + 1);
+        }
+        for (int kept : windows.values()) {
+            assertEquals(100, kept);
+        }
+        assertTrue(reads.size() <= 100 * (1000 / 50 + 1));
+    }
+
+    @Test
+    public void testShallowRegionsAreKept() {
+        List<HapData> records = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            records.add(new HapData("chr1", 100 + 10 * i, 140 + 10 * i, new boolean[]{true}, 3, Strand.NEGATIVE));
+        }
+
+        HapDownsampler downsampler = new HapDownsampler(50, 100);
+        downsampler.sample(records);
+
+        assertEquals(60, downsampler.getReads().size());
+        assertTrue(downsampler.getDownsampledIntervals().isEmpty());
+    }
+
+    @Test
+    public void testSampleIsUniform() {
+        // Two records of one window, one three times as deep as the other
+        List<HapData> records = Arrays.asList(
+                new HapData("chr1", 100, 150, new boolean[]{true}, 3000, Strand.POSITIVE),
+                new HapData("chr1", 110, 160, new boolean[]{false}, 1000, Strand.POSITIVE));
+
+        HapDownsampler downsampler = new HapDownsampler(50, 400, new Random(5));
+        downsampler.sample(records);
+
+        int first = 0;
+        for (HapData read : downsampler.getReads()) {
+            if (read.start == 100) first++;
+        }
+        assertEquals(400, downsampler.getReads().size());
+        assertEquals(300, first, 30);
+    }
+}
@@ -0,0 +1,115 @@
+package custom.lib;
+
+import htsjdk.tribble.readers.TabixReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class HapIndexBuilderTest {
+
+    @Test
+    public void testFitsInHeap() {
+        long available = 1024L * 1024 * 1024;
+        assertTrue(HapIndexBuilder.fitsInHeap(1000000, available));
+        assertFalse(HapIndexBuilder.fitsInHeap(available / HapIndexBuilder.BYTES_PER_RECORD, available));
+        // Hundreds of millions of records, as in a 20 GB file
+        assertFalse(HapIndexBuilder.fitsInHeap(400000000L, 8 * available));
+    }
+
+    @Test
+    public void testEstimateRecordCount() throws Exception {
+        File dir = Files.createTempDirectory("hap").toFile();
+        File file = new File(dir, "test.hap");
+        try (PrintWriter writer = new PrintWriter(file)) {
+            for (int i = 0; i < 10000; i++) {
+                writer.print("chr1\t" + (1000 + i) + "\t" + (1100 + i) + "\t1010\t1\t+\n");
+            }
+        }
+        long estimate = HapIndexBuilder.estimateRecordCount(file);
+        assertEquals(10000, estimate, 200);
+        file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testBuild() throws Exception {
+        File dir = Files.createTempDirectory("hap").toFile();
+        File fallback = new File(dir, "fallback");
+        File file = new File(dir, "test.hap");
+        writeHap(file);
+        HapIndexBuilder builder = new HapIndexBuilder(fallback);
+        assertNull(builder.findIndexedCopy(file));
+
+        File copy = builder.build(file);
+        assertEquals(new File(dir, "test" + HapIndexBuilder.COPY_SUFFIX), copy);
+        assertEquals(copy, builder.findIndexedCopy(file));
+        // The file, the copy and its index: no partial or spill files are left behind
+        assertEquals(3, dir.list().length);
+
+        TabixReader reader = new TabixReader(copy.getAbsolutePath());
+        assertEquals(2, count(reader.query("chr1", 108, 120)));
+        assertEquals(1, count(reader.query("chr1", 120, 200)));
+        assertEquals(1, count(reader.query("chr2", 0, 100)));
+        reader.close();
+
+        // A copy older than the file is stale
+        copy.setLastModified(file.lastModified() - 10000);
+        assertNull(builder.findIndexedCopy(file));
+        assertEquals(copy, builder.build(file));
+
+        deleteAll(dir);
+    }
+
+    @Test
+    public void testFilesNotWrittenByTheBuilderAreKept() throws Exception {
+        File dir = Files.createTempDirectory("hap").toFile();
+        File fallback = new File(dir, "fallback");
+        File file = new File(dir, "test.hap");
+        writeHap(file);
+        File own = new File(dir, "test" + HapIndexBuilder.COPY_SUFFIX);
+        Files.write(own.toPath(), new byte[]{1, 2, 3});
+        HapIndexBuilder builder = new HapIndexBuilder(fallback);
+        assertNull(builder.findIndexedCopy(file));
+
+        File copy = builder.build(file);
+        assertEquals(fallback, copy.getParentFile());
+        assertEquals(3, own.length());
+        assertEquals(copy, builder.findIndexedCopy(file));
+        assertTrue(HapIndexBuilder.isCopyOf(copy, file));
+        assertFalse(HapIndexBuilder.isCopyOf(copy, new File(dir, "other.hap")));
+
+        deleteAll(dir);
+    }
+
+    private static void writeHap(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file)) {
+            writer.print("chr2\t50\t60\t0\t3\t+\n");
+            writer.print("chr1\t105\t130\t111\t1\t-\n");
+            writer.print("chr1\t100\t110\t10\t2\t+\n");
+        }
+    }
+
+    private static void deleteAll(File dir) {
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory()) {
+                deleteAll(f);
+            } else {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static int count(TabixReader.Iterator it) throws IOException {
+        int n = 0;
+        while (it.next() != null) {
+            n++;
+        }
+        return n;
+    }
+}
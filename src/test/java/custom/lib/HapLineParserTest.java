@@ -0,0 +1,85 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HapLineParserTest {
+
+    private static String generateLines(int n) {
+        Random random = new Random(7);
+        String[] strands = {"+", "-", "*"};
+        StringBuilder buf = new StringBuilder();
+        int start = 10000;
+        for (int i = 0; i < n; i++) {
+            start += random.nextInt(50);
+            int cpgs = 1 + random.nextInt(12);
+            buf.append(i < n / 2 ? "chr1" : "chr2").append('\t')
+                    .append(start).append('\t')
+                    .append(start + 20 * cpgs).append('\t');
+            for (int k = 0; k < cpgs; k++) {
+                buf.append(random.nextBoolean() ? '1' : '0');
+            }
+            buf.append('\t').append(1 + random.nextInt(30))
+                    .append('\t').append(strands[random.nextInt(3)]).append('\n');
+        }
+        return buf.toString();
+    }
+
+    @Test
+    public void testParseMatchesTSVReader() throws Exception {
+        String text = "\n# comment\n" + generateLines(1000) + "chr3 5 9 101 2 +";
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+
+        HapStore.Builder expectedBuilder = new HapStore.Builder();
+        TSVReader reader = new TSVReader(new ByteArrayInputStream(bytes));
+        String[] tokens;
+        while ((tokens = reader.nextTokens()) != null) {
+            if (!tokens[0].startsWith("#")) {
+                expectedBuilder.add(CustomUtility.CreateHapFromString(tokens));
+            }
+        }
+        HapStore expected = expectedBuilder.build();
+
+        // Small buffer to exercise lines spanning buffer refills
+        HapStore.Builder builder = new HapStore.Builder();
+        HapLineParser parser = new HapLineParser(new ByteArrayInputStream(bytes), 16);
+        assertEquals(1001, parser.parseAll(builder));
+        HapStore actual = builder.build();
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            HapData e = expected.get(i);
+            HapData a = actual.get(i);
+            assertEquals(e.chr, a.chr);
+            assertEquals(e.start, a.start);
+            assertEquals(e.end, a.end);
+            assertEquals(e.readCount, a.readCount);
+            assertEquals(e.strand, a.strand);
+            assertArrayEquals(e.states, a.states);
+        }
+    }
+
+    @Test
+    public void testParseStrings() {
+        HapData hapData = HapLineParser.parseHapData("chr1\t1005\t1050\t0110\t12\t-");
+        assertEquals("chr1", hapData.chr);
+        assertEquals(1005, hapData.start);
+        assertEquals(1050, hapData.end);
+        assertArrayEquals(new boolean[]{false, true, true, false}, hapData.states);
+        assertEquals(12, hapData.readCount);
+        assertEquals(Strand.NEGATIVE, hapData.strand);
+
+        CorrelationData cor = HapLineParser.parseCorrelationData("chr2 100  120\t0.875");
+        assertEquals("chr2", cor.chr);
+        assertEquals(100, cor.start);
+        assertEquals(120, cor.end);
+        assertEquals(0.875f, cor.cor, 1.0e-6);
+        assertEquals(-2.5e-3f, HapLineParser.parseCorrelationData("chr2 1 2 -2.5e-3").cor, 1.0e-9);
+    }
+}
@@ -0,0 +1,109 @@
+package custom.lib;
+
+import org.broad.igv.exceptions.ParserException;
+import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.feature.genome.InMemorySequence;
+import org.broad.igv.feature.Strand;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class HapStatsTest {
+
+    private static boolean[] states(String pattern) {
+        boolean[] states = new boolean[pattern.length()];
+        for (int k = 0; k < states.length; k++) {
+            states[k] = pattern.charAt(k) == '1';
+        }
+        return states;
+    }
+
+    @Test
+    public void testWindowMetrics() {
+        HapStats.Window window = new HapStats.Window();
+        window.add(states("1111"), 0, 4, 1, false);
+        window.add(states("0000"), 0, 4, 1, false);
+        window.add(states("1100"), 0, 4, 2, true);
+
+        // MHL: l = 1: 8 of 16, l = 2: 5 of 12, l = 3: 2 of 8, l = 4: 1 of 4
+        double mhl = (1 * 8 / 16.0 + 2 * 5 / 12.0 + 3 * 2 / 8.0 + 4 * 1 / 4.0) / 10;
+        assertEquals(mhl, window.get(HapStats.Metric.MHL), 1e-9);
+
+        assertEquals(0.5, window.get(HapStats.Metric.PDR), 1e-9);
+        assertEquals(0.75, window.get(HapStats.Metric.CHALM), 1e-9);
+        // 4 methylated CpGs of discordant reads among 16 CpGs
+        assertEquals(0.25, window.get(HapStats.Metric.MCR), 1e-9);
+
+        // Patterns 1111, 0000 once, 1100 twice: p = 1/4, 1/4, 1/2
+        assertEquals(1.5 / 4, window.get(HapStats.Metric.ENTROPY), 1e-9);
+    }
+
+    @Test
+    public void testMissingData() {
+        HapStats.Window window = new HapStats.Window();
+        window.add(states("101"), 0, 3, 1, true);
+
+        // Too few CpGs for PDR and entropy
+        assertTrue(Double.isNaN(window.get(HapStats.Metric.PDR)));
+        assertTrue(Double.isNaN(window.get(HapStats.Metric.ENTROPY)));
+        assertEquals(1, window.get(HapStats.Metric.CHALM), 1e-9);
+    }
+
+    @Test
+    public void testReadsSplitAcrossWindows() {
+        // CpGs at 0-based 90, 95, 105, 110, 300
+        byte[] seq = new byte[1000];
+        Arrays.fill(seq, (byte) 'A');
+        for (int p : new int[]{90, 95, 105, 110, 300}) {
+            seq[p] = 'C';
+            seq[p + 1] = 'G';
+        }
+        CpGIndex cpgIndex = new CpGIndex(new Genome("test", "test", new InMemorySequence("chr1", seq), true));
+
+        List<String> windows = new ArrayList<>();
+        HapStats stats = new HapStats("chr1", 100, new HapStats.Metric[]{HapStats.Metric.CHALM}, cpgIndex,
+                (chr, start, end, values) -> windows.add(start + "-" + end + ":" + values[0]));
+        stats.add(new HapData("chr1", 91, 111, states("0011"), 1, Strand.POSITIVE));
+        stats.add(new HapData("chr1", 96, 106, states("10"), 1, Strand.POSITIVE));
+
+        // The first window is complete once a read starts past it
+        stats.add(new HapData("chr1", 301, 302, states("1"), 1, Strand.POSITIVE));
+        assertEquals(Arrays.asList("0-100:0.5", "100-200:0.5"), windows);
+
+        stats.finish();
+        assertEquals("300-400:1.0", windows.get(2));
+    }
+
+    @Test
+    public void testUnsortedFileIsRejected() throws Exception {
+        byte[] seq = new byte[1000];
+        Arrays.fill(seq, (byte) 'A');
+        HapStatsWriter writer = new HapStatsWriter(new Genome("test", "test", new InMemorySequence("chr1", seq), true),
+                100, new HapStats.Metric[]{HapStats.Metric.CHALM});
+        File dir = Files.createTempDirectory("hap").toFile();
+        File hapFile = new File(dir, "test.hap");
+        File output = new File(dir, "test.bedgraph");
+
+        for (String lines : new String[]{
+                "chr1\t100\t110\t1\t1\t+\nchr2\t10\t20\t1\t1\t+\nchr1\t200\t210\t1\t1\t+\n",
+                "chr1\t100\t110\t1\t1\t+\nchr1\t90\t110\t1\t1\t+\n"}) {
+            Files.write(hapFile.toPath(), lines.getBytes(StandardCharsets.US_ASCII));
+            try {
+                writer.write(hapFile.getAbsolutePath(), output, 1, 1);
+                fail("Unsorted file accepted");
+            } catch (ParserException e) {
+                // Expected
+            }
+        }
+
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,68 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class HapStoreTest {
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(42);
+        Strand[] strands = {Strand.NONE, Strand.POSITIVE, Strand.NEGATIVE};
+
+        List<HapData> records = new ArrayList<>();
+        HapStore.Builder builder = new HapStore.Builder();
+        for (int i = 0; i < 3000; i++) {
+            boolean[] states = new boolean[1 + random.nextInt(150)];
+            for (int k = 0; k < states.length; k++) {
+                states[k] = random.nextBoolean();
+            }
+            int start = random.nextInt(1000000);
+            HapData hapData = new HapData("chr" + random.nextInt(3), start, start + random.nextInt(500), states,
+                    1 + random.nextInt(20), strands[random.nextInt(3)]);
+            records.add(hapData);
+            builder.add(hapData);
+        }
+
+        HapStore store = builder.build();
+        assertEquals(records.size(), store.size());
+
+        records.sort(Comparator.comparing((HapData h) -> store.getChromosomeId(h.chr)).thenComparingInt(h -> h.start));
+
+        for (int i = 0; i < records.size(); i++) {
+            HapData expected = records.get(i);
+            HapData actual = store.get(i);
+            assertEquals(expected.chr, actual.chr);
+            assertEquals(expected.start, actual.start);
+            assertEquals(expected.end, actual.end);
+            assertEquals(expected.readCount, actual.readCount);
+            assertEquals(expected.strand, actual.strand);
+            assertArrayEquals(expected.states, actual.states);
+
+            // Packed words agree with the individual states
+            for (int k = 0; k < expected.states.length; k++) {
+                long word = store.getPatternWord(i, k / 64);
+                assertEquals(expected.states[k], (word & (1L << (k % 64))) != 0);
+            }
+        }
+    }
+
+    @Test
+    public void testChromosomeRanges() {
+        HapStore store = new HapStore.Builder()
+                .add("chr2", 500, 600, new boolean[]{true}, 1, Strand.NONE)
+                .add("chr1", 300, 320, new boolean[]{false, true}, 2, Strand.POSITIVE)
+                .add("chr2", 100, 400, new boolean[]{true, true, false}, 3, Strand.NEGATIVE)
+                .build();
+
+        int chr2 = store.getChromosomeId("chr2");
+        assertEquals(2, store.getRecordLimit(chr2) - store.getFirstRecord(chr2));
+        assertEquals(100, store.getStart(store.getFirstRecord(chr2)));
+        assertEquals(300, store.getMaxLength(chr2));
+        assertEquals(-1, store.getChromosomeId("chrX"));
+    }
+}
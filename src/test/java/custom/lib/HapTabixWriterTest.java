@@ -0,0 +1,125 @@
+package custom.lib;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.readers.TabixReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class HapTabixWriterTest {
+
+    @Test
+    public void testIndexBgzippedFile() throws Exception {
+        File file = File.createTempFile("test", ".hap.gz");
+        File index = new File(file.getPath() + ".tbi");
+        file.deleteOnExit();
+        index.deleteOnExit();
+
+        BlockCompressedOutputStream out = new BlockCompressedOutputStream(file);
+        out.write(("chr1\t100\t110\t10\t2\t+\n" +
+                "chr1\t105\t130\t111\t1\t-\n" +
+                "chr2\t50\t60\t0\t3\t+\n").getBytes(StandardCharsets.US_ASCII));
+        out.close();
+
+        HapTabixWriter.index(file);
+        assertTrue(index.exists());
+
+        TabixReader reader = new TabixReader(file.getAbsolutePath());
+        assertEquals(2, count(reader.query("chr1", 108, 120)));
+        assertEquals(1, count(reader.query("chr1", 120, 200)));
+        assertEquals(1, count(reader.query("chr2", 0, 100)));
+        reader.close();
+    }
+
+    @Test
+    public void testUnsortedLinesAreRejected() throws Exception {
+        File file = File.createTempFile("test", ".hap.gz");
+        file.deleteOnExit();
+        new File(file.getPath() + ".tbi").deleteOnExit();
+
+        HapTabixWriter writer = new HapTabixWriter(file);
+        writer.writeLine("chr1\t100\t110\t10\t2\t+");
+        try {
+            writer.writeLine("chr1\t90\t110\t10\t2\t+");
+            fail("Unsorted start accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+        writer.writeLine("chr2\t10\t20\t1\t1\t+");
+        try {
+            writer.writeLine("chr1\t200\t210\t1\t1\t+");
+            fail("Chromosome appearing twice accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testRejectedLineIsNotCarriedOver() throws Exception {
+        File file = File.createTempFile("test", ".hap.gz");
+        File index = new File(file.getPath() + ".tbi");
+        file.deleteOnExit();
+        index.deleteOnExit();
+
+        HapTabixWriter writer = new HapTabixWriter(file);
+        try {
+            writer.write("chr1\t100\t110\t10\t2\t+\nchr1\t105\nchr1\t120\t130\t11\t1\t+\n");
+            fail("Malformed line accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+        writer.write("chr1\t140\t150\t1\t1\t+\n");
+        writer.close();
+        assertTrue(index.exists());
+
+        TabixReader reader = new TabixReader(file.getAbsolutePath());
+        assertEquals(3, count(reader.query("chr1", 0, 200)));
+        reader.close();
+    }
+
+    @Test
+    public void testSpaceSeparatedLines() throws Exception {
+        File file = File.createTempFile("test", ".hap.gz");
+        File index = new File(file.getPath() + ".tbi");
+        file.deleteOnExit();
+        index.deleteOnExit();
+
+        HapTabixWriter writer = new HapTabixWriter(file);
+        writer.write("chr1 100 110 10 2 +\nchr1  105\t130 111 1 -\nchr2 50 60 0 3 +\n");
+        writer.close();
+
+        TabixReader reader = new TabixReader(file.getAbsolutePath());
+        TabixReader.Iterator it = reader.query("chr1", 108, 120);
+        assertEquals("chr1\t100\t110\t10\t2\t+", it.next());
+        assertEquals("chr1\t105\t130\t111\t1\t-", it.next());
+        assertNull(it.next());
+        assertEquals(1, count(reader.query("chr2", 0, 100)));
+        reader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testPlainGzipIsRejected() throws Exception {
+        File file = File.createTempFile("test", ".hap.gz");
+        file.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(new GZIPOutputStream(new FileOutputStream(file)))) {
+            writer.println("chr1\t100\t110\t10\t2\t+");
+        }
+        HapTabixWriter.index(file);
+    }
+
+    private static int count(TabixReader.Iterator it) throws IOException {
+        int n = 0;
+        while (it.next() != null) {
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,58 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.feature.genome.InMemorySequence;
+
+import java.util.Random;
+
+/**
+ * Random genomes and CpG aligned mHap reads shared by the tests of this package.
+ */
+public class HapTestUtils {
+
+    public static final String CHR = "chr1";
+
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+
+    /**
+     * @return a random sequence of upper case bases
+     */
+    public static byte[] randomSequence(Random random, int length) {
+        return randomSequence(random, length, BASES);
+    }
+
+    public static byte[] randomSequence(Random random, int length, byte[] bases) {
+        byte[] seq = new byte[length];
+        for (int i = 0; i < seq.length; i++) {
+            seq[i] = bases[random.nextInt(bases.length)];
+        }
+        return seq;
+    }
+
+    /**
+     * @return a genome of one chromosome, {@link #CHR}, with sequence {@code seq}
+     */
+    public static Genome createGenome(byte[] seq) {
+        return new Genome("test", "test", new InMemorySequence(CHR, seq), true);
+    }
+
+    /**
+     * @return the read of {@link #CHR} covering the CpGs {@code cpgs[o]} to {@code cpgs[o + states.length - 1]}, in
+     * mHap coordinates: 1-based start on the C of the first CpG, end on the G of the last
+     */
+    public static HapData read(int[] cpgs, int o, boolean[] states, int readCount, Strand strand) {
+        return new HapData(CHR, cpgs[o] + 1, cpgs[o + states.length - 1] + 2, states, readCount, strand);
+    }
+
+    /**
+     * @return {@code n} CpG states, each methylated with probability {@code methylated}
+     */
+    public static boolean[] randomStates(Random random, int n, double methylated) {
+        boolean[] states = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            states[k] = random.nextDouble() < methylated;
+        }
+        return states;
+    }
+}
@@ -0,0 +1,142 @@
+package custom.lib;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HapTilesTest {
+
+    @Test
+    public void testTilesAreReused() {
+        BufferedImage screen = new BufferedImage(1000, 50, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = screen.createGraphics();
+        Rectangle rect = new Rectangle(0, 0, 1000, 50);
+        double scale = 0.25;
+
+        List<Double> painted = new ArrayList<>();
+        HapTiles.Painter painter = (tileGraphics, origin, tileRect) -> {
+            painted.add(origin);
+            assertEquals(HapTiles.TILE_WIDTH, tileRect.width);
+            assertEquals(50, tileRect.height);
+            // A mark at base 1000
+            tileGraphics.setColor(Color.RED);
+            tileGraphics.fillRect((int) ((1000 - origin) / scale), 0, 1, 50);
+        };
+
+        Object data = new Object();
+        HapTiles tiles = new HapTiles(data, scale, 50, 1);
+
+        // View from base 900: pixels 3600 to 4599, tiles 7 to 8
+        tiles.draw(g, 900, rect, null, painter);
+        assertEquals(2, painted.size());
+        assertEquals(7 * HapTiles.TILE_WIDTH * scale, painted.get(0), 0);
+        assertEquals(0xFFFF0000, screen.getRGB(400, 10));
+
+        // Repaints draw the same tiles
+        tiles.draw(g, 900, rect, null, painter);
+        assertEquals(2, painted.size());
+
+        // A pan only renders the tiles it uncovers, the mark moves with the view
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, 1000, 50);
+        g.setComposite(AlphaComposite.SrcOver);
+        tiles.draw(g, 950, rect, null, painter);
+        assertEquals(3, painted.size());
+        assertEquals(9 * HapTiles.TILE_WIDTH * scale, painted.get(2), 0);
+        assertEquals(0xFFFF0000, screen.getRGB(200, 10));
+        assertEquals(0, screen.getRGB(400, 10));
+        assertEquals(3, tiles.getTileCount());
+
+        tiles.dispose();
+        assertEquals(0, tiles.getTileCount());
+        g.dispose();
+    }
+
+    @Test
+    public void testOnlyVisibleRowsAreRendered() {
+        int height = 3 * HapTiles.TILE_HEIGHT;
+        BufferedImage screen = new BufferedImage(500, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = screen.createGraphics();
+        Rectangle rect = new Rectangle(0, 0, 500, height);
+
+        List<Integer> translations = new ArrayList<>();
+        HapTiles.Painter painter = (tileGraphics, origin, tileRect) -> {
+            translations.add((int) tileGraphics.getTransform().getTranslateY());
+            assertEquals(height, tileRect.height);
+            // A mark on the panel's last row
+            tileGraphics.setColor(Color.RED);
+            tileGraphics.fillRect(0, height - 1, HapTiles.TILE_WIDTH, 1);
+        };
+
+        HapTiles tiles = new HapTiles(new Object(), 1, height, 1);
+        // Scrolled to the bottom row of tiles
+        tiles.draw(g, 0, rect, new Rectangle(0, height - 100, 500, 100), painter);
+        assertEquals(1, translations.size());
+        assertEquals(-2 * HapTiles.TILE_HEIGHT, (int) translations.get(0));
+        assertEquals(0xFFFF0000, screen.getRGB(10, height - 1));
+        assertEquals(1, tiles.getTileCount());
+
+        tiles.dispose();
+        g.dispose();
+    }
+
+    @Test
+    public void testBudgetIsSharedByAllPanels() {
+        BufferedImage screen = new BufferedImage(HapTiles.TILE_WIDTH, HapTiles.TILE_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = screen.createGraphics();
+        Rectangle rect = new Rectangle(0, 0, HapTiles.TILE_WIDTH, HapTiles.TILE_HEIGHT);
+        HapTiles.Painter painter = (tileGraphics, origin, tileRect) -> {
+        };
+
+        int tilesInBudget = HapTiles.MAX_PIXELS / (HapTiles.TILE_WIDTH * HapTiles.TILE_HEIGHT);
+        List<HapTiles> panels = new ArrayList<>();
+        for (int i = 0; i < tilesInBudget + 5; i++) {
+            HapTiles tiles = new HapTiles(new Object(), 1, HapTiles.TILE_HEIGHT, 1);
+            tiles.draw(g, 0, rect, null, painter);
+            panels.add(tiles);
+        }
+        assertTrue(HapTiles.getPixelCount() <= HapTiles.MAX_PIXELS);
+        // The least recently drawn panels lost their tiles
+        assertEquals(0, panels.get(0).getTileCount());
+        assertEquals(1, panels.get(panels.size() - 1).getTileCount());
+
+        panels.forEach(HapTiles::dispose);
+        assertEquals(0, HapTiles.getPixelCount());
+        g.dispose();
+    }
+
+    @Test
+    public void testViewLargerThanTheBudgetIsPaintedDirectly() {
+        int width = 8 * HapTiles.TILE_WIDTH;
+        int height = HapTiles.MAX_PIXELS / width + HapTiles.TILE_HEIGHT;
+        BufferedImage screen = new BufferedImage(width, 10, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = screen.createGraphics();
+
+        List<Rectangle> painted = new ArrayList<>();
+        HapTiles tiles = new HapTiles(new Object(), 1, height, 1);
+        tiles.draw(g, 0, new Rectangle(0, 0, width, height), null, (tileGraphics, origin, rect) -> {
+            painted.add(rect);
+            assertTrue(tileGraphics.getTransform().isIdentity());
+        });
+        assertEquals(1, painted.size());
+        assertEquals(width, painted.get(0).width);
+        assertEquals(0, tiles.getTileCount());
+        g.dispose();
+    }
+
+    @Test
+    public void testValidity() {
+        Object data = new Object();
+        HapTiles tiles = new HapTiles(data, 0.5, 100, 3);
+        assertTrue(tiles.isValid(data, 0.5, 100, 3));
+        assertFalse(tiles.isValid(new Object(), 0.5, 100, 3));
+        assertFalse(tiles.isValid(data, 0.25, 100, 3));
+        assertFalse(tiles.isValid(data, 0.5, 120, 3));
+        assertFalse(tiles.isValid(data, 0.5, 100, 4));
+    }
+}
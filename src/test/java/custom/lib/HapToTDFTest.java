@@ -0,0 +1,70 @@
+package custom.lib;
+
+import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.feature.genome.InMemorySequence;
+import org.broad.igv.tdf.TDFDataset;
+import org.broad.igv.tdf.TDFReader;
+import org.broad.igv.tdf.TDFTile;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class HapToTDFTest {
+
+    @Test
+    public void testConvert() throws Exception {
+        // CpGs at 0-based 10, 20, 30, 40, 50
+        byte[] seq = new byte[10000];
+        Arrays.fill(seq, (byte) 'A');
+        for (int p = 10; p <= 50; p += 10) {
+            seq[p] = 'C';
+            seq[p + 1] = 'G';
+        }
+        Genome genome = new Genome("test", "test", new InMemorySequence("chr1", seq), true);
+
+        File hapFile = File.createTempFile("summary", ".hap");
+        hapFile.deleteOnExit();
+        try (PrintWriter pw = new PrintWriter(new FileWriter(hapFile))) {
+            // 1-based start of the first CpG
+            pw.println("chr1\t11\t31\t111\t2\t+");
+            pw.println("chr1\t21\t51\t0101\t1\t+");
+            pw.println("chr1\t31\t41\t00\t3\t-");
+        }
+
+        File tdfFile = new File(HapToTDF.getSummaryPath(hapFile.getAbsolutePath()));
+        tdfFile.deleteOnExit();
+        HapToTDF.convert(hapFile.getAbsolutePath(), tdfFile, genome, 2);
+
+        TDFReader reader = TDFReader.getReader(tdfFile.getAbsolutePath());
+        assertArrayEquals(HapToTDF.TRACK_NAMES, reader.getTrackNames());
+
+        TDFDataset dataset = reader.getDataset("/chr1/raw");
+        Map<Integer, float[]> values = new HashMap<>();
+        for (TDFTile tile : dataset.getTiles(0, seq.length)) {
+            for (int i = 0; i < tile.getSize(); i++) {
+                float[] v = new float[3];
+                for (int t = 0; t < 3; t++) {
+                    v[t] = tile.getValue(t, i);
+                }
+                values.put(tile.getStartPosition(i), v);
+            }
+        }
+
+        assertEquals(5, values.size());
+        // Site 20: 2 reads "1", 1 read "0" (second CpG of 0101), methylation 2/3
+        assertEquals(2f / 3, values.get(20)[HapToTDF.METHYLATION], 1e-6);
+        assertEquals(3, values.get(20)[HapToTDF.COVERAGE], 1e-6);
+        // Only the 0101 read has 4 CpGs, and it is discordant
+        assertEquals(1, values.get(20)[HapToTDF.DISCORDANCE], 1e-6);
+        assertTrue(Float.isNaN(values.get(10)[HapToTDF.DISCORDANCE]));
+        // Site 30: 2 + 1 + 0 methylated of 2 + 1 + 3 reads
+        assertEquals(3f / 6, values.get(30)[HapToTDF.METHYLATION], 1e-6);
+        assertEquals(6, values.get(30)[HapToTDF.COVERAGE], 1e-6);
+        assertEquals(1, values.get(50)[HapToTDF.METHYLATION], 1e-6);
+    }
+}
@@ -0,0 +1,78 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexedHapSourceTest {
+
+    @Test
+    public void testQueryMatchesScan() {
+        Random random = new Random(1234);
+        List<HapData> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String chr = random.nextBoolean() ? "chr1" : "chr2";
+            int start = random.nextInt(100000);
+            int end = start + random.nextInt(400);
+            records.add(new HapData(chr, start, end, new boolean[]{true}, 1, Strand.NONE));
+        }
+
+        IndexedHapSource source = new IndexedHapSource(records);
+
+        for (int q = 0; q < 100; q++) {
+            int start = random.nextInt(100000);
+            int end = start + random.nextInt(3000);
+
+            List<String> expected = new ArrayList<>();
+            for (HapData h : records) {
+                if (h.chr.equals("chr1") && h.end >= start && h.start <= end) {
+                    expected.add(h.start + "-" + h.end);
+                }
+            }
+
+            List<String> actual = new ArrayList<>();
+            source.query("chr1", start, end).forEachRemaining(h -> actual.add(h.start + "-" + h.end));
+
+            Collections.sort(expected);
+            Collections.sort(actual);
+
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testQueryRecordsMatchesQuery() {
+        Random random = new Random(99);
+        List<HapData> records = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            int start = random.nextInt(50000);
+            records.add(new HapData("chr1", start, start + random.nextInt(300), new boolean[]{random.nextBoolean()}, 1, Strand.NONE));
+        }
+        IndexedHapSource source = new IndexedHapSource(records);
+        HapStore store = source.getStore();
+
+        for (int q = 0; q < 50; q++) {
+            int start = random.nextInt(50000);
+            int end = start + random.nextInt(2000);
+
+            List<String> expected = new ArrayList<>();
+            source.query("chr1", start, end).forEachRemaining(h -> expected.add(h.start + "-" + h.end));
+
+            List<String> actual = new ArrayList<>();
+            source.queryRecords("chr1", start, end).forEachRemaining((int r) ->
+                    actual.add(store.getStart(r) + "-" + store.getEnd(r)));
+            assertEquals(expected, actual);
+        }
+        assertEquals(false, source.queryRecords("chrX", 0, 1000).hasNext());
+    }
+
+    @Test
+    public void testUnknownChromosome() {
+        IndexedHapSource source = new IndexedHapSource(Collections.singletonList(
+                new HapData("chr1", 100, 200, new boolean[]{true}, 1, Strand.NONE)));
+        assertEquals(false, source.query("chrX", 0, 1000).hasNext());
+    }
+}
@@ -0,0 +1,63 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.broad.igv.feature.genome.Genome;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class LinkageCorrelationSourceTest {
+
+    @Test
+    public void testSlidingMatchesFreshQuery() throws Exception {
+        Random random = new Random(11);
+        byte[] seq = HapTestUtils.randomSequence(random, 10000);
+        Genome genome = HapTestUtils.createGenome(seq);
+        CpGIndex cpgIndex = new CpGIndex(genome);
+        int[] all = cpgIndex.getCpGs("chr1", 0, seq.length);
+
+        // Long reads, spanning the seams between the queried windows
+        List<HapData> haps = new ArrayList<>();
+        for (int r = 0; r < 3000; r++) {
+            int n = 2 + random.nextInt(30);
+            int o = random.nextInt(all.length - n);
+            boolean[] states = new boolean[n];
+            boolean methylated = random.nextBoolean();
+            for (int k = 0; k < n; k++) {
+                states[k] = random.nextInt(5) == 0 ? !methylated : methylated;
+            }
+            haps.add(HapTestUtils.read(all, o, states, 1 + random.nextInt(3), Strand.NONE));
+        }
+        IndexedHapSource hapSource = new IndexedHapSource(haps);
+
+        LinkageCorrelationSource sliding = new LinkageCorrelationSource(hapSource, cpgIndex);
+        sliding.query("chr1", 3000, 4000);
+        sliding.query("chr1", 3990, 5000);
+        sliding.query("chr1", 2000, 3010);
+
+        for (int[] range : new int[][]{{3500, 4500}, {2500, 3500}, {2000, 5000}}) {
+            List<CorrelationData> expected = new LinkageCorrelationSource(hapSource, cpgIndex).query("chr1", range[0], range[1]);
+            List<CorrelationData> actual = sliding.query("chr1", range[0], range[1]);
+            assertFalse(expected.isEmpty());
+            assertEquals(toString(expected), toString(actual));
+        }
+    }
+
+    @Test
+    public void testWideRangeIsNotComputed() throws Exception {
+        LinkageCorrelationSource source = new LinkageCorrelationSource(new IndexedHapSource(Collections.singletonList(
+                new HapData("chr1", 100, 200, new boolean[]{true}, 1, Strand.NONE))),
+                new CpGIndex(HapTestUtils.createGenome("ACGT".getBytes())));
+        assertTrue(source.query("chr1", 0, LinkageCorrelationSource.MAX_QUERY_RANGE + 1).isEmpty());
+    }
+
+    private static List<String> toString(List<CorrelationData> pairs) {
+        List<String> result = new ArrayList<>();
+        for (CorrelationData pair : pairs) {
+            result.add(pair.start + "-" + pair.end + ":" + pair.cor);
+        }
+        return result;
+    }
+}
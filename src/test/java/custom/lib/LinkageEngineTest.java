@@ -0,0 +1,102 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class LinkageEngineTest {
+
+    @Test
+    public void testPerfectLinkage() {
+        int[] cpgs = {9, 19, 29};
+        List<HapData> reads = new ArrayList<>();
+        reads.add(read(cpgs, 0, "110", 3));
+        reads.add(read(cpgs, 0, "001", 2));
+
+        LinkageEngine engine = new LinkageEngine(cpgs, reads);
+        assertEquals(1.0, engine.get(0, 1, LinkageEngine.Measure.R2, 1), 1e-9);
+        assertEquals(1.0, engine.get(0, 2, LinkageEngine.Measure.D_PRIME, 1), 1e-9);
+        assertEquals(1.0, engine.get(0, 2, LinkageEngine.Measure.R2, 1), 1e-9);
+
+        // 5 reads cover the pair
+        assertTrue(Double.isNaN(engine.get(0, 1, LinkageEngine.Measure.R2, 6)));
+    }
+
+    @Test
+    public void testMatchesNaiveCounts() {
+        Random random = new Random(5);
+        int[] cpgs = new int[60];
+        for (int i = 0; i < cpgs.length; i++) {
+            cpgs[i] = 100 + 7 * i + random.nextInt(3);
+        }
+
+        // More than 64 reads, with counts of several bit planes
+        List<HapData> reads = new ArrayList<>();
+        for (int r = 0; r < 500; r++) {
+            int first = random.nextInt(cpgs.length - 1);
+            int length = 1 + random.nextInt(Math.min(10, cpgs.length - first));
+            StringBuilder pattern = new StringBuilder();
+            for (int k = 0; k < length; k++) {
+                pattern.append(random.nextInt(3) == 0 ? '0' : '1');
+            }
+            reads.add(read(cpgs, first, pattern.toString(), 1 + random.nextInt(12)));
+        }
+        reads.sort(Comparator.comparingInt(read -> read.start));
+
+        LinkageEngine engine = new LinkageEngine(cpgs, reads);
+        for (int i = 0; i < cpgs.length; i++) {
+            for (int j = i + 1; j < cpgs.length; j++) {
+                for (LinkageEngine.Measure measure : LinkageEngine.Measure.values()) {
+                    double expected = naive(cpgs, reads, i, j, measure, 3);
+                    double actual = engine.get(i, j, measure, 3);
+                    if (Double.isNaN(expected)) {
+                        assertTrue(Double.isNaN(actual));
+                    } else {
+                        assertEquals(expected, actual, 1e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    private static double naive(int[] cpgs, List<HapData> reads, int i, int j, LinkageEngine.Measure measure, int minReads) {
+        double n = 0, ni = 0, nj = 0, nij = 0;
+        for (HapData read : reads) {
+            int first = Arrays.binarySearch(cpgs, read.start - 1);
+            int ki = i - first;
+            int kj = j - first;
+            if (ki < 0 || kj >= read.states.length) {
+                continue;
+            }
+            n += read.readCount;
+            if (read.states[ki]) ni += read.readCount;
+            if (read.states[kj]) nj += read.readCount;
+            if (read.states[ki] && read.states[kj]) nij += read.readCount;
+        }
+        if (n < minReads) {
+            return Double.NaN;
+        }
+        double pI = ni / n, pJ = nj / n;
+        double d = nij / n - pI * pJ;
+        if (measure == LinkageEngine.Measure.R2) {
+            double denominator = pI * (1 - pI) * pJ * (1 - pJ);
+            return denominator > 0 ? d * d / denominator : Double.NaN;
+        }
+        double dMax = d < 0 ? Math.min(pI * pJ, (1 - pI) * (1 - pJ)) : Math.min(pI * (1 - pJ), (1 - pI) * pJ);
+        return dMax > 0 ? Math.abs(d) / dMax : Double.NaN;
+    }
+
+    /**
+     * A read whose pattern starts at CpG {@code first}.
+     */
+    private static HapData read(int[] cpgs, int first, String pattern, int count) {
+        boolean[] states = new boolean[pattern.length()];
+        for (int k = 0; k < states.length; k++) {
+            states[k] = pattern.charAt(k) == '1';
+        }
+        return HapTestUtils.read(cpgs, first, states, count, Strand.NONE);
+    }
+}
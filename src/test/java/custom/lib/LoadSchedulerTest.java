@@ -0,0 +1,93 @@
+package custom.lib;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LoadSchedulerTest {
+
+    @Test
+    public void testRangeFollowsPan() {
+        LoadScheduler scheduler = new LoadScheduler(new LoadTracker());
+
+        // No direction yet: half a view on each side
+        assertArrayEquals(new int[]{500, 2500}, scheduler.getLoadRange("f", "chr1", 1000, 2000));
+
+        // Panning right: further ahead
+        assertArrayEquals(new int[]{700, 3702}, scheduler.getLoadRange("f", "chr1", 1200, 2201));
+        assertEquals(1, scheduler.getDirection("f"));
+
+        // Panning left
+        assertArrayEquals(new int[]{-500, 2500}, scheduler.getLoadRange("f", "chr1", 1000, 2000));
+        assertEquals(-1, scheduler.getDirection("f"));
+
+        // A zoom or another chromosome forgets the direction
+        assertArrayEquals(new int[]{750, 1750}, scheduler.getLoadRange("f", "chr1", 1000, 1500));
+        assertEquals(0, scheduler.getDirection("f"));
+        scheduler.getLoadRange("f", "chr1", 1100, 1600);
+        scheduler.getLoadRange("f", "chr2", 1200, 1700);
+        assertEquals(0, scheduler.getDirection("f"));
+
+        // Frames are independent
+        assertEquals(0, scheduler.getDirection("g"));
+    }
+
+    @Test
+    public void testRapidLoadsAreCoalesced() throws Exception {
+        LoadTracker tracker = new LoadTracker();
+        LoadScheduler scheduler = new LoadScheduler(tracker);
+
+        // A first load doesn't wait
+        long first = tracker.begin("f", "chr1", 1000, 2000);
+        scheduler.getLoadRange("f", "chr1", 1000, 2000);
+        long t0 = System.currentTimeMillis();
+        assertTrue(scheduler.awaitSettled("f", first));
+        assertTrue(System.currentTimeMillis() - t0 < LoadScheduler.DEBOUNCE_MILLIS);
+        tracker.finish("f", first);
+
+        // The next one, right after, waits and is superseded meanwhile by a third
+        long second = tracker.begin("f", "chr1", 3000, 4000);
+        scheduler.getLoadRange("f", "chr1", 3000, 4000);
+        Thread superseding = new Thread(() -> {
+            tracker.begin("f", "chr1", 6000, 7000);
+            scheduler.getLoadRange("f", "chr1", 6000, 7000);
+        });
+        superseding.start();
+        superseding.join();
+        assertFalse(scheduler.awaitSettled("f", second));
+    }
+
+    @Test
+    public void testPrefetchAhead() throws Exception {
+        LoadScheduler scheduler = new LoadScheduler(new LoadTracker());
+
+        // Not panning, nothing to prefetch
+        scheduler.getLoadRange("f", "chr1", 1000, 2000);
+        scheduler.prefetch("f", "chr1", 500, 2500, 100000, (chr, start, end) -> fail());
+
+        scheduler.getLoadRange("f", "chr1", 1500, 2500);
+        CountDownLatch done = new CountDownLatch(1);
+        int[] fetched = new int[2];
+        scheduler.prefetch("f", "chr1", 1000, 4000, 100000, (chr, start, end) -> {
+            fetched[0] = start;
+            fetched[1] = end;
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new int[]{4000, 7000}, fetched);
+
+        // Panning left, clamped at the chromosome start
+        scheduler.getLoadRange("f", "chr1", 1000, 2000);
+        CountDownLatch leftDone = new CountDownLatch(1);
+        scheduler.prefetch("f", "chr1", 1000, 4000, 100000, (chr, start, end) -> {
+            fetched[0] = start;
+            fetched[1] = end;
+            leftDone.countDown();
+        });
+        assertTrue(leftDone.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new int[]{0, 1000}, fetched);
+    }
+}
@@ -0,0 +1,74 @@
+package custom.lib;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LoadTrackerTest {
+
+    @Test
+    public void testCoveredLoadWaitsForTheLoadInFlight() throws Exception {
+        LoadTracker tracker = new LoadTracker();
+        long ticket = tracker.begin("f", "chr1", 1000, 2000);
+        tracker.setRange("f", ticket, "chr1", 500, 2500);
+        assertEquals(-1, tracker.begin("f", "chr1", 1100, 2100));
+
+        CountDownLatch waited = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            tracker.awaitInFlight("f");
+            waited.countDown();
+        });
+        waiter.start();
+        assertFalse(waited.await(100, TimeUnit.MILLISECONDS));
+
+        tracker.finish("f", ticket);
+        assertTrue(waited.await(1, TimeUnit.SECONDS));
+
+        // Nothing in flight, nothing to wait for
+        tracker.awaitInFlight("f");
+    }
+
+    @Test
+    public void testRangeOfSupersededLoadIsIgnored() {
+        LoadTracker tracker = new LoadTracker();
+        long first = tracker.begin("f", "chr1", 1000, 2000);
+        long second = tracker.begin("f", "chr1", 6000, 7000);
+        tracker.setRange("f", first, "chr1", 0, 10000);
+        assertTrue(tracker.begin("f", "chr1", 1000, 2000) > second);
+    }
+
+    @Test
+    public void testSupersededOrCancelledLoadReleasesWaiters() throws Exception {
+        LoadTracker tracker = new LoadTracker();
+        tracker.begin("f", "chr1", 1000, 2000);
+
+        CountDownLatch waited = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            tracker.awaitInFlight("f");
+            waited.countDown();
+        });
+        waiter.start();
+        awaitBlocked(waiter);
+        tracker.begin("f", "chr1", 6000, 7000);
+        assertTrue(waited.await(1, TimeUnit.SECONDS));
+
+        CountDownLatch cancelled = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            tracker.awaitInFlight("f");
+            cancelled.countDown();
+        });
+        other.start();
+        awaitBlocked(other);
+        tracker.cancelAll();
+        assertTrue(cancelled.await(1, TimeUnit.SECONDS));
+    }
+
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.broad.igv.feature.genome.Genome;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MultiHapProfileTest {
+
+    @Test
+    public void testProfilesAndDeltas() {
+        Random random = new Random(13);
+        byte[] seq = HapTestUtils.randomSequence(random, 10000);
+        Genome genome = HapTestUtils.createGenome(seq);
+        CpGIndex cpgIndex = new CpGIndex(genome);
+        int[] cpgs = cpgIndex.getCpGs("chr1", 0, seq.length);
+
+        // Three samples of reads within [1000, 9000), sample 0 mostly unmethylated
+        int start = 1000, end = 9000;
+        int first = CpGIndex.lowerBound(cpgs, start);
+        int last = CpGIndex.lowerBound(cpgs, end) - 1;
+        List<List<HapData>> samples = new ArrayList<>();
+        for (int s = 0; s < 3; s++) {
+            List<HapData> reads = new ArrayList<>();
+            for (int r = 0; r < 400; r++) {
+                int o = first + random.nextInt(last - first - 10);
+                boolean[] states = HapTestUtils.randomStates(random, 1 + random.nextInt(8), s == 0 ? 0.2 : 0.7);
+                reads.add(HapTestUtils.read(cpgs, o, states, 1 + random.nextInt(3), Strand.POSITIVE));
+            }
+            // Queries aren't necessarily sorted
+            Collections.shuffle(reads, random);
+            samples.add(reads);
+        }
+
+        int[] regionCpGs = cpgIndex.getCpGs("chr1", start, end);
+        MultiHapProfile profile = new MultiHapProfile("chr1", start, end, regionCpGs, new boolean[]{true, false, false}, 500);
+
+        // Added one at a time, the deltas only cover the samples loaded so far
+        profile.addSample(2, samples.get(2), cpgIndex);
+        assertFalse(profile.isLoaded(0));
+        for (int i = 0; i < regionCpGs.length; i++) {
+            assertTrue(Float.isNaN(profile.getLevelDelta(i)));
+        }
+        profile.addSample(0, samples.get(0), cpgIndex);
+        for (int i = 0; i < regionCpGs.length; i++) {
+            float l0 = profile.getLevel(0, i), l2 = profile.getLevel(2, i);
+            if (!Float.isNaN(l0) && !Float.isNaN(l2)) {
+                assertEquals(l2 - l0, profile.getLevelDelta(i), 1e-5);
+            }
+        }
+        profile.addSample(1, samples.get(1), cpgIndex);
+
+        // Levels, weighted by read count
+        for (int s = 0; s < 3; s++) {
+            double[] methylated = new double[regionCpGs.length];
+            double[] total = new double[regionCpGs.length];
+            for (HapData hapData : samples.get(s)) {
+                int o = Arrays.binarySearch(regionCpGs, hapData.start - 1);
+                for (int k = 0; k < hapData.states.length; k++) {
+                    total[o + k] += hapData.readCount;
+                    methylated[o + k] += hapData.states[k] ? hapData.readCount : 0;
+                }
+            }
+            for (int i = 0; i < regionCpGs.length; i++) {
+                if (total[i] == 0) {
+                    assertTrue(Float.isNaN(profile.getLevel(s, i)));
+                } else {
+                    assertEquals(methylated[i] / total[i], profile.getLevel(s, i), 1e-6);
+                }
+            }
+        }
+
+        // MHL, the windows of HapStats over the sorted reads
+        float[][] mhl = new float[3][profile.getWindowCount()];
+        for (int s = 0; s < 3; s++) {
+            final float[] sampleMHL = mhl[s];
+            Arrays.fill(sampleMHL, Float.NaN);
+            HapStats stats = new HapStats("chr1", 500, new HapStats.Metric[]{HapStats.Metric.MHL}, cpgIndex,
+                    (chr, windowStart, windowEnd, values) -> sampleMHL[windowStart / 500 - start / 500] = values[0]);
+            List<HapData> sorted = new ArrayList<>(samples.get(s));
+            sorted.sort(Comparator.comparingInt(h -> h.start));
+            sorted.forEach(stats::add);
+            stats.finish();
+            for (int w = 0; w < profile.getWindowCount(); w++) {
+                assertEquals(sampleMHL[w], profile.getMHL(s, w), 1e-6);
+            }
+        }
+
+        // Deltas: mean of samples 1 and 2 minus sample 0
+        for (int i = 0; i < regionCpGs.length; i++) {
+            float l0 = profile.getLevel(0, i), l1 = profile.getLevel(1, i), l2 = profile.getLevel(2, i);
+            if (Float.isNaN(l0) || (Float.isNaN(l1) && Float.isNaN(l2))) {
+                assertTrue(Float.isNaN(profile.getLevelDelta(i)));
+            } else {
+                double others = Float.isNaN(l1) ? l2 : Float.isNaN(l2) ? l1 : (l1 + l2) / 2.0;
+                assertEquals(others - l0, profile.getLevelDelta(i), 1e-5);
+            }
+        }
+        for (int w = 0; w < profile.getWindowCount(); w++) {
+            if (!Float.isNaN(mhl[0][w]) && !Float.isNaN(mhl[1][w]) && !Float.isNaN(mhl[2][w])) {
+                assertEquals((mhl[1][w] + mhl[2][w]) / 2.0 - mhl[0][w], profile.getMHLDelta(w), 1e-5);
+            }
+        }
+
+        // Regrouping: sample 1 against sample 0 and 2
+        profile.setReference(new boolean[]{true, false, true});
+        for (int i = 0; i < regionCpGs.length; i++) {
+            float l0 = profile.getLevel(0, i), l1 = profile.getLevel(1, i), l2 = profile.getLevel(2, i);
+            if (!Float.isNaN(l0) && !Float.isNaN(l1) && !Float.isNaN(l2)) {
+                assertEquals(l1 - (l0 + l2) / 2.0, profile.getLevelDelta(i), 1e-5);
+            }
+        }
+    }
+}
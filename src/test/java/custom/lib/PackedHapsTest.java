@@ -0,0 +1,47 @@
+package custom.lib;
+
+import org.broad.igv.feature.Strand;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PackedHapsTest {
+
+    @Test
+    public void testRowsDontOverlap() {
+        Random random = new Random(11);
+        List<HapData> haps = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            int start = random.nextInt(5000);
+            haps.add(new HapData("chr1", start, start + random.nextInt(200), new boolean[]{true}, 1, Strand.POSITIVE));
+        }
+
+        int spacing = 4;
+        PackedHaps packed = PackedHaps.pack(haps, spacing);
+        assertEquals(haps.size(), packed.size());
+
+        Map<Integer, List<HapData>> rows = new HashMap<>();
+        for (int i = 0; i < packed.size(); i++) {
+            rows.computeIfAbsent(packed.getRow(i), k -> new ArrayList<>()).add(packed.get(i));
+        }
+        assertEquals(packed.getRowCount(), rows.size());
+        for (List<HapData> row : rows.values()) {
+            for (int i = 1; i < row.size(); i++) {
+                assertTrue(row.get(i - 1).end + spacing < row.get(i).start);
+            }
+        }
+
+        // Greedy packing by start is optimal, the row count is the maximum depth of the padded reads
+        int depth = 0;
+        for (int pos = 0; pos < 5300; pos++) {
+            int d = 0;
+            for (HapData hapData : haps) {
+                if (hapData.start <= pos && hapData.end + spacing >= pos) d++;
+            }
+            depth = Math.max(depth, d);
+        }
+        assertEquals(depth, packed.getRowCount());
+    }
+}
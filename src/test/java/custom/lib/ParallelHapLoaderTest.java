@@ -0,0 +1,71 @@
+package custom.lib;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ParallelHapLoaderTest {
+
+    @Test
+    public void testLoadMatchesSequentialParse() throws Exception {
+        Random random = new Random(7);
+        File file = File.createTempFile("parallel", ".hap");
+        file.deleteOnExit();
+
+        try (PrintWriter pw = new PrintWriter(new FileWriter(file))) {
+            pw.println("# comment");
+            for (String chr : new String[]{"chr1", "chr2", "chrX"}) {
+                int start = 1;
+                for (int i = 0; i < 5000; i++) {
+                    start += random.nextInt(50);
+                    StringBuilder pattern = new StringBuilder();
+                    int n = 1 + random.nextInt(80);
+                    for (int k = 0; k < n; k++) {
+                        pattern.append(random.nextBoolean() ? '1' : '0');
+                    }
+                    pw.println(chr + "\t" + start + "\t" + (start + random.nextInt(300)) + "\t" + pattern + "\t" +
+                            (1 + random.nextInt(9)) + "\t" + (random.nextBoolean() ? "+" : "-"));
+                }
+            }
+        }
+
+        HapStore.Builder builder = new HapStore.Builder();
+        try (HapLineParser parser = new HapLineParser(new FileInputStream(file))) {
+            parser.parseAll(builder);
+        }
+        HapStore expected = builder.build();
+
+        // Small chunks so the file is split many times, including mid chromosome
+        HapStore actual = new ParallelHapLoader(new ForkJoinPool(4), 16 * 1024).load(file);
+
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new HashSet<>(expected.getChromosomeNames()), new HashSet<>(actual.getChromosomeNames()));
+        assertEquals(records(expected), records(actual));
+
+        // Records of each chromosome are contiguous and sorted by start
+        for (String chr : actual.getChromosomeNames()) {
+            int chrId = actual.getChromosomeId(chr);
+            for (int i = actual.getFirstRecord(chrId) + 1; i < actual.getRecordLimit(chrId); i++) {
+                assertTrue(actual.getStart(i - 1) <= actual.getStart(i));
+            }
+        }
+    }
+
+    private static List<String> records(HapStore store) {
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            HapData h = store.get(i);
+            StringBuilder sb = new StringBuilder(h.chr + ":" + h.start + "-" + h.end + ":" + h.readCount + ":" + h.strand + ":");
+            for (boolean state : h.states) {
+                sb.append(state ? '1' : '0');
+            }
+            records.add(sb.toString());
+        }
+        Collections.sort(records);
+        return records;
+    }
+}
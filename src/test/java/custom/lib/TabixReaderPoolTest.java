@@ -0,0 +1,128 @@
+package custom.lib;
+
+import htsjdk.samtools.seekablestream.ByteArraySeekableStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.tribble.readers.TabixReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class TabixReaderPoolTest {
+
+    /**
+     * Write sorted mHap records to a bgzipped, tabix indexed file.
+     */
+    static File writeIndexedHap(int nRecords, Random random) throws IOException {
+        File file = File.createTempFile("pool", ".hap.gz");
+        file.deleteOnExit();
+        new File(file.getPath() + ".tbi").deleteOnExit();
+
+        TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.BED);
+        BlockCompressedOutputStream out = new BlockCompressedOutputStream(file);
+        for (String chr : new String[]{"chr1", "chr2"}) {
+            int start = 1000;
+            for (int i = 0; i < nRecords; i++) {
+                start += random.nextInt(40);
+                int end = start + 20 + random.nextInt(100);
+                String line = chr + "\t" + start + "\t" + end + "\t" + (random.nextBoolean() ? "1101" : "0001") +
+                        "\t" + (1 + random.nextInt(5)) + "\t+\n";
+                indexCreator.addFeature(new SimpleFeature(chr, start + 1, end), out.getFilePointer());
+                out.write(line.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        out.flush();
+        Index index = indexCreator.finalizeIndex(out.getFilePointer());
+        out.close();
+        index.writeBasedOnFeatureFile(file);
+        return file;
+    }
+
+    @Test
+    public void testConcurrentQueriesMatchSingleReader() throws Exception {
+        Random random = new Random(11);
+        File file = writeIndexedHap(20000, random);
+
+        // A small block cache, so blocks are evicted and read again
+        TabixReaderPool pool = new TabixReaderPool(file.getPath(), 3, 256 * 1024);
+        assertEquals(new HashSet<>(Arrays.asList("chr1", "chr2")), pool.getChromosomes());
+
+        List<int[]> queries = new ArrayList<>();
+        Map<int[], List<String>> expected = new HashMap<>();
+        TabixReader reference = new TabixReader(file.getPath());
+        for (int q = 0; q < 200; q++) {
+            int start = 1000 + random.nextInt(400000);
+            int[] query = {random.nextInt(2) + 1, start, start + random.nextInt(5000)};
+            queries.add(query);
+            List<String> lines = new ArrayList<>();
+            TabixReader.Iterator it = reference.query("chr" + query[0], query[1], query[2]);
+            String line;
+            while ((line = it.next()) != null) {
+                lines.add(line);
+            }
+            expected.put(query, lines);
+        }
+        reference.close();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int[] query : queries) {
+                futures.add(executor.submit(() -> {
+                    List<String> lines = pool.query("chr" + query[0], query[1], query[2], line -> line);
+                    assertEquals(expected.get(query), lines);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testCachedStream() throws Exception {
+        Random random = new Random(5);
+        byte[] bytes = new byte[100000];
+        random.nextBytes(bytes);
+
+        BlockCache cache = new BlockCache(4096, 5 * 4096);
+        CachedSeekableStream a = new CachedSeekableStream(new ByteArraySeekableStream(bytes), cache);
+        CachedSeekableStream b = new CachedSeekableStream(new ByteArraySeekableStream(bytes), cache);
+
+        for (int i = 0; i < 1000; i++) {
+            CachedSeekableStream stream = random.nextBoolean() ? a : b;
+            int position = random.nextInt(bytes.length);
+            int length = random.nextInt(10000);
+            stream.seek(position);
+
+            byte[] buffer = new byte[length];
+            int n = stream.read(buffer, 0, length);
+            int expected = Math.min(length, bytes.length - position);
+            if (length == 0) {
+                assertEquals(0, n);
+            } else {
+                assertEquals(expected, n);
+            }
+            assertArrayEquals(Arrays.copyOfRange(bytes, position, position + expected), Arrays.copyOf(buffer, Math.max(0, n)));
+            assertEquals(position + Math.max(0, n), stream.position());
+        }
+
+        a.seek(bytes.length - 1);
+        assertEquals(bytes[bytes.length - 1] & 0xFF, a.read());
+        assertEquals(-1, a.read());
+        assertTrue(a.eof());
+    }
+}
@@ -32,12 +32,12 @@ import org.broad.igv.feature.genome.ChromosomeNameComparator;
 import org.broad.igv.util.TestUtils;
 import org.junit.Test;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import htsjdk.tribble.readers.TabixReader;
+
+import java.io.*;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.Assert.*;
@@ -82,6 +82,81 @@ public class SorterTest extends AbstractHeadlessTest {
         testSort(path, 1, 2, 10, 1000, 1);
     }
 
+    @Test
+    public void testSortHap() throws Exception {
+        // Unsorted mHap records, more than held in memory
+        Random random = new Random(3);
+        File ifile = File.createTempFile("unsorted", ".hap");
+        ifile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(ifile))) {
+            for (int i = 0; i < 1000; i++) {
+                int start = random.nextInt(100000);
+                writer.println("chr" + (1 + random.nextInt(3)) + "\t" + start + "\t" + (start + 20) + "\t101\t" +
+                        (1 + random.nextInt(5)) + "\t+");
+            }
+        }
+
+        // Plain output
+        File ofile = new File(ifile.getPath() + ".sorted.hap");
+        ofile.deleteOnExit();
+        Sorter sorter = SorterFactory.getSorter(ifile, ofile);
+        assertTrue(sorter instanceof HapSorter);
+        sorter.setMaxRecords(100);
+        sorter.run();
+        assertEquals(1000, checkFileSorted(ofile, 0, 1, 0));
+
+        // Bgzipped and tabix indexed output
+        File gzfile = new File(ifile.getPath() + ".sorted.hap.gz");
+        File tbifile = new File(gzfile.getPath() + ".tbi");
+        gzfile.deleteOnExit();
+        tbifile.deleteOnExit();
+        sorter = SorterFactory.getSorter(ifile, gzfile);
+        sorter.setMaxRecords(100);
+        sorter.run();
+        assertTrue(tbifile.exists());
+
+        int expected = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(ofile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\t");
+                if (tokens[0].equals("chr2") && Integer.parseInt(tokens[2]) > 50000 && Integer.parseInt(tokens[1]) < 60000) {
+                    expected++;
+                }
+            }
+        }
+        TabixReader tabixReader = new TabixReader(gzfile.getAbsolutePath());
+        TabixReader.Iterator it = tabixReader.query("chr2", 50000, 60000);
+        int found = 0;
+        while (it.next() != null) {
+            found++;
+        }
+        tabixReader.close();
+        assertTrue(expected > 0);
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void testSortMalformedHapFails() throws Exception {
+        File ifile = File.createTempFile("malformed", ".hap");
+        ifile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(ifile))) {
+            writer.println("chr1\t300\t320\t101\t1\t+");
+            writer.println("chr1\t200");
+            writer.println("chr1\t100\t120\t101\t1\t+");
+        }
+        File gzfile = new File(ifile.getPath() + ".sorted.hap.gz");
+        gzfile.deleteOnExit();
+        new File(gzfile.getPath() + ".tbi").deleteOnExit();
+
+        try {
+            SorterFactory.getSorter(ifile, gzfile).run();
+            fail("Malformed line accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Not an mHap line"));
+        }
+    }
+
     public void testSort(String infile, int chrCol, int startCol) throws IOException {
         testSort(infile, chrCol, startCol, 10, null, 0);
     }